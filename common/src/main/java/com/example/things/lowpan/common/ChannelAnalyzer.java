@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.common;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Scores the 2.4 GHz 802.15.4 channels by how busy they are, to pick the
+ * channel and PAN ID of a new network.
+ *
+ * Beacons from existing networks count towards a channel's occupancy,
+ * weighted by signal strength since a nearby router contends for the air far
+ * more than a distant one. Energy scan samples give the channel's noise: the
+ * mean of the strongest signal heard in each sample, which includes Wi-Fi,
+ * Bluetooth and anything else on the band. The channel with the lowest
+ * combined score wins; a PAN ID is picked at random among those not heard
+ * in any beacon.
+ *
+ * This class has no Android dependencies and is not thread-safe.
+ */
+public final class ChannelAnalyzer {
+    /** Lowest 2.4 GHz 802.15.4 channel. */
+    public static final int FIRST_CHANNEL = 11;
+    /** Highest 2.4 GHz 802.15.4 channel. */
+    public static final int LAST_CHANNEL = 26;
+
+    private static final int CHANNEL_COUNT = LAST_CHANNEL - FIRST_CHANNEL + 1;
+    // Signals at or below this are treated as silence, at or above the strong level as saturating
+    private static final int NOISE_FLOOR_DBM = -100;
+    private static final int STRONG_DBM = -40;
+    // A beacon from a distant router still means a network shares the channel
+    private static final double MIN_BEACON_WEIGHT = 0.1;
+    // One nearby router costs about as much as a channel that is always half-loud
+    private static final double OCCUPANCY_WEIGHT = 1.0;
+    private static final double NOISE_WEIGHT = 2.0;
+    // Reserved PAN IDs: broadcast and "not associated"
+    private static final int MAX_PANID = 0xFFFD;
+    // Random draws before falling back to searching for a free PAN ID
+    private static final int PANID_DRAWS = 32;
+    // Channels between Wi-Fi channels 1, 6 and 11, preferred when scores tie
+    private static final int[] WIFI_GAP_CHANNELS = { 15, 20, 25, 26 };
+
+    private final double[] mOccupancy = new double[CHANNEL_COUNT];
+    private final int[] mBeaconCount = new int[CHANNEL_COUNT];
+    private final long[] mEnergySum = new long[CHANNEL_COUNT];
+    private final int[] mEnergyCount = new int[CHANNEL_COUNT];
+    private final BitSet mUsedPanids = new BitSet(MAX_PANID + 1);
+    private int mSampleCount;
+
+    /**
+     * Count a beacon heard from a router of an existing network. Feed one
+     * beacon per router; repeated beacons from the same router overstate
+     * its channel's occupancy.
+     */
+    public void addBeacon(int channel, int panid, int rssi) {
+        if (panid >= 0 && panid <= MAX_PANID) {
+            mUsedPanids.set(panid);
+        }
+        if (!isValidChannel(channel)) {
+            return;
+        }
+        int index = channel - FIRST_CHANNEL;
+        mOccupancy[index] += Math.max(MIN_BEACON_WEIGHT, level(rssi));
+        mBeaconCount[index]++;
+        mSampleCount++;
+    }
+
+    /**
+     * Count an energy scan sample: the strongest signal heard on a channel
+     * during one measurement.
+     */
+    public void addEnergy(int channel, int maxRssi) {
+        if (!isValidChannel(channel)) {
+            return;
+        }
+        int index = channel - FIRST_CHANNEL;
+        mEnergySum[index] += maxRssi;
+        mEnergyCount[index]++;
+        mSampleCount++;
+    }
+
+    /**
+     * Returns true if at least one beacon or energy sample has been counted.
+     */
+    public boolean hasSamples() {
+        return mSampleCount > 0;
+    }
+
+    /**
+     * Returns the strength-weighted number of routers heard on the channel.
+     */
+    public double getOccupancy(int channel) {
+        return isValidChannel(channel) ? mOccupancy[channel - FIRST_CHANNEL] : 0;
+    }
+
+    /**
+     * Returns the channel's mean peak energy between 0 (silent) and 1 (saturated),
+     * or 0 if it was not measured.
+     */
+    public double getNoise(int channel) {
+        if (!isValidChannel(channel)) {
+            return 0;
+        }
+        int index = channel - FIRST_CHANNEL;
+        if (mEnergyCount[index] == 0) {
+            return 0;
+        }
+        return level((double) mEnergySum[index] / mEnergyCount[index]);
+    }
+
+    /**
+     * Returns the channel's score; lower is better.
+     */
+    public double getScore(int channel) {
+        return OCCUPANCY_WEIGHT * getOccupancy(channel) + NOISE_WEIGHT * getNoise(channel);
+    }
+
+    /**
+     * Returns the best of the given channels: the lowest score, then the lowest
+     * noise, then a channel clear of the common Wi-Fi channels, then the lowest
+     * number.
+     *
+     * @param candidates Channels the radio supports, or null for every 2.4 GHz channel.
+     * @return The best channel, or -1 if there are no valid candidates.
+     */
+    public int pickChannel(int[] candidates) {
+        int best = -1;
+        for (int channel = FIRST_CHANNEL; channel <= LAST_CHANNEL; channel++) {
+            if (candidates != null && !contains(candidates, channel)) {
+                continue;
+            }
+            if (best < 0 || isBetter(channel, best)) {
+                best = channel;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns a random PAN ID that no beacon has used.
+     *
+     * @return The PAN ID, or -1 if every one is in use.
+     */
+    public int pickPanid(Random random) {
+        // A site has at most a few hundred networks, so a handful of draws suffice
+        for (int i = 0; i < PANID_DRAWS; i++) {
+            int panid = random.nextInt(MAX_PANID + 1);
+            if (!mUsedPanids.get(panid)) {
+                return panid;
+            }
+        }
+        // Nearly every ID is taken; take the next free one after a random start
+        int start = random.nextInt(MAX_PANID + 1);
+        int panid = mUsedPanids.nextClearBit(start);
+        if (panid > MAX_PANID) {
+            panid = mUsedPanids.nextClearBit(0);
+        }
+        return panid <= MAX_PANID ? panid : -1;
+    }
+
+    /**
+     * Forget every sample.
+     */
+    public void clear() {
+        Arrays.fill(mOccupancy, 0);
+        Arrays.fill(mBeaconCount, 0);
+        Arrays.fill(mEnergySum, 0);
+        Arrays.fill(mEnergyCount, 0);
+        mUsedPanids.clear();
+        mSampleCount = 0;
+    }
+
+    /**
+     * Returns the scores as a single line of {@code channel=score} pairs.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(CHANNEL_COUNT * 24);
+        for (int channel = FIRST_CHANNEL; channel <= LAST_CHANNEL; channel++) {
+            int index = channel - FIRST_CHANNEL;
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append("ch").append(channel).append('=')
+                    .append(String.format(Locale.US, "%.2f", getScore(channel)))
+                    .append('(').append(mBeaconCount[index]).append("b,")
+                    .append(mEnergyCount[index]).append("e)");
+        }
+        return builder.toString();
+    }
+
+    private boolean isBetter(int channel, int best) {
+        double score = getScore(channel);
+        double bestScore = getScore(best);
+        if (score != bestScore) {
+            return score < bestScore;
+        }
+        double noise = getNoise(channel);
+        double bestNoise = getNoise(best);
+        if (noise != bestNoise) {
+            return noise < bestNoise;
+        }
+        // Channels are visited in increasing order, so the lower one is kept on a full tie
+        return contains(WIFI_GAP_CHANNELS, channel) && !contains(WIFI_GAP_CHANNELS, best);
+    }
+
+    /**
+     * Maps a signal strength onto 0 at the noise floor to 1 for a strong signal.
+     */
+    private static double level(double rssi) {
+        double level = (rssi - NOISE_FLOOR_DBM) / (STRONG_DBM - NOISE_FLOOR_DBM);
+        return Math.min(1, Math.max(0, level));
+    }
+
+    private static boolean isValidChannel(int channel) {
+        return channel >= FIRST_CHANNEL && channel <= LAST_CHANNEL;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.common;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Delta encoder and decoder for the values of one stream.
+ *
+ * Consecutive sensor readings usually differ by much less than their
+ * magnitude, so each value is sent as the zig-zag varint difference from the
+ * one before it, and as many values as fit share one frame header. A
+ * {@link FrameCodec#TYPE_VALUES} frame starts from an absolute value and can
+ * be decoded on its own; a {@link FrameCodec#TYPE_DELTAS} frame continues
+ * from the previous frame and needs an ordered, lossless stream.
+ *
+ * Use one instance for each end of a stream and {@link #reset()} it whenever
+ * the stream restarts. Neither method allocates, and an instance is not
+ * thread-safe.
+ */
+public final class DeltaCodec {
+    private final boolean mKeyFramesOnly;
+
+    private boolean mHasReference;
+    private int mReference;
+
+    private long mValueCount;
+    private long mEncodedBytes;
+    private long mPlainBytes;
+
+    /**
+     * @param keyFramesOnly Write only {@link FrameCodec#TYPE_VALUES} frames, for
+     *                      transports that may lose or reorder frames.
+     */
+    public DeltaCodec(boolean keyFramesOnly) {
+        mKeyFramesOnly = keyFramesOnly;
+    }
+
+    /**
+     * Forget the last value, so the next frame written starts from an
+     * absolute value and a {@link FrameCodec#TYPE_DELTAS} frame is rejected
+     * until a {@link FrameCodec#TYPE_VALUES} frame has been decoded.
+     */
+    public void reset() {
+        mHasReference = false;
+        mReference = 0;
+    }
+
+    /**
+     * Write one frame carrying as many of the given values as fit in the
+     * buffer's remaining space and in a single frame.
+     *
+     * @param out Destination buffer.
+     * @param sequence Sender's sequence number for this frame.
+     * @param values Values to send, oldest first.
+     * @param offset Index of the first value to send.
+     * @param count Number of values available from {@code offset}.
+     * @return The number of values written, or 0 if not even one fits, in
+     *         which case nothing is written.
+     */
+    public int encode(ByteBuffer out, int sequence, int[] values, int offset, int count) {
+        int start = out.position();
+        int limit = Math.min(out.limit(), start + FrameCodec.MAX_FRAME_SIZE);
+        boolean keyFrame = mKeyFramesOnly || !mHasReference;
+
+        // Size the frame first so the values that do not fit are left untouched
+        int end = start + FrameCodec.HEADER_SIZE + 1 + Varint.size(sequence) + 1;
+        int previous = keyFrame ? 0 : mReference;
+        int fitted = 0;
+        int max = Math.min(count, FrameCodec.MAX_BATCH_VALUES);
+        while (fitted < max) {
+            int value = values[offset + fitted];
+            end += Varint.size(Varint.zigZag(value - previous));
+            if (end > limit) {
+                break;
+            }
+            previous = value;
+            fitted++;
+        }
+        if (fitted == 0) {
+            return 0;
+        }
+
+        out.put((byte) FrameCodec.VERSION);
+        out.put((byte) 0);
+        out.put((byte) (keyFrame ? FrameCodec.TYPE_VALUES : FrameCodec.TYPE_DELTAS));
+        Varint.put(out, sequence);
+        out.put((byte) fitted);
+        previous = keyFrame ? 0 : mReference;
+        for (int i = offset; i < offset + fitted; i++) {
+            Varint.put(out, Varint.zigZag(values[i] - previous));
+            previous = values[i];
+            mPlainBytes += plainSize(sequence, values[i]);
+        }
+        int length = out.position() - start;
+        out.put(start + 1, (byte) (length - FrameCodec.HEADER_SIZE));
+
+        mReference = previous;
+        mHasReference = true;
+        mValueCount += fitted;
+        mEncodedBytes += length;
+        return fitted;
+    }
+
+    /**
+     * Resolve the entries of a decoded batch frame into values.
+     *
+     * @param frame A frame for which {@link FrameCodec#isBatch(Frame)} is true.
+     * @param values Destination with room for {@link Frame#getValueCount()} values.
+     * @param offset Index in {@code values} to write the first value to.
+     * @return The number of values written.
+     * @throws ProtocolException if the frame continues a stream this codec has not seen.
+     */
+    public int decode(Frame frame, int[] values, int offset) throws ProtocolException {
+        int previous;
+        if (frame.mType == FrameCodec.TYPE_VALUES) {
+            previous = 0;
+        } else if (frame.mType != FrameCodec.TYPE_DELTAS) {
+            throw new IllegalArgumentException("Not a batch frame: type " + frame.mType);
+        } else if (mHasReference) {
+            previous = mReference;
+        } else {
+            throw new ProtocolException("Delta frame without a preceding value");
+        }
+        int count = frame.mValueCount;
+        for (int i = 0; i < count; i++) {
+            previous += frame.mEntries[i];
+            values[offset + i] = previous;
+        }
+        if (count > 0) {
+            mReference = previous;
+            mHasReference = true;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of values written by {@link #encode}.
+     */
+    public long getValueCount() {
+        return mValueCount;
+    }
+
+    /**
+     * Returns the number of bytes written by {@link #encode}.
+     */
+    public long getEncodedBytes() {
+        return mEncodedBytes;
+    }
+
+    /**
+     * Returns the number of bytes the same values would have taken as one
+     * {@link FrameCodec#encodeValue} frame each.
+     */
+    public long getPlainBytes() {
+        return mPlainBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "values=" + mValueCount
+                + " bytes=" + mEncodedBytes
+                + " plain_bytes=" + mPlainBytes
+                + String.format(Locale.US, " ratio=%.2f",
+                        mEncodedBytes == 0 ? 0.0 : (double) mPlainBytes / mEncodedBytes);
+    }
+
+    private static int plainSize(int sequence, int value) {
+        int size = Varint.size(Varint.zigZag(value));
+        return FrameCodec.HEADER_SIZE + 1 + Varint.size(sequence) + (size < 4 ? size : 4);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.common;
+
+/**
+ * Mutable holder for one decoded frame. A single instance is meant to be
+ * reused for every call to {@link FrameCodec#decode(java.nio.ByteBuffer, Frame)}
+ * so that decoding does not allocate.
+ */
+public final class Frame {
+    int mType;
+    int mSequence;
+    int mValue;
+    long mTimestamp;
+    int mSource;
+    // Raw entries of a batch frame, allocated when the first one is decoded
+    int[] mEntries;
+    int mValueCount;
+
+    /**
+     * Returns the payload type, one of the {@code FrameCodec.TYPE_*} constants.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Returns the sender's sequence number of this frame.
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Returns the value carried by this frame.
+     */
+    public int getValue() {
+        return mValue;
+    }
+
+    /**
+     * Returns the sender's monotonic send time in nanoseconds, carried by
+     * probe and acknowledgement frames, or 0 for other types.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Returns the source carried by publish frames, or the filter carried by
+     * subscribe frames, or 0 for other types.
+     */
+    public int getSource() {
+        return mSource;
+    }
+
+    /**
+     * Returns the number of entries carried by a batch frame, or 0 for other types.
+     */
+    public int getValueCount() {
+        return mValueCount;
+    }
+
+    int[] entries() {
+        if (mEntries == null) {
+            mEntries = new int[FrameCodec.MAX_BATCH_VALUES];
+        }
+        return mEntries;
+    }
+}
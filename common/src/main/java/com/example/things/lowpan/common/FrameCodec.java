@@ -0,0 +1,303 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.common;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder and decoder for the framed wire format shared by the transmitter
+ * and the receiver.
+ *
+ * <pre>
+ * +---------+--------+------+----------+---------+
+ * | version | length | type | sequence | payload |
+ * +---------+--------+------+----------+---------+
+ *    1 byte   1 byte  1 byte   varint    by type
+ * </pre>
+ *
+ * The length counts every byte after the length field, so a reader can skip
+ * frames of a type it does not understand. Neither method allocates.
+ */
+public final class FrameCodec {
+    /** Wire format version written in the first byte of every frame. */
+    public static final int VERSION = 1;
+
+    /** Size of the version and length fields. */
+    public static final int HEADER_SIZE = 2;
+    /** Smallest well-formed frame: header, type, one-byte sequence and payload. */
+    public static final int MIN_FRAME_SIZE = HEADER_SIZE + 3;
+    /** Largest frame the one-byte length field can describe. */
+    public static final int MAX_FRAME_SIZE = HEADER_SIZE + 0xFF;
+
+    /** Value payload as a zig-zag varint. */
+    public static final int TYPE_VARINT = 1;
+    /** Value payload as a 32-bit big-endian integer. */
+    public static final int TYPE_FIXED32 = 2;
+    /** Zig-zag varint value followed by a 64-bit send timestamp, to be acknowledged. */
+    public static final int TYPE_PROBE = 3;
+    /** Echo of a probe's sequence number and 64-bit send timestamp. */
+    public static final int TYPE_ACK = 4;
+    /** Zig-zag varint source filter, sent by a client to receive relayed values. */
+    public static final int TYPE_SUBSCRIBE = 5;
+    /** Varint source identifier followed by a zig-zag varint value, relayed to subscribers. */
+    public static final int TYPE_PUBLISH = 6;
+    /**
+     * One-byte count followed by that many zig-zag varints: the first value,
+     * then the difference of each value from the one before it.
+     */
+    public static final int TYPE_VALUES = 7;
+    /**
+     * Like {@link #TYPE_VALUES}, but the first entry is also a difference, from
+     * the last value of the previous frame on the same stream.
+     */
+    public static final int TYPE_DELTAS = 8;
+
+    /** Subscription filter that matches every source. */
+    public static final int SUBSCRIBE_ALL = -1;
+    /** Largest frame carrying a single value, of any of the single-value types. */
+    public static final int MAX_VALUE_FRAME_SIZE = HEADER_SIZE + 1 + 2 * Varint.MAX_SIZE + 8;
+    /** Largest number of values in one {@link #TYPE_VALUES} or {@link #TYPE_DELTAS} frame. */
+    public static final int MAX_BATCH_VALUES = 0xFF;
+    /** Largest frame written by {@link #encodePublish(ByteBuffer, int, int, int)}. */
+    public static final int MAX_PUBLISH_FRAME_SIZE = HEADER_SIZE + 1 + 3 * Varint.MAX_SIZE;
+
+    private FrameCodec() {}
+
+    /**
+     * Write a frame carrying a single value at the buffer's position, using
+     * whichever payload type is shorter for the value.
+     *
+     * @param out Destination buffer with at least {@link #MAX_FRAME_SIZE} bytes remaining.
+     * @param sequence Sender's sequence number for this frame.
+     * @param value The value to send.
+     * @return The number of bytes written.
+     */
+    public static int encodeValue(ByteBuffer out, int sequence, int value) {
+        int start = out.position();
+        out.put((byte) VERSION);
+        // Length is patched in once the body is written
+        out.put((byte) 0);
+        int zigZag = Varint.zigZag(value);
+        if (Varint.size(zigZag) < 4) {
+            out.put((byte) TYPE_VARINT);
+            Varint.put(out, sequence);
+            Varint.put(out, zigZag);
+        } else {
+            out.put((byte) TYPE_FIXED32);
+            Varint.put(out, sequence);
+            out.putInt(value);
+        }
+        int length = out.position() - start;
+        out.put(start + 1, (byte) (length - HEADER_SIZE));
+        return length;
+    }
+
+    /**
+     * Write a probe frame that asks the receiver to echo its timestamp.
+     *
+     * @param out Destination buffer with at least {@link #MAX_FRAME_SIZE} bytes remaining.
+     * @param sequence Sender's sequence number for this frame.
+     * @param value The value to send.
+     * @param timestampNanos Sender's monotonic clock when the frame is sent.
+     * @return The number of bytes written.
+     */
+    public static int encodeProbe(ByteBuffer out, int sequence, int value, long timestampNanos) {
+        int start = out.position();
+        out.put((byte) VERSION);
+        out.put((byte) 0);
+        out.put((byte) TYPE_PROBE);
+        Varint.put(out, sequence);
+        Varint.put(out, Varint.zigZag(value));
+        out.putLong(timestampNanos);
+        int length = out.position() - start;
+        out.put(start + 1, (byte) (length - HEADER_SIZE));
+        return length;
+    }
+
+    /**
+     * Write an acknowledgement echoing a received probe.
+     *
+     * @param out Destination buffer with at least {@link #MAX_FRAME_SIZE} bytes remaining.
+     * @param probe The probe frame being acknowledged.
+     * @return The number of bytes written.
+     */
+    public static int encodeAck(ByteBuffer out, Frame probe) {
+        int start = out.position();
+        out.put((byte) VERSION);
+        out.put((byte) 0);
+        out.put((byte) TYPE_ACK);
+        Varint.put(out, probe.mSequence);
+        out.putLong(probe.mTimestamp);
+        int length = out.position() - start;
+        out.put(start + 1, (byte) (length - HEADER_SIZE));
+        return length;
+    }
+
+    /**
+     * Write a request to receive the values relayed from one source, or from all of them.
+     *
+     * @param out Destination buffer with at least {@link #MAX_FRAME_SIZE} bytes remaining.
+     * @param sequence Sender's sequence number for this frame.
+     * @param source Source to subscribe to, or {@link #SUBSCRIBE_ALL}.
+     * @return The number of bytes written.
+     */
+    public static int encodeSubscribe(ByteBuffer out, int sequence, int source) {
+        int start = out.position();
+        out.put((byte) VERSION);
+        out.put((byte) 0);
+        out.put((byte) TYPE_SUBSCRIBE);
+        Varint.put(out, sequence);
+        Varint.put(out, Varint.zigZag(source));
+        int length = out.position() - start;
+        out.put(start + 1, (byte) (length - HEADER_SIZE));
+        return length;
+    }
+
+    /**
+     * Write a value relayed on behalf of a source.
+     *
+     * @param out Destination buffer with at least {@link #MAX_PUBLISH_FRAME_SIZE} bytes remaining.
+     * @param sequence Relay's sequence number for this frame.
+     * @param source Identifier of the source the value was received from.
+     * @param value The value to relay.
+     * @return The number of bytes written.
+     */
+    public static int encodePublish(ByteBuffer out, int sequence, int source, int value) {
+        int start = out.position();
+        out.put((byte) VERSION);
+        out.put((byte) 0);
+        out.put((byte) TYPE_PUBLISH);
+        Varint.put(out, sequence);
+        Varint.put(out, source);
+        Varint.put(out, Varint.zigZag(value));
+        int length = out.position() - start;
+        out.put(start + 1, (byte) (length - HEADER_SIZE));
+        return length;
+    }
+
+    /**
+     * Read one frame at the buffer's position.
+     *
+     * If the buffer does not hold a complete frame, nothing is consumed and
+     * {@code false} is returned so the caller can read more bytes and retry.
+     * Frames of an unknown type are consumed and reported with their type so
+     * the caller can ignore them.
+     *
+     * @param in Source buffer, positioned at the start of a frame.
+     * @param frame Holder that receives the decoded fields.
+     * @return {@code true} if a complete frame was decoded.
+     * @throws ProtocolException if the bytes are not a valid frame.
+     */
+    public static boolean decode(ByteBuffer in, Frame frame) throws ProtocolException {
+        int start = in.position();
+        if (in.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        int version = in.get(start) & 0xFF;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported frame version " + version);
+        }
+        int length = in.get(start + 1) & 0xFF;
+        if (in.remaining() < HEADER_SIZE + length) {
+            return false;
+        }
+
+        int end = start + HEADER_SIZE + length;
+        int limit = in.limit();
+        in.limit(end);
+        in.position(start + HEADER_SIZE);
+        try {
+            if (!in.hasRemaining()) {
+                throw new ProtocolException("Empty frame");
+            }
+            frame.mType = in.get() & 0xFF;
+            frame.mSequence = Varint.get(in);
+            frame.mValue = 0;
+            frame.mTimestamp = 0;
+            frame.mSource = 0;
+            frame.mValueCount = 0;
+            switch (frame.mType) {
+                case TYPE_VARINT:
+                    frame.mValue = Varint.unZigZag(Varint.get(in));
+                    break;
+                case TYPE_FIXED32:
+                    if (in.remaining() < 4) {
+                        throw new ProtocolException("Truncated fixed32 payload");
+                    }
+                    frame.mValue = in.getInt();
+                    break;
+                case TYPE_PROBE:
+                    frame.mValue = Varint.unZigZag(Varint.get(in));
+                    frame.mTimestamp = getTimestamp(in);
+                    break;
+                case TYPE_ACK:
+                    frame.mTimestamp = getTimestamp(in);
+                    break;
+                case TYPE_SUBSCRIBE:
+                    frame.mSource = Varint.unZigZag(Varint.get(in));
+                    break;
+                case TYPE_PUBLISH:
+                    frame.mSource = Varint.get(in);
+                    frame.mValue = Varint.unZigZag(Varint.get(in));
+                    break;
+                case TYPE_VALUES:
+                case TYPE_DELTAS:
+                    if (!in.hasRemaining()) {
+                        throw new ProtocolException("Truncated value count");
+                    }
+                    int count = in.get() & 0xFF;
+                    int[] entries = frame.entries();
+                    for (int i = 0; i < count; i++) {
+                        entries[i] = Varint.unZigZag(Varint.get(in));
+                    }
+                    frame.mValueCount = count;
+                    break;
+                default:
+                    break;
+            }
+        } finally {
+            in.limit(limit);
+        }
+        in.position(end);
+        return true;
+    }
+
+    /**
+     * Returns true if the frame type carries a value sent by a transmitter.
+     * Relayed values are not included; see {@link #TYPE_PUBLISH}.
+     */
+    public static boolean isValue(Frame frame) {
+        return frame.mType == TYPE_VARINT || frame.mType == TYPE_FIXED32
+                || frame.mType == TYPE_PROBE;
+    }
+
+    /**
+     * Returns true if the frame type carries several values, which must be
+     * resolved with a {@link DeltaCodec}.
+     */
+    public static boolean isBatch(Frame frame) {
+        return frame.mType == TYPE_VALUES || frame.mType == TYPE_DELTAS;
+    }
+
+    private static long getTimestamp(ByteBuffer in) throws ProtocolException {
+        if (in.remaining() < 8) {
+            throw new ProtocolException("Truncated timestamp");
+        }
+        return in.getLong();
+    }
+}
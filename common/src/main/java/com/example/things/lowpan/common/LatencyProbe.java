@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.common;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures round-trip time with probe frames that the receiver echoes back.
+ *
+ * The sending thread encodes probes with {@link #encodeProbe(ByteBuffer, int, int)},
+ * which stamps each one with {@link System#nanoTime()}. A reading thread passes
+ * bytes received on the same connection to {@link #onReceived(ByteBuffer)}; the
+ * echoed timestamp of every acknowledgement gives the round-trip time directly,
+ * so no per-probe state has to be kept. Both paths are lock-free.
+ */
+public class LatencyProbe {
+    private final LatencyHistogram mRttMicros = new LatencyHistogram();
+    private final AtomicLong mSentCount = new AtomicLong();
+    private final AtomicLong mAckCount = new AtomicLong();
+    // Only used by the reading thread
+    private final Frame mFrame = new Frame();
+
+    /**
+     * Write a probe frame carrying a value.
+     *
+     * @return The number of bytes written.
+     */
+    public int encodeProbe(ByteBuffer out, int sequence, int value) {
+        int length = FrameCodec.encodeProbe(out, sequence, value, System.nanoTime());
+        mSentCount.incrementAndGet();
+        return length;
+    }
+
+    /**
+     * Consume every complete frame in the buffer, recording acknowledgements.
+     * A trailing partial frame is left in the buffer for the next call.
+     *
+     * @throws ProtocolException if the bytes are not valid frames.
+     */
+    public void onReceived(ByteBuffer in) throws ProtocolException {
+        long now = System.nanoTime();
+        while (FrameCodec.decode(in, mFrame)) {
+            if (mFrame.getType() == FrameCodec.TYPE_ACK) {
+                mRttMicros.record((now - mFrame.getTimestamp()) / 1000);
+                mAckCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the distribution of round-trip times in microseconds.
+     */
+    public LatencyHistogram getRttMicros() {
+        return mRttMicros;
+    }
+
+    public long getSentCount() {
+        return mSentCount.get();
+    }
+
+    public long getAckCount() {
+        return mAckCount.get();
+    }
+
+    /**
+     * Returns the fraction of probes that have not been acknowledged. Probes
+     * still in flight count as lost until their acknowledgement arrives.
+     */
+    public double getLoss() {
+        long sent = mSentCount.get();
+        return sent == 0 ? 0 : 1.0 - (double) Math.min(mAckCount.get(), sent) / sent;
+    }
+
+    /**
+     * Returns the results as a single line of space-separated {@code key=value} pairs.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(128)
+                .append("sent=").append(getSentCount())
+                .append(" acked=").append(getAckCount())
+                .append(" loss=").append(String.format(Locale.US, "%.4f", getLoss()))
+                .append(' ');
+        return mRttMicros.appendTo(builder, "rtt_us_").toString();
+    }
+}
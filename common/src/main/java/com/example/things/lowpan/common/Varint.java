@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.common;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Base-128 variable length integers, least significant group first.
+ * Small magnitudes take a single byte on the wire.
+ */
+public final class Varint {
+    /** Longest encoding of a 32-bit value. */
+    public static final int MAX_SIZE = 5;
+
+    private Varint() {}
+
+    /**
+     * Map signed values onto unsigned ones so small negative numbers stay short.
+     */
+    public static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Inverse of {@link #zigZag(int)}.
+     */
+    public static int unZigZag(int encoded) {
+        return (encoded >>> 1) ^ -(encoded & 1);
+    }
+
+    /**
+     * Returns the number of bytes {@link #put(ByteBuffer, int)} writes for a value.
+     */
+    public static int size(int value) {
+        if ((value & ~0x7F) == 0) return 1;
+        if ((value & ~0x3FFF) == 0) return 2;
+        if ((value & ~0x1FFFFF) == 0) return 3;
+        if ((value & ~0xFFFFFFF) == 0) return 4;
+        return 5;
+    }
+
+    /**
+     * Write a value as an unsigned varint at the buffer's position.
+     */
+    public static void put(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Read an unsigned varint at the buffer's position.
+     *
+     * @throws ProtocolException if the encoding is longer than {@link #MAX_SIZE}
+     *         or runs past the buffer's limit.
+     */
+    public static int get(ByteBuffer in) throws ProtocolException {
+        int result = 0;
+        for (int shift = 0; shift < 7 * MAX_SIZE; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new ProtocolException("Truncated varint");
+            }
+            byte b = in.get();
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+}
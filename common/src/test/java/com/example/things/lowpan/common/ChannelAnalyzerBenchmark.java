@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.common;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Replays recorded scan results through a {@link ChannelAnalyzer}, printing
+ * the scores and the channel and PAN ID it picks, and measures how long
+ * scoring takes.
+ *
+ * It lives with the tests; run it with the {@code runBenchmark} task.
+ * Arguments, all optional:
+ *
+ * <pre>
+ * ChannelAnalyzerBenchmark [scanFile]
+ * </pre>
+ *
+ * The file has one result per line, with the PAN ID in hex:
+ *
+ * <pre>
+ * beacon,channel,panid,rssi
+ * energy,channel,maxRssi
+ * </pre>
+ *
+ * Without a file, a site is simulated with busy Wi-Fi channels 1, 6 and 11
+ * and a few dozen networks.
+ */
+public class ChannelAnalyzerBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int REPEATS = 1_000;
+
+    public static void main(String[] args) throws IOException {
+        List<int[]> samples = args.length > 0 ? read(args[0]) : simulate(new Random(42));
+
+        ChannelAnalyzer analyzer = new ChannelAnalyzer();
+        replay(analyzer, samples);
+        System.out.println(analyzer);
+        System.out.println("channel=" + analyzer.pickChannel(null)
+                + String.format(" panid=%04X", analyzer.pickPanid(new Random())));
+
+        // Best of several rounds, the first of which warms up the compiler
+        long bestNanos = Long.MAX_VALUE;
+        int sink = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < REPEATS; i++) {
+                analyzer.clear();
+                replay(analyzer, samples);
+                sink += analyzer.pickChannel(null);
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        System.out.println(String.format(Locale.US,
+                "samples=%d us_per_analysis=%.1f ns_per_sample=%.1f sink=%d",
+                samples.size(), bestNanos / 1e3 / REPEATS,
+                (double) bestNanos / REPEATS / samples.size(), sink));
+    }
+
+    private static void replay(ChannelAnalyzer analyzer, List<int[]> samples) {
+        for (int[] sample : samples) {
+            if (sample.length == 3) {
+                analyzer.addBeacon(sample[0], sample[1], sample[2]);
+            } else {
+                analyzer.addEnergy(sample[0], sample[1]);
+            }
+        }
+    }
+
+    private static List<int[]> read(String path) throws IOException {
+        List<int[]> samples = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split(",");
+                if (fields[0].equals("beacon") && fields.length == 4) {
+                    samples.add(new int[] { Integer.parseInt(fields[1]),
+                            Integer.parseInt(fields[2], 16), Integer.parseInt(fields[3]) });
+                } else if (fields[0].equals("energy") && fields.length == 3) {
+                    samples.add(new int[] { Integer.parseInt(fields[1]),
+                            Integer.parseInt(fields[2]) });
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Ten energy scans of every channel and one beacon per router.
+     */
+    private static List<int[]> simulate(Random random) {
+        List<int[]> samples = new ArrayList<>();
+        for (int scan = 0; scan < 10; scan++) {
+            for (int channel = ChannelAnalyzer.FIRST_CHANNEL;
+                    channel <= ChannelAnalyzer.LAST_CHANNEL; channel++) {
+                // 802.15.4 channels 11-14, 16-19 and 21-24 sit under Wi-Fi channels 1, 6 and 11
+                boolean wifi = channel != 15 && channel < 25 && channel != 20;
+                int rssi = wifi && random.nextInt(3) > 0
+                        ? -55 - random.nextInt(20) : -95 + random.nextInt(8);
+                samples.add(new int[] { channel, rssi });
+            }
+        }
+        for (int network = 0; network < 30; network++) {
+            int channel = ChannelAnalyzer.FIRST_CHANNEL + random.nextInt(16);
+            int panid = random.nextInt(0xFFFE);
+            for (int router = random.nextInt(8); router >= 0; router--) {
+                samples.add(new int[] { channel, panid, -90 + random.nextInt(45) });
+            }
+        }
+        return samples;
+    }
+}
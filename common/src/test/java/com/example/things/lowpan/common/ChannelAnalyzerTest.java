@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class ChannelAnalyzerTest {
+    private static final double EPSILON = 1e-9;
+    // Highest PAN ID a network can use
+    private static final int MAX_PANID = 0xFFFD;
+
+    private final ChannelAnalyzer mAnalyzer = new ChannelAnalyzer();
+
+    @Test
+    public void beaconsAreWeightedBySignalStrength() {
+        mAnalyzer.addBeacon(12, 1, -40);
+        mAnalyzer.addBeacon(13, 2, -70);
+        mAnalyzer.addBeacon(14, 3, -20);
+
+        assertEquals(1.0, mAnalyzer.getOccupancy(12), EPSILON);
+        assertEquals(0.5, mAnalyzer.getOccupancy(13), EPSILON);
+        // Stronger than strong still counts as one router
+        assertEquals(1.0, mAnalyzer.getOccupancy(14), EPSILON);
+    }
+
+    @Test
+    public void distantRoutersStillCount() {
+        mAnalyzer.addBeacon(12, 1, -100);
+        mAnalyzer.addBeacon(12, 2, -120);
+
+        assertEquals(0.2, mAnalyzer.getOccupancy(12), EPSILON);
+        assertTrue(mAnalyzer.getScore(12) > mAnalyzer.getScore(13));
+    }
+
+    @Test
+    public void noiseIsTheMeanPeakEnergy() {
+        mAnalyzer.addEnergy(20, -60);
+        mAnalyzer.addEnergy(20, -80);
+
+        assertEquals(0.5, mAnalyzer.getNoise(20), EPSILON);
+        assertEquals(1.0, mAnalyzer.getScore(20), EPSILON);
+        assertEquals(0, mAnalyzer.getNoise(21), EPSILON);
+    }
+
+    @Test
+    public void samplesOutsideTheBandAreIgnored() {
+        mAnalyzer.addEnergy(10, -40);
+        mAnalyzer.addBeacon(27, 1, -40);
+
+        assertFalse(mAnalyzer.hasSamples());
+        assertEquals(0, mAnalyzer.getScore(10), EPSILON);
+    }
+
+    @Test
+    public void picksTheLowestScore() {
+        for (int channel = ChannelAnalyzer.FIRST_CHANNEL;
+                channel <= ChannelAnalyzer.LAST_CHANNEL; channel++) {
+            mAnalyzer.addEnergy(channel, channel == 18 ? -90 : -60);
+        }
+        assertTrue(mAnalyzer.hasSamples());
+        assertEquals(18, mAnalyzer.pickChannel(null));
+    }
+
+    @Test
+    public void onlyCandidatesArePicked() {
+        mAnalyzer.addEnergy(18, -40);
+        mAnalyzer.addEnergy(19, -70);
+
+        assertEquals(19, mAnalyzer.pickChannel(new int[] { 18, 19 }));
+        // Channels outside the band are never picked
+        assertEquals(18, mAnalyzer.pickChannel(new int[] { 5, 18, 30 }));
+        assertEquals(-1, mAnalyzer.pickChannel(new int[] { 5, 30 }));
+        assertEquals(-1, mAnalyzer.pickChannel(new int[0]));
+    }
+
+    @Test
+    public void equalScoresPreferTheQuieterChannel() {
+        // One strong router scores the same as a channel that is half-loud on its own
+        mAnalyzer.addBeacon(13, 1, -40);
+        mAnalyzer.addEnergy(12, -70);
+        assertEquals(mAnalyzer.getScore(12), mAnalyzer.getScore(13), EPSILON);
+
+        assertEquals(13, mAnalyzer.pickChannel(new int[] { 12, 13 }));
+    }
+
+    @Test
+    public void fullTiesPreferChannelsClearOfWifi() {
+        assertEquals(15, mAnalyzer.pickChannel(null));
+        assertEquals(26, mAnalyzer.pickChannel(new int[] { 14, 26 }));
+        // Without a gap channel, the lowest one wins
+        assertEquals(11, mAnalyzer.pickChannel(new int[] { 12, 11, 13 }));
+    }
+
+    @Test
+    public void pickedPanidIsNotInUse() {
+        Random random = new Random(1);
+        // Leave a few IDs free, so random draws almost always hit a used one
+        for (int panid = 0; panid <= MAX_PANID; panid++) {
+            if (panid % 4096 != 7) {
+                mAnalyzer.addBeacon(0, panid, -40);
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            int panid = mAnalyzer.pickPanid(random);
+            assertEquals(7, panid % 4096);
+        }
+    }
+
+    @Test
+    public void pickPanidGivesUpWhenEveryIdIsUsed() {
+        for (int panid = 0; panid <= MAX_PANID; panid++) {
+            mAnalyzer.addBeacon(0, panid, -40);
+        }
+        assertEquals(-1, mAnalyzer.pickPanid(new Random(1)));
+
+        mAnalyzer.clear();
+        assertFalse(mAnalyzer.hasSamples());
+        assertNotEquals(-1, mAnalyzer.pickPanid(new Random(1)));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.common;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the compression ratio and throughput of {@link DeltaCodec} on
+ * synthetic sensor traces, against one {@link FrameCodec#encodeValue} frame
+ * per value.
+ *
+ * It lives with the tests; run it with the {@code runBenchmark} task.
+ * Arguments, all optional:
+ *
+ * <pre>
+ * DeltaCodecBenchmark [values] [batchSize]
+ * </pre>
+ *
+ * The batch size is the number of values handed to the codec at once, as the
+ * outbound queue or a target that fell behind would; 1 measures the live
+ * path, where the pipeline sends only the newest value.
+ */
+public class DeltaCodecBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws ProtocolException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        Random random = new Random(42);
+
+        run("temperature", temperature(count, random), batchSize);
+        run("accelerometer", accelerometer(count, random), batchSize);
+        run("slider", slider(count, random), batchSize);
+        run("counter", counter(count, random), batchSize);
+        run("uniform", uniform(count, random), batchSize);
+    }
+
+    private static void run(String name, int[] trace, int batchSize)
+            throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.allocate(trace.length * FrameCodec.MAX_VALUE_FRAME_SIZE);
+        int[] decoded = new int[trace.length];
+        DeltaCodec encoder = null;
+        long plainNanos = Long.MAX_VALUE;
+        long encodeNanos = Long.MAX_VALUE;
+        long decodeNanos = Long.MAX_VALUE;
+        int plainBytes = 0;
+
+        // Best of several rounds, the first of which warms up the compiler
+        for (int round = 0; round < ROUNDS; round++) {
+            buffer.clear();
+            long start = System.nanoTime();
+            for (int i = 0; i < trace.length; i++) {
+                FrameCodec.encodeValue(buffer, i, trace[i]);
+            }
+            plainNanos = Math.min(plainNanos, System.nanoTime() - start);
+            plainBytes = buffer.position();
+
+            encoder = new DeltaCodec(false);
+            buffer.clear();
+            start = System.nanoTime();
+            int sequence = 0;
+            for (int i = 0; i < trace.length; i += batchSize) {
+                int end = Math.min(trace.length, i + batchSize);
+                for (int next = i; next < end; ) {
+                    next += encoder.encode(buffer, sequence++, trace, next, end - next);
+                }
+            }
+            encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+
+            DeltaCodec decoder = new DeltaCodec(false);
+            Frame frame = new Frame();
+            buffer.flip();
+            start = System.nanoTime();
+            int offset = 0;
+            while (FrameCodec.decode(buffer, frame)) {
+                offset += decoder.decode(frame, decoded, offset);
+            }
+            decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+            if (offset != trace.length) {
+                throw new AssertionError(name + ": decoded " + offset + " of " + trace.length);
+            }
+        }
+        for (int i = 0; i < trace.length; i++) {
+            if (decoded[i] != trace[i]) {
+                throw new AssertionError(name + ": mismatch at " + i);
+            }
+        }
+
+        System.out.println(String.format(Locale.US,
+                "%-13s batch=%d plain_bytes_per_value=%.2f delta_bytes_per_value=%.2f"
+                        + " ratio=%.2f plain_encode_mvps=%.1f delta_encode_mvps=%.1f"
+                        + " delta_decode_mvps=%.1f",
+                name, batchSize,
+                (double) plainBytes / trace.length,
+                (double) encoder.getEncodedBytes() / trace.length,
+                (double) plainBytes / encoder.getEncodedBytes(),
+                trace.length * 1e3 / plainNanos,
+                trace.length * 1e3 / encodeNanos,
+                trace.length * 1e3 / decodeNanos));
+    }
+
+    /**
+     * Room temperature in hundredths of a degree: a slow random walk.
+     */
+    private static int[] temperature(int count, Random random) {
+        int[] trace = new int[count];
+        int value = 2150;
+        for (int i = 0; i < count; i++) {
+            value += random.nextInt(5) - 2;
+            trace[i] = value;
+        }
+        return trace;
+    }
+
+    /**
+     * One accelerometer axis in milli-g: gravity, a slow oscillation and noise.
+     */
+    private static int[] accelerometer(int count, Random random) {
+        int[] trace = new int[count];
+        for (int i = 0; i < count; i++) {
+            trace[i] = 1000 + (int) (40 * Math.sin(i / 50.0) + 8 * random.nextGaussian());
+        }
+        return trace;
+    }
+
+    /**
+     * A control between 0 and 100 that rests for a while, then is dragged.
+     */
+    private static int[] slider(int count, Random random) {
+        int[] trace = new int[count];
+        int value = 50;
+        int step = 0;
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(100) == 0) {
+                step = step == 0 ? random.nextInt(7) - 3 : 0;
+            }
+            value = Math.max(0, Math.min(100, value + step));
+            trace[i] = value;
+        }
+        return trace;
+    }
+
+    /**
+     * A cumulative meter reading, such as energy in watt-hours.
+     */
+    private static int[] counter(int count, Random random) {
+        int[] trace = new int[count];
+        int value = 1_500_000;
+        for (int i = 0; i < count; i++) {
+            value += random.nextInt(40);
+            trace[i] = value;
+        }
+        return trace;
+    }
+
+    /**
+     * Uncorrelated values, the worst case for delta encoding.
+     */
+    private static int[] uniform(int count, Random random) {
+        int[] trace = new int[count];
+        for (int i = 0; i < count; i++) {
+            trace[i] = random.nextInt();
+        }
+        return trace;
+    }
+}
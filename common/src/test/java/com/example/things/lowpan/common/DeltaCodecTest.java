@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DeltaCodecTest {
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(16 * FrameCodec.MAX_FRAME_SIZE);
+    private final DeltaCodec mEncoder = new DeltaCodec(false);
+    private final DeltaCodec mDecoder = new DeltaCodec(false);
+
+    @Test
+    public void keyFrameThenDeltas() throws ProtocolException {
+        assertEquals(3, mEncoder.encode(mBuffer, 1, new int[] { 1000, 1003, 998 }, 0, 3));
+        assertEquals(2, mEncoder.encode(mBuffer, 2, new int[] { 998, -20 }, 0, 2));
+
+        List<Frame> frames = decodeFrames();
+        assertEquals(2, frames.size());
+        assertEquals(FrameCodec.TYPE_VALUES, frames.get(0).getType());
+        assertEquals(FrameCodec.TYPE_DELTAS, frames.get(1).getType());
+        assertEquals(2, frames.get(1).getSequence());
+        assertArrayEquals(new int[] { 1000, 1003, 998, 998, -20 }, resolve(frames));
+        assertEquals(5, mEncoder.getValueCount());
+        assertEquals(mBuffer.limit(), mEncoder.getEncodedBytes());
+    }
+
+    @Test
+    public void resetStartsAgainFromAnAbsoluteValue() throws ProtocolException {
+        mEncoder.encode(mBuffer, 1, new int[] { 50 }, 0, 1);
+        mEncoder.encode(mBuffer, 2, new int[] { 51 }, 0, 1);
+        // A reconnect: the receiver's codec for the new stream has seen nothing
+        mEncoder.reset();
+        int start = mBuffer.position();
+        mEncoder.encode(mBuffer, 3, new int[] { 52 }, 0, 1);
+        mBuffer.flip().position(start);
+
+        Frame frame = new Frame();
+        assertTrue(FrameCodec.decode(mBuffer, frame));
+        assertEquals(FrameCodec.TYPE_VALUES, frame.getType());
+        int[] values = new int[1];
+        assertEquals(1, mDecoder.decode(frame, values, 0));
+        assertEquals(52, values[0]);
+    }
+
+    @Test
+    public void deltaWithoutAPrecedingValueIsRejected() throws ProtocolException {
+        mEncoder.encode(mBuffer, 1, new int[] { 50 }, 0, 1);
+        int start = mBuffer.position();
+        mEncoder.encode(mBuffer, 2, new int[] { 51 }, 0, 1);
+        mBuffer.flip().position(start);
+
+        Frame frame = new Frame();
+        assertTrue(FrameCodec.decode(mBuffer, frame));
+        try {
+            mDecoder.decode(frame, new int[1], 0);
+            fail("expected ProtocolException");
+        } catch (ProtocolException expected) {
+            // The receiver can't know what the delta is relative to
+        }
+    }
+
+    @Test
+    public void keyFramesOnlyNeverWritesDeltas() throws ProtocolException {
+        DeltaCodec encoder = new DeltaCodec(true);
+        encoder.encode(mBuffer, 1, new int[] { 7, 8 }, 0, 2);
+        encoder.encode(mBuffer, 2, new int[] { 9 }, 0, 1);
+
+        List<Frame> frames = decodeFrames();
+        for (Frame frame : frames) {
+            assertEquals(FrameCodec.TYPE_VALUES, frame.getType());
+        }
+        // Each frame decodes on its own, as a lost datagram requires
+        DeltaCodec decoder = new DeltaCodec(false);
+        int[] values = new int[1];
+        decoder.decode(frames.get(1), values, 0);
+        assertEquals(9, values[0]);
+    }
+
+    @Test
+    public void zigZagExtremesRoundTrip() throws ProtocolException {
+        int[] values = { Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, 0,
+                Integer.MAX_VALUE, -1, Integer.MIN_VALUE + 1 };
+        assertEquals(values.length, mEncoder.encode(mBuffer, 1, values, 0, values.length));
+        int[] more = { Integer.MAX_VALUE, Integer.MIN_VALUE };
+        assertEquals(2, mEncoder.encode(mBuffer, 2, more, 0, 2));
+
+        int[] resolved = resolve(decodeFrames());
+        assertArrayEquals(new int[] { Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                0, Integer.MAX_VALUE, -1, Integer.MIN_VALUE + 1, Integer.MAX_VALUE,
+                Integer.MIN_VALUE }, resolved);
+    }
+
+    @Test
+    public void batchLargerThanAFrameIsSplit() throws ProtocolException {
+        int[] values = new int[600];
+        for (int i = 0; i < values.length; i++) {
+            // Alternating large jumps, five bytes per entry
+            values[i] = (i % 2 == 0 ? 1 : -1) * (1 << 30) + i;
+        }
+        int sent = 0;
+        int sequence = 0;
+        while (sent < values.length) {
+            int written = mEncoder.encode(mBuffer, sequence++, values, sent, values.length - sent);
+            assertTrue(written > 0);
+            sent += written;
+        }
+
+        List<Frame> frames = decodeFrames();
+        assertTrue(frames.size() > 1);
+        for (Frame frame : frames) {
+            assertTrue(frame.getValueCount() <= FrameCodec.MAX_BATCH_VALUES);
+        }
+        assertArrayEquals(values, resolve(frames));
+    }
+
+    @Test
+    public void valuesThatDoNotFitAreLeftForTheNextFrame() {
+        int[] values = { 1, 2, 3 };
+        // Room for the header, sequence, count and two one-byte entries
+        mBuffer.limit(FrameCodec.HEADER_SIZE + 1 + 1 + 1 + 2);
+        assertEquals(2, mEncoder.encode(mBuffer, 1, values, 0, 3));
+        assertEquals(0, mEncoder.encode(mBuffer, 2, values, 2, 1));
+        assertEquals(mBuffer.limit(), mBuffer.position());
+    }
+
+    private List<Frame> decodeFrames() throws ProtocolException {
+        mBuffer.flip();
+        List<Frame> frames = new ArrayList<>();
+        Frame frame = new Frame();
+        while (FrameCodec.decode(mBuffer, frame)) {
+            frames.add(frame);
+            frame = new Frame();
+        }
+        assertEquals(0, mBuffer.remaining());
+        return frames;
+    }
+
+    private int[] resolve(List<Frame> frames) throws ProtocolException {
+        int[] values = new int[frames.size() * FrameCodec.MAX_BATCH_VALUES];
+        int count = 0;
+        for (Frame frame : frames) {
+            count += mDecoder.decode(frame, values, count);
+        }
+        return Arrays.copyOf(values, count);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.common;
+
+import java.lang.reflect.Method;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures how fast {@link FrameCodec} encodes and decodes single-value
+ * frames, and checks that neither allocates.
+ *
+ * Values are drawn so that every varint length and the fixed32 payload all
+ * occur. Run it on a regular JVM with:
+ *
+ * <pre>
+ * FrameCodecBenchmark [frames]
+ * </pre>
+ *
+ * Allocation is reported on JVMs that count it per thread, and as -1 elsewhere.
+ */
+public class FrameCodecBenchmark {
+    private static final int ROUNDS = 5;
+
+    // Per-thread allocation counter of HotSpot-based JVMs, looked up reflectively
+    private static final Object sThreadBean;
+    private static final Method sAllocatedBytes;
+
+    static {
+        Object bean = null;
+        Method method = null;
+        try {
+            bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            bean = null;
+        }
+        sThreadBean = bean;
+        sAllocatedBytes = method;
+    }
+
+    public static void main(String[] args) throws ProtocolException {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        Random random = new Random(42);
+        int[] values = new int[frames];
+        for (int i = 0; i < frames; i++) {
+            // Uniform over magnitudes rather than values, so short encodings are common
+            values[i] = random.nextInt() >> random.nextInt(32);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(frames * FrameCodec.MAX_VALUE_FRAME_SIZE);
+        Frame frame = new Frame();
+
+        long bestEncode = Long.MAX_VALUE;
+        long bestDecode = Long.MAX_VALUE;
+        long encodeBytes = Long.MAX_VALUE;
+        long decodeBytes = Long.MAX_VALUE;
+        long sink = 0;
+        // Best of several rounds, the first of which warms up the compiler
+        for (int round = 0; round < ROUNDS; round++) {
+            buffer.clear();
+            long startBytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                FrameCodec.encodeValue(buffer, i, values[i]);
+            }
+            bestEncode = Math.min(bestEncode, System.nanoTime() - start);
+            encodeBytes = Math.min(encodeBytes, allocatedBytes() - startBytes);
+
+            buffer.flip();
+            startBytes = allocatedBytes();
+            start = System.nanoTime();
+            while (FrameCodec.decode(buffer, frame)) {
+                sink += frame.getValue();
+            }
+            bestDecode = Math.min(bestDecode, System.nanoTime() - start);
+            decodeBytes = Math.min(decodeBytes, allocatedBytes() - startBytes);
+        }
+
+        System.out.println(String.format(Locale.US,
+                "frames=%d bytes_per_frame=%.2f encode_ns=%.1f decode_ns=%.1f"
+                        + " encode_alloc=%s decode_alloc=%s sink=%d",
+                frames, (double) buffer.limit() / frames,
+                (double) bestEncode / frames, (double) bestDecode / frames,
+                sAllocatedBytes == null ? "-1" : Long.toString(encodeBytes),
+                sAllocatedBytes == null ? "-1" : Long.toString(decodeBytes), sink));
+    }
+
+    private static long allocatedBytes() {
+        if (sAllocatedBytes == null) {
+            return 0;
+        }
+        try {
+            return (Long) sAllocatedBytes.invoke(sThreadBean, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+public class FrameCodecTest {
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(4 * FrameCodec.MAX_FRAME_SIZE);
+    private final Frame mFrame = new Frame();
+
+    @Test
+    public void roundTripsValues() throws ProtocolException {
+        int[] values = { 0, 1, -1, 63, -64, 1 << 20, -(1 << 20), (1 << 27) - 1,
+                1 << 27, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        int sequence = 0;
+        for (int value : values) {
+            mBuffer.clear();
+            int length = FrameCodec.encodeValue(mBuffer, sequence, value);
+            assertEquals(length, mBuffer.position());
+            mBuffer.flip();
+            assertTrue(FrameCodec.decode(mBuffer, mFrame));
+            assertTrue(FrameCodec.isValue(mFrame));
+            assertEquals(sequence, mFrame.getSequence());
+            assertEquals(value, mFrame.getValue());
+            assertEquals(0, mBuffer.remaining());
+            sequence += 1000;
+        }
+    }
+
+    @Test
+    public void picksTheShorterPayload() throws ProtocolException {
+        mBuffer.clear();
+        FrameCodec.encodeValue(mBuffer, 1, 5);
+        mBuffer.flip();
+        FrameCodec.decode(mBuffer, mFrame);
+        assertEquals(FrameCodec.TYPE_VARINT, mFrame.getType());
+
+        mBuffer.clear();
+        int length = FrameCodec.encodeValue(mBuffer, 1, Integer.MIN_VALUE);
+        mBuffer.flip();
+        FrameCodec.decode(mBuffer, mFrame);
+        assertEquals(FrameCodec.TYPE_FIXED32, mFrame.getType());
+        assertTrue(length <= FrameCodec.MAX_VALUE_FRAME_SIZE);
+    }
+
+    @Test
+    public void partialFrameIsNotConsumed() throws ProtocolException {
+        mBuffer.clear();
+        int length = FrameCodec.encodeValue(mBuffer, 7, 300);
+        for (int available = 0; available < length; available++) {
+            mBuffer.position(0).limit(available);
+            assertFalse(FrameCodec.decode(mBuffer, mFrame));
+            assertEquals(0, mBuffer.position());
+        }
+        mBuffer.position(0).limit(length);
+        assertTrue(FrameCodec.decode(mBuffer, mFrame));
+        assertEquals(300, mFrame.getValue());
+    }
+
+    @Test
+    public void decodesConsecutiveFrames() throws ProtocolException {
+        mBuffer.clear();
+        FrameCodec.encodeValue(mBuffer, 1, 10);
+        FrameCodec.encodeValue(mBuffer, 2, -20);
+        FrameCodec.encodeValue(mBuffer, 3, 30);
+        mBuffer.flip();
+        for (int expected : new int[] { 10, -20, 30 }) {
+            assertTrue(FrameCodec.decode(mBuffer, mFrame));
+            assertEquals(expected, mFrame.getValue());
+        }
+        assertFalse(FrameCodec.decode(mBuffer, mFrame));
+    }
+
+    @Test
+    public void skipsUnknownTypes() throws ProtocolException {
+        mBuffer.clear();
+        mBuffer.put(new byte[] { FrameCodec.VERSION, 4, 99, 1, 0x55, 0x55 });
+        FrameCodec.encodeValue(mBuffer, 2, 42);
+        mBuffer.flip();
+        assertTrue(FrameCodec.decode(mBuffer, mFrame));
+        assertEquals(99, mFrame.getType());
+        assertFalse(FrameCodec.isValue(mFrame));
+        assertTrue(FrameCodec.decode(mBuffer, mFrame));
+        assertEquals(42, mFrame.getValue());
+    }
+
+    @Test
+    public void rejectsUnsupportedVersion() {
+        expectProtocolException(new byte[] { 2, 3, FrameCodec.TYPE_VARINT, 1, 2 });
+    }
+
+    @Test
+    public void rejectsEmptyFrame() {
+        expectProtocolException(new byte[] { FrameCodec.VERSION, 0 });
+    }
+
+    @Test
+    public void rejectsTruncatedFixed32() {
+        expectProtocolException(new byte[] { FrameCodec.VERSION, 4, FrameCodec.TYPE_FIXED32, 1,
+                0, 0 });
+    }
+
+    @Test
+    public void rejectsVarintRunningPastTheFrame() {
+        // The payload varint continues into the next frame's bytes
+        expectProtocolException(new byte[] { FrameCodec.VERSION, 3, FrameCodec.TYPE_VARINT, 1,
+                (byte) 0x80, FrameCodec.VERSION, 3 });
+    }
+
+    private void expectProtocolException(byte[] bytes) {
+        try {
+            FrameCodec.decode(ByteBuffer.wrap(bytes), mFrame);
+            fail("expected ProtocolException");
+        } catch (ProtocolException expected) {
+            // Malformed input is reported, not misread
+        }
+    }
+}
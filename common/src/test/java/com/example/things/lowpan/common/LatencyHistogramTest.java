@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+public class LatencyHistogramTest {
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+    @Test
+    public void smallValuesHaveTheirOwnBuckets() {
+        for (int value = 0; value < 8; value++) {
+            assertEquals(value, LatencyHistogram.bucketFor(value));
+            assertEquals(value, LatencyHistogram.bucketUpperBound(value));
+        }
+        // From 8 up, each bucket covers a quarter of its power of two
+        assertEquals(8, LatencyHistogram.bucketFor(9));
+        assertEquals(9, LatencyHistogram.bucketUpperBound(8));
+        assertEquals(9, LatencyHistogram.bucketFor(10));
+    }
+
+    @Test
+    public void bucketsCoverEveryValueWithinAQuarter() {
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            for (long v = value - 1; v <= value + 1; v++) {
+                int bucket = LatencyHistogram.bucketFor(v);
+                long upper = LatencyHistogram.bucketUpperBound(bucket);
+                assertTrue(v + " above its bucket", v <= upper);
+                if (bucket > 0) {
+                    assertTrue(v + " in a later bucket",
+                            v > LatencyHistogram.bucketUpperBound(bucket - 1));
+                }
+                assertTrue(v + " bucket too wide", upper - v <= v / 4);
+            }
+        }
+    }
+
+    @Test
+    public void topBucketEndsAtTheLargestLong() {
+        int top = LatencyHistogram.bucketFor(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(top));
+        long belowTop = LatencyHistogram.bucketUpperBound(top - 1);
+        assertTrue(belowTop > 0);
+        assertEquals(top, LatencyHistogram.bucketFor(belowTop + 1));
+    }
+
+    @Test
+    public void percentilesAreCappedAtTheMaximum() {
+        for (int value = 1; value <= 100; value++) {
+            mHistogram.record(value);
+        }
+        assertEquals(100, mHistogram.getCount());
+        assertEquals(100, mHistogram.getMax());
+        long p50 = mHistogram.getPercentile(0.50);
+        assertTrue("p50=" + p50, p50 >= 50 && p50 <= 62);
+        // The bucket of 99 reaches 111, but nothing above 100 was recorded
+        assertEquals(100, mHistogram.getPercentile(0.99));
+        assertEquals(100, mHistogram.getPercentile(1.0));
+        assertEquals(1, mHistogram.getPercentile(0.0));
+    }
+
+    @Test
+    public void emptyAndNegative() {
+        assertEquals(0, mHistogram.getPercentile(0.99));
+        mHistogram.record(-5);
+        assertEquals(1, mHistogram.getCount());
+        assertEquals(0, mHistogram.getMax());
+        assertEquals(0, mHistogram.getPercentile(0.5));
+    }
+
+    @Test
+    public void appendsKeyValuePairs() {
+        mHistogram.record(3);
+        mHistogram.record(7);
+        StringBuilder builder = new StringBuilder();
+        mHistogram.appendTo(builder, "rtt_");
+        assertEquals("rtt_n=2 rtt_p50=3 rtt_p99=7 rtt_max=7", builder.toString());
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException {
+        int threads = 4;
+        int perThread = 100_000;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    mHistogram.record(i * threads + offset);
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long total = (long) threads * perThread;
+        assertEquals(total, mHistogram.getCount());
+        assertEquals(total - 1, mHistogram.getMax());
+        long p50 = mHistogram.getPercentile(0.5);
+        assertTrue("p50=" + p50, p50 >= total / 2 - 1 && p50 <= total / 2 * 5 / 4);
+    }
+}
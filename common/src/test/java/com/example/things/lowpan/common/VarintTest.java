@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+public class VarintTest {
+
+    @Test
+    public void roundTripsEdgeValues() throws ProtocolException {
+        int[] values = { 0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, 0x1FFFFF, 0x200000,
+                0xFFFFFFF, 0x10000000, Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+        ByteBuffer buffer = ByteBuffer.allocate(Varint.MAX_SIZE);
+        for (int value : values) {
+            buffer.clear();
+            Varint.put(buffer, value);
+            assertEquals("size of " + value, Varint.size(value), buffer.position());
+            buffer.flip();
+            assertEquals(value, Varint.get(buffer));
+            assertEquals(0, buffer.remaining());
+        }
+    }
+
+    @Test
+    public void zigZagKeepsSmallMagnitudesShort() {
+        assertEquals(0, Varint.zigZag(0));
+        assertEquals(1, Varint.zigZag(-1));
+        assertEquals(2, Varint.zigZag(1));
+        assertEquals(1, Varint.size(Varint.zigZag(-64)));
+        for (int value : new int[] { 0, 1, -1, 12345, -12345,
+                Integer.MAX_VALUE, Integer.MIN_VALUE }) {
+            assertEquals(value, Varint.unZigZag(Varint.zigZag(value)));
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedVarint() {
+        expectProtocolException(ByteBuffer.wrap(new byte[] { (byte) 0x80, (byte) 0x80 }));
+    }
+
+    @Test
+    public void rejectsOverlongVarint() {
+        byte[] bytes = new byte[Varint.MAX_SIZE + 1];
+        java.util.Arrays.fill(bytes, (byte) 0xFF);
+        expectProtocolException(ByteBuffer.wrap(bytes));
+    }
+
+    private static void expectProtocolException(ByteBuffer in) {
+        try {
+            Varint.get(in);
+            fail("expected ProtocolException");
+        } catch (ProtocolException expected) {
+            // Malformed input is reported, not misread
+        }
+    }
+}
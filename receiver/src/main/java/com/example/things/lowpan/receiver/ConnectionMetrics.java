@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import com.example.things.lowpan.common.LatencyHistogram;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timing histograms for one connection of the {@link ValueServer}.
+ *
+ * Recorded by the server thread and readable from any thread; recording only
+ * uses atomic operations, so a reader never blocks the server.
+ */
+public class ConnectionMetrics {
+    private final int mConnectionId;
+    private final SocketAddress mAddress;
+    private final long mOpenedNanos;
+
+    private final AtomicLong mMessageCount = new AtomicLong();
+    private final AtomicLong mByteCount = new AtomicLong();
+    private final LatencyHistogram mInterArrivalMicros = new LatencyHistogram();
+    private final LatencyHistogram mDispatchMicros = new LatencyHistogram();
+    // Only written by the server thread
+    private long mLastArrivalNanos;
+
+    ConnectionMetrics(int connectionId, SocketAddress address, long nowNanos) {
+        mConnectionId = connectionId;
+        mAddress = address;
+        mOpenedNanos = nowNanos;
+    }
+
+    /**
+     * Record one read from the connection.
+     *
+     * @param arrivalNanos {@link System#nanoTime()} when the read completed.
+     * @param bytes Number of bytes read.
+     * @param messages Number of values decoded from those bytes.
+     */
+    void recordRead(long arrivalNanos, int bytes, int messages) {
+        mByteCount.addAndGet(bytes);
+        mMessageCount.addAndGet(messages);
+        if (mLastArrivalNanos != 0) {
+            mInterArrivalMicros.record((arrivalNanos - mLastArrivalNanos) / 1000);
+        }
+        mLastArrivalNanos = arrivalNanos;
+    }
+
+    /**
+     * Record how long it took to hand a batch of values to the listener.
+     */
+    void recordDispatch(long durationNanos) {
+        mDispatchMicros.record(durationNanos / 1000);
+    }
+
+    public int getConnectionId() {
+        return mConnectionId;
+    }
+
+    public long getMessageCount() {
+        return mMessageCount.get();
+    }
+
+    public long getByteCount() {
+        return mByteCount.get();
+    }
+
+    /**
+     * Returns the time between consecutive reads, in microseconds.
+     */
+    public LatencyHistogram getInterArrivalMicros() {
+        return mInterArrivalMicros;
+    }
+
+    /**
+     * Returns the time spent dispatching each batch to the listener, in microseconds.
+     */
+    public LatencyHistogram getDispatchMicros() {
+        return mDispatchMicros;
+    }
+
+    /**
+     * Returns the metrics as a single line of space-separated {@code key=value} pairs.
+     */
+    @Override
+    public String toString() {
+        long ageMillis = (System.nanoTime() - mOpenedNanos) / 1_000_000;
+        StringBuilder builder = new StringBuilder(256)
+                .append("conn=").append(mConnectionId)
+                .append(" addr=").append(mAddress)
+                .append(" age_ms=").append(ageMillis)
+                .append(" msgs=").append(getMessageCount())
+                .append(" bytes=").append(getByteCount())
+                .append(' ');
+        mInterArrivalMicros.appendTo(builder, "iat_us_").append(' ');
+        mDispatchMicros.appendTo(builder, "dispatch_us_");
+        return builder.toString();
+    }
+}
@@ -19,22 +19,35 @@ package com.example.things.lowpan.receiver;
 import android.app.Activity;
 import android.os.Handler;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 import android.widget.TextView;
+import com.example.things.lowpan.common.ChannelAnalyzer;
 import com.google.android.things.contrib.driver.ht16k33.AlphanumericDisplay;
 import com.google.android.things.contrib.driver.ht16k33.Ht16k33;
 import com.google.android.things.contrib.driver.lowpan.UartLowpanDriver;
 import com.google.android.things.contrib.driver.rainbowhat.RainbowHat;
+import com.google.android.things.lowpan.LowpanBeaconInfo;
 import com.google.android.things.lowpan.LowpanCredential;
+import com.google.android.things.lowpan.LowpanEnergyScanResult;
 import com.google.android.things.lowpan.LowpanException;
 import com.google.android.things.lowpan.LowpanIdentity;
 import com.google.android.things.lowpan.LowpanInterface;
 import com.google.android.things.lowpan.LowpanInterface.Callback;
 import com.google.android.things.lowpan.LowpanManager;
 import com.google.android.things.lowpan.LowpanProvisioningParams;
+import com.google.android.things.lowpan.LowpanScanner;
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ReceiverActivity extends Activity {
     private static final String TAG = ReceiverActivity.class.getSimpleName();
@@ -45,8 +58,12 @@ public class ReceiverActivity extends Activity {
 
     // Network info
     private static final int SERVER_PORT = 23456;
+    // Also receive datagrams sent to this IPv6 multicast group, such as "ff03::1", or null
+    private static final String MULTICAST_GROUP = null;
     private static final String LOWPAN_KEY = "FC4262D8F8F79502ABCD326356C610A5";
     private static final String LOWPAN_NETWORK = "lowpan_sample";
+    // Longest time to survey the channels before forming the network anyway
+    private static final long SURVEY_TIMEOUT_MS = 30_000;
 
     // Strings to display on the segment display
     private static final String DISPLAY_CONN =  "CONN";
@@ -57,14 +74,56 @@ public class ReceiverActivity extends Activity {
     private static final String DISPLAY_ERROR = "ERR!";
     private static final String DISPLAY_WAIT  = "WAIT";
 
+    // Upper bound on how often received values are drawn
+    private static final int MAX_DISPLAY_FPS = 10;
+    // Number of recent samples kept for each connection
+    private static final int HISTORY_CAPACITY = 1024;
+    // Window summarized in the log when a connection closes
+    private static final long HISTORY_SUMMARY_WINDOW_MS = 60_000;
+
+    // Persistent log of received values
+    private static final String VALUE_LOG_DIRECTORY = "values";
+    private static final int VALUE_LOG_RECORDS_PER_SEGMENT = 64 * 1024;
+    private static final int VALUE_LOG_MAX_SEGMENTS = 16;
+    private static final long VALUE_LOG_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    // Hand-off of received values from the server thread to the main thread
+    private static final int VALUE_QUEUE_CAPACITY = 1024;
+    private static final ValueQueue.OverloadPolicy VALUE_QUEUE_POLICY =
+            ValueQueue.OverloadPolicy.DROP_OLDEST;
+
+    // How often connection metrics are written to logcat
+    private static final long METRICS_DUMP_INTERVAL_MS = 10_000;
+
     private UartLowpanDriver mLowpanDriver;
 
-    private ServerSocket mServerSocket;
+    private ValueServer mValueServer;
     private Handler mHandler;
+    // Channel survey run before forming the network, null when none is running
+    private LowpanScanner mSurveyScanner;
+    private ChannelAnalyzer mSurveyAnalyzer;
+    private boolean mSurveyEnergy;
+    // Number of UI updates posted to mHandler that have not run yet; the drain and
+    // render tasks are tracked by their own flags
+    private final AtomicInteger mPendingPosts = new AtomicInteger();
     private Thread mServerThread;
-    private Thread mSocketThread;
+    private ValueRenderer mValueRenderer;
+    private final ValueQueue mValueQueue =
+            new ValueQueue(VALUE_QUEUE_CAPACITY, VALUE_QUEUE_POLICY);
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private final int[] mDrainSources = new int[VALUE_QUEUE_CAPACITY];
+    private final int[] mDrainValues = new int[VALUE_QUEUE_CAPACITY];
+    // Recent values per connection, only accessed on the main thread
+    private final SparseArray<ValueHistory> mHistory = new SparseArray<>();
+    private final ValueHistory.Summary mHistorySummary = new ValueHistory.Summary();
+    // Persistent copy of every value, only accessed on the server thread
+    private ValueLog mValueLog;
+    // Forces the value log to storage and applies its retention, off the server thread
+    private ExecutorService mValueLogExecutor;
+    private int mLastReplayedValue;
     private AlphanumericDisplay mSegmentDisplay;
     private TextView mStatus;
+    private TextView mMessage;
 
     private LowpanManager mLowpanManager;
     private LowpanInterface mLowpanInterface;
@@ -74,6 +133,7 @@ public class ReceiverActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_receiver);
         mStatus = findViewById(R.id.lowpan_status);
+        mMessage = findViewById(R.id.lowpan_message);
 
         mLowpanManager = LowpanManager.getInstance();
         try {
@@ -83,6 +143,7 @@ public class ReceiverActivity extends Activity {
         }
 
         mHandler = new Handler();
+        mValueRenderer = new ValueRenderer(mHandler, MAX_DISPLAY_FPS, this::renderValue);
         try {
             // Open the segment display
             mSegmentDisplay = RainbowHat.openDisplay();
@@ -142,23 +203,27 @@ public class ReceiverActivity extends Activity {
 
         // Detach LoWPAN callbacks
         mLowpanManager.unregisterCallback(mInterfaceCallback);
+        mHandler.removeCallbacks(mSurveyTimeoutRunnable);
+        if (mSurveyScanner != null) {
+            mSurveyScanner.stopNetScan();
+            mSurveyScanner.stopEnergyScan();
+            mSurveyScanner = null;
+        }
         if (mLowpanInterface != null) {
             mLowpanInterface.unregisterCallback(mStateCallback);
             mLowpanInterface = null;
         }
 
-        // Close the server thread
-        if (mServerThread != null) {
-            mServerThread.interrupt();
-            mServerThread = null;
-        }
-        // Close network socket
-        try {
-            mServerSocket.close();
-            mServerSocket = null;
-        } catch (IOException e) {
-            e.printStackTrace();
+        // Close the server and all of its connections
+        mValueQueue.close();
+        if (mValueServer != null) {
+            mValueServer.stop();
+            mValueServer = null;
         }
+        mServerThread = null;
+        mValueRenderer.cancel();
+        mHandler.removeCallbacks(mDumpMetricsRunnable);
+        mHandler.removeCallbacks(mDrainQueueRunnable);
         // Close segment display
         try {
             mSegmentDisplay.display(DISPLAY_EMPTY);
@@ -220,18 +285,111 @@ public class ReceiverActivity extends Activity {
             return;
         }
 
-        Log.i(TAG, "Forming demo network");
+        if (mSurveyScanner != null) return;
+
+        // Survey the channels first, then form on the quietest one
+        Log.i(TAG, "Surveying channels for the demo network");
         onNewValue(DISPLAY_WAIT);
-        params = new LowpanProvisioningParams.Builder()
-                .setLowpanIdentity(new LowpanIdentity.Builder()
-                        .setName(LOWPAN_NETWORK)
-                        .build())
-                .setLowpanCredential(LowpanCredential.createMasterKey(LOWPAN_KEY))
-                .build();
-
-        mLowpanInterface.form(params);
+        mSurveyAnalyzer = new ChannelAnalyzer();
+        mSurveyEnergy = false;
+        mSurveyScanner = mLowpanInterface.createScanner();
+        mSurveyScanner.setCallback(mHandler, mSurveyCallback);
+        mHandler.postDelayed(mSurveyTimeoutRunnable, SURVEY_TIMEOUT_MS);
+        try {
+            mSurveyScanner.startNetScan();
+        } catch (LowpanException e) {
+            // Leave no survey behind, so the next attempt starts a new one
+            mHandler.removeCallbacks(mSurveyTimeoutRunnable);
+            mSurveyScanner = null;
+            mSurveyAnalyzer = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the channel survey and form the demo network on the channel and
+     * PAN ID it picked. Both are left to the stack if nothing was heard.
+     */
+    private void finishSurvey() {
+        if (mSurveyScanner == null) return;
+        mHandler.removeCallbacks(mSurveyTimeoutRunnable);
+        mSurveyScanner.stopNetScan();
+        mSurveyScanner.stopEnergyScan();
+        mSurveyScanner = null;
+
+        LowpanIdentity.Builder identity = new LowpanIdentity.Builder().setName(LOWPAN_NETWORK);
+        try {
+            if (mSurveyAnalyzer.hasSamples()) {
+                int channel = mSurveyAnalyzer.pickChannel(mLowpanInterface.getSupportedChannels());
+                if (channel >= 0) {
+                    int panid = mSurveyAnalyzer.pickPanid(new Random());
+                    Log.i(TAG, "Channel scores: " + mSurveyAnalyzer);
+                    Log.i(TAG, "Picked channel " + channel
+                            + " and PAN ID " + Integer.toHexString(panid));
+                    identity.setChannel(channel);
+                    if (panid >= 0) {
+                        identity.setPanid(panid);
+                    }
+                }
+            }
+
+            Log.i(TAG, "Forming demo network");
+            LowpanProvisioningParams params = new LowpanProvisioningParams.Builder()
+                    .setLowpanIdentity(identity.build())
+                    .setLowpanCredential(LowpanCredential.createMasterKey(LOWPAN_KEY))
+                    .build();
+
+            mLowpanInterface.form(params);
+        } catch (LowpanException e) {
+            onNewValue(DISPLAY_ERROR);
+            onStatusChanged(e.getMessage());
+            Log.e(TAG, "Unable to form LoWPAN network", e);
+        }
     }
 
+    /**
+     * Collect beacons and then energy samples for the channel survey.
+     */
+    private LowpanScanner.Callback mSurveyCallback = new LowpanScanner.Callback() {
+        @Override
+        public void onNetScanBeacon(LowpanBeaconInfo beacon) {
+            LowpanIdentity identity = beacon.getLowpanIdentity();
+            mSurveyAnalyzer.addBeacon(identity.getChannel(), identity.getPanid(),
+                    beacon.getRssi());
+        }
+
+        @Override
+        public void onEnergyScanResult(LowpanEnergyScanResult result) {
+            mSurveyAnalyzer.addEnergy(result.getChannel(), result.getMaxRssi());
+        }
+
+        @Override
+        public void onScanFinished() {
+            if (mSurveyScanner == null) return;
+            if (!mSurveyEnergy) {
+                mSurveyEnergy = true;
+                try {
+                    mSurveyScanner.startEnergyScan();
+                    return;
+                } catch (LowpanException e) {
+                    Log.w(TAG, "Energy scan failed, using beacons only", e);
+                }
+            }
+            finishSurvey();
+        }
+    };
+
+    /**
+     * Form the network with whatever the survey collected so far.
+     */
+    private Runnable mSurveyTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "Channel survey timed out");
+            finishSurvey();
+        }
+    };
+
     /**
      * Callback to react to state changes in the LoWPAN interface
      */
@@ -244,8 +402,20 @@ public class ReceiverActivity extends Activity {
                 onStatusChanged(getString(R.string.ready));
 
                 // Start a new thread to handle network events
-                mServerThread = new Thread(new ServerThread());
-                mServerThread.start();
+                if (mServerThread == null) {
+                    ValueServer server = new ValueServer(SERVER_PORT, mServerListener);
+                    mValueServer = server;
+                    String interfaceName = mLowpanInterface.getName();
+                    mServerThread = new Thread(() -> {
+                        joinMulticastGroup(server, interfaceName);
+                        openValueLog();
+                        server.run();
+                        closeValueLog();
+                    }, "ValueServer");
+                    mServerThread.start();
+                    Log.i(TAG, "Listening for incoming connections");
+                    mHandler.postDelayed(mDumpMetricsRunnable, METRICS_DUMP_INTERVAL_MS);
+                }
             }
         }
 
@@ -257,30 +427,13 @@ public class ReceiverActivity extends Activity {
         }
     };
 
-    /**
-     * Callback that is run when a new device connects to this device.
-     *
-     * @param socket The network socket that they are connected to.
-     */
-    private void onNewConnection(Socket socket) {
-        // A new device is connected
-        onNewValue(DISPLAY_CONN);
-        onStatusChanged(getString(R.string.connected));
-        if (mSocketThread != null) {
-            mSocketThread.interrupt();
-            mSocketThread = null;
-        }
-        mSocketThread = new Thread(new SocketThread(socket));
-        mSocketThread.start();
-    }
-
     /**
      * Callback that is run when a new value is received from another device.
      *
      * @param value The value that was received.
      */
     private void onNewValue(String value) {
-        mHandler.post(() -> {
+        postToMainThread(() -> {
             try {
                 // Update the value on the segment display
                 mSegmentDisplay.setBrightness(Ht16k33.HT16K33_BRIGHTNESS_MAX);
@@ -297,81 +450,229 @@ public class ReceiverActivity extends Activity {
      * @param status The new connection status.
      */
     private void onStatusChanged(String status) {
-        mHandler.post(() -> {
+        postToMainThread(() -> {
             // Update the connection status on the TextView
             mStatus.setText(status);
         });
     }
 
     /**
-     * Task to accept incoming socket connections.
+     * Post a task to the main thread, tracking how many are waiting to run.
+     */
+    private void postToMainThread(Runnable task) {
+        mPendingPosts.incrementAndGet();
+        mHandler.post(() -> {
+            mPendingPosts.decrementAndGet();
+            task.run();
+        });
+    }
+
+    /**
+     * Write a snapshot of the receiver and per-connection metrics to logcat,
+     * one line each of space-separated {@code key=value} pairs.
      */
-    private class ServerThread implements Runnable {
+    private void dumpMetrics() {
+        ValueServer server = mValueServer;
+        if (server == null) {
+            return;
+        }
+        // Tasks waiting to run on the main thread, not counting delayed timers
+        int handlerQueue = mPendingPosts.get()
+                + (mDrainScheduled.get() ? 1 : 0)
+                + (mValueRenderer.isFramePending() ? 1 : 0);
+        Log.i(TAG, "metrics handler_queue=" + handlerQueue
+                + " value_queue=" + mValueQueue.size()
+                + " value_queue_dropped=" + mValueQueue.getDroppedCount()
+                + " value_queue_stalls=" + mValueQueue.getStallCount()
+                + " value_queue_stall_ms=" + mValueQueue.getStallNanos() / 1_000_000
+                + " render_frames=" + mValueRenderer.getRenderedCount()
+                + " render_dropped=" + mValueRenderer.getDroppedCount()
+                + " stale_datagrams=" + server.getStaleDatagramCount()
+                + " subscribers=" + server.getSubscriberCount()
+                + " relayed=" + server.getRelayedCount()
+                + " relay_dropped=" + server.getRelayDroppedCount());
+        for (ConnectionMetrics metrics : server.getMetrics()) {
+            Log.i(TAG, "metrics " + metrics);
+        }
+    }
+
+    /**
+     * Task to periodically dump metrics while the server is running.
+     */
+    private Runnable mDumpMetricsRunnable = new Runnable() {
         @Override
         public void run() {
-            try {
-                // Connect to socket
-                mServerSocket = new ServerSocket(SERVER_PORT);
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to start server socket", e);
-                return;
+            dumpMetrics();
+            if (mValueServer != null) {
+                mHandler.postDelayed(this, METRICS_DUMP_INTERVAL_MS);
             }
+        }
+    };
 
-            Log.i(TAG, "Listening for incoming connections");
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    Socket socket = mServerSocket.accept();
-                    onNewConnection(socket);
-                } catch (IOException e) {
-                    Log.e(TAG, "Unable to start new socket connection", e);
+    /**
+     * Task to move queued values to the main thread's history and display.
+     */
+    private Runnable mDrainQueueRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Clear first, so values queued from here on schedule another drain
+            mDrainScheduled.set(false);
+            int count = mValueQueue.drainTo(mDrainSources, mDrainValues);
+            long now = SystemClock.elapsedRealtime();
+            for (int i = 0; i < count; i++) {
+                ValueHistory history = mHistory.get(mDrainSources[i]);
+                if (history == null) {
+                    // First values of this connection; an idle spare connection never gets here
+                    history = new ValueHistory(HISTORY_CAPACITY);
+                    mHistory.put(mDrainSources[i], history);
+                    onNewValue(DISPLAY_CONN);
                 }
+                history.append(now, mDrainValues[i]);
             }
-            if (Thread.currentThread() == mServerThread) {
-                mServerThread = null;
+            // Only the newest value is drawn; the rest are conflated away
+            mValueRenderer.offer(mDrainValues, count);
+        }
+    };
+
+    /**
+     * Configure the server to receive the multicast group on the LoWPAN interface,
+     * before it starts running.
+     */
+    private void joinMulticastGroup(ValueServer server, String interfaceName) {
+        if (MULTICAST_GROUP == null) {
+            return;
+        }
+        try {
+            server.setMulticastGroup(InetAddress.getByName(MULTICAST_GROUP),
+                    NetworkInterface.getByName(interfaceName));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to join multicast group " + MULTICAST_GROUP, e);
+        }
+    }
+
+    /**
+     * Open the persistent value log and show the last value it holds.
+     * Runs on the server thread before any connection is accepted.
+     */
+    private void openValueLog() {
+        mValueLogExecutor = Executors.newSingleThreadExecutor();
+        try {
+            mValueLog = new ValueLog(new File(getFilesDir(), VALUE_LOG_DIRECTORY),
+                    VALUE_LOG_RECORDS_PER_SEGMENT, VALUE_LOG_MAX_SEGMENTS, VALUE_LOG_MAX_AGE_MS,
+                    mValueLogExecutor);
+            // Only the newest record is read, however long the log is
+            if (mValueLog.last((timestamp, source, value) -> mLastReplayedValue = value)) {
+                Log.i(TAG, "Showing the last logged value");
+                mValueRenderer.offer(mLastReplayedValue);
             }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open value log", e);
+            mValueLog = null;
+        }
+    }
+
+    /**
+     * Write the value log through to storage and close it.
+     */
+    private void closeValueLog() {
+        if (mValueLog != null) {
+            mValueLog.close();
+            mValueLog = null;
+        }
+        if (mValueLogExecutor != null) {
+            // Let queued forces and retention finish on their own
+            mValueLogExecutor.shutdown();
+            mValueLogExecutor = null;
         }
     }
 
     /**
-     * Task to receive data on a given connection
+     * Draw the latest received value, invoked by the {@link ValueRenderer} on the main thread.
+     *
+     * @param value The value to display.
      */
-    private class SocketThread implements Runnable {
-        private final Socket mSocket;
+    private void renderValue(int value) {
+        String receivedMessage = Integer.toString(value);
+        try {
+            // Display the value on the segment display
+            mSegmentDisplay.setBrightness(Ht16k33.HT16K33_BRIGHTNESS_MAX);
+            mSegmentDisplay.display(receivedMessage);
+        } catch (IOException | NullPointerException e) {
+            Log.e(TAG, "Unable to change segment display", e);
+        }
+        // Display the value on the screen
+        mMessage.setText(receivedMessage);
+    }
 
-        SocketThread(Socket socket) {
-            mSocket = socket;
+    /**
+     * Log a summary of a closed connection's recent values and discard its history.
+     */
+    private void summarizeHistory(int connectionId) {
+        ValueHistory history = mHistory.get(connectionId);
+        if (history != null) {
+            long now = SystemClock.elapsedRealtime();
+            history.summarize(now - HISTORY_SUMMARY_WINDOW_MS, now + 1, mHistorySummary);
+            Log.i(TAG, "Connection " + connectionId + " last minute: "
+                    + mHistorySummary.count + " values, min " + mHistorySummary.min
+                    + ", max " + mHistorySummary.max + ", mean " + mHistorySummary.mean());
+            mHistory.remove(connectionId);
         }
+    }
 
+    /**
+     * Handle connection events and values from the {@link ValueServer} thread.
+     */
+    private ValueServer.Listener mServerListener = new ValueServer.Listener() {
         @Override
-        public void run() {
-            while (!Thread.currentThread().isInterrupted()) {
+        public void onConnectionOpened(int connectionId, SocketAddress address) {
+            // A new device is connected
+            Log.i(TAG, "Connection " + connectionId + " opened from " + address);
+            // The connection is shown and given a history when its first values arrive
+            onStatusChanged(getString(R.string.connected));
+        }
+
+        @Override
+        public void onValues(int connectionId, int[] values, int count) {
+            if (mValueLog != null) {
+                long timestamp = System.currentTimeMillis();
                 try {
-                    // A new message is received on the network
-                    int value = mSocket.getInputStream().read();
-                    String receivedMessage = Integer.toString(value);
-                    if (value >= 0) {
-                        // Display the value on the segment display
-                        onNewValue(receivedMessage);
-                        // Display the value on the screen
-                        mHandler.post(() -> {
-                            TextView textView = findViewById(R.id.lowpan_message);
-                            textView.setText(receivedMessage);
-                        });
-                    } else {
-                        break;
+                    for (int i = 0; i < count; i++) {
+                        mValueLog.append(timestamp, connectionId, values[i]);
                     }
                 } catch (IOException e) {
-                    Log.e(TAG, "Error reading from socket", e);
-                    break;
+                    Log.e(TAG, "Unable to write value log, disabling it", e);
+                    closeValueLog();
                 }
             }
+            // Hand the values to the main thread, subject to the queue's overload policy
+            for (int i = 0; i < count; i++) {
+                mValueQueue.offer(connectionId, values[i]);
+            }
+            if (mDrainScheduled.compareAndSet(false, true)) {
+                mHandler.post(mDrainQueueRunnable);
+            }
+        }
 
-            // Thread was interrupted
-            onNewValue(DISPLAY_INTER);
-            onStatusChanged(getString(R.string.socket_interrupted));
-            if (Thread.currentThread() == mSocketThread) {
-                mSocketThread = null;
+        @Override
+        public void onConnectionClosed(int connectionId) {
+            Log.i(TAG, "Connection " + connectionId + " closed");
+            ValueServer server = mValueServer;
+            ConnectionMetrics metrics = server != null ? server.getMetrics(connectionId) : null;
+            if (metrics != null) {
+                Log.i(TAG, "metrics " + metrics);
+            }
+            // Runs after any drain already scheduled for this connection's values
+            postToMainThread(() -> summarizeHistory(connectionId));
+            // Datagram sources keep sending without a connection
+            if (server != null && server.getSourceCount() == 0) {
+                onNewValue(DISPLAY_INTER);
+                onStatusChanged(getString(R.string.socket_interrupted));
             }
         }
-    }
-}
\ No newline at end of file
+
+        @Override
+        public void onError(String message, IOException e) {
+            Log.e(TAG, message, e);
+        }
+    };
+}
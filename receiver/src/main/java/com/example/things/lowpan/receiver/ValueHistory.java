@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+/**
+ * Fixed-capacity history of timestamped values from one source.
+ *
+ * Samples are stored in parallel primitive arrays used as a ring buffer, so
+ * appending never allocates and the oldest sample is overwritten once the
+ * buffer is full. Timestamps are expected to be appended in non-decreasing
+ * order, which lets range queries locate a window with a binary search.
+ *
+ * This class is not thread-safe; confine each instance to a single thread.
+ */
+public class ValueHistory {
+
+    /**
+     * Reusable aggregate of the samples in a time window.
+     */
+    public static class Summary {
+        public int count;
+        public int min;
+        public int max;
+        public long sum;
+
+        /**
+         * Returns the mean of the summarized values, or 0 if there were none.
+         */
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+    }
+
+    private final long[] mTimestamps;
+    private final int[] mValues;
+    // Physical index of the oldest sample
+    private int mStart;
+    private int mSize;
+
+    /**
+     * @param capacity Maximum number of samples retained.
+     */
+    public ValueHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mTimestamps = new long[capacity];
+        mValues = new int[capacity];
+    }
+
+    /**
+     * Returns the maximum number of samples retained.
+     */
+    public int capacity() {
+        return mValues.length;
+    }
+
+    /**
+     * Returns the number of samples currently held.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Remove all samples.
+     */
+    public void clear() {
+        mStart = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Add a sample, overwriting the oldest one if the history is full.
+     */
+    public void append(long timestamp, int value) {
+        int index;
+        if (mSize < mValues.length) {
+            index = physical(mSize);
+            mSize++;
+        } else {
+            index = mStart;
+            mStart = physical(1);
+        }
+        mTimestamps[index] = timestamp;
+        mValues[index] = value;
+    }
+
+    /**
+     * Returns the timestamp of a sample, where index 0 is the oldest.
+     */
+    public long getTimestamp(int index) {
+        checkIndex(index);
+        return mTimestamps[physical(index)];
+    }
+
+    /**
+     * Returns the value of a sample, where index 0 is the oldest.
+     */
+    public int getValue(int index) {
+        checkIndex(index);
+        return mValues[physical(index)];
+    }
+
+    /**
+     * Returns the index of the oldest sample with a timestamp at or after
+     * {@code timestamp}, or {@link #size()} if there is none.
+     */
+    public int indexOf(long timestamp) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTimestamps[physical(mid)] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copy the samples with timestamps in {@code [from, to)} into the given
+     * arrays, oldest first, stopping when the arrays are full.
+     *
+     * @return The number of samples copied.
+     */
+    public int copyRange(long from, long to, long[] timestamps, int[] values) {
+        int max = Math.min(timestamps.length, values.length);
+        int count = 0;
+        for (int i = indexOf(from); i < mSize && count < max; i++) {
+            int index = physical(i);
+            if (mTimestamps[index] >= to) {
+                break;
+            }
+            timestamps[count] = mTimestamps[index];
+            values[count] = mValues[index];
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Aggregate the samples with timestamps in {@code [from, to)}.
+     *
+     * @param summary Holder that receives the result; its previous contents are discarded.
+     * @return The {@code summary} argument, for chaining.
+     */
+    public Summary summarize(long from, long to, Summary summary) {
+        summary.count = 0;
+        summary.min = Integer.MAX_VALUE;
+        summary.max = Integer.MIN_VALUE;
+        summary.sum = 0;
+        for (int i = indexOf(from); i < mSize; i++) {
+            int index = physical(i);
+            if (mTimestamps[index] >= to) {
+                break;
+            }
+            int value = mValues[index];
+            summary.count++;
+            summary.sum += value;
+            if (value < summary.min) summary.min = value;
+            if (value > summary.max) summary.max = value;
+        }
+        return summary;
+    }
+
+    private int physical(int index) {
+        int physical = mStart + index;
+        return physical < mValues.length ? physical : physical - mValues.length;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+    }
+}
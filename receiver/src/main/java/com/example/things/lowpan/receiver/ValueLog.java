@@ -0,0 +1,414 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Append-only log of received values, persisted in segment files.
+ *
+ * Every record has the same size and holds a timestamp, the source that sent
+ * the value and the value itself. Records are appended to the newest segment,
+ * which is memory-mapped, until it is full, at which point a new segment is
+ * started. Old segments are deleted once they exceed the retention limits,
+ * checked when the log is opened, when a segment is started and once a
+ * minute. Unwritten space in a segment is zero-filled, so a record with a
+ * zero timestamp marks its end. Only the newest segment is mapped; older ones
+ * are read with positional reads, so a deleted segment frees its space at once.
+ *
+ * The timestamp is written after the rest of the record, so a record cut
+ * short by a crash reads as the end of the log rather than as a bogus value.
+ * Records are forced to storage every {@code FORCE_EVERY_RECORDS} records
+ * or every second, whichever comes first, which bounds what a power loss
+ * can take. Mapped pages may reach storage in any order, though, so a power
+ * loss can also leave a hole before records that did make it: the log ends at
+ * the first hole, and whatever follows it is lost and later overwritten.
+ *
+ * Forcing and retention are slow file operations; they run on the
+ * maintenance executor given to the constructor, so appending never waits
+ * for storage. Appending is not thread-safe; confine each instance to a
+ * single thread.
+ */
+public class ValueLog implements Closeable {
+
+    /**
+     * Receives records during {@link #replay(long, RecordVisitor)}.
+     */
+    public interface RecordVisitor {
+        void onRecord(long timestamp, int source, int value);
+    }
+
+    /** Size of one record: timestamp, source and value. */
+    public static final int RECORD_SIZE = 8 + 4 + 4;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Records appended before they are forced to storage, by count and by age
+    private static final int FORCE_EVERY_RECORDS = 1024;
+    private static final long FORCE_INTERVAL_MS = 1_000;
+    // How often retention is checked between segment rolls
+    private static final long RETENTION_INTERVAL_MS = 60_000;
+    // Records read at once from a segment that is not mapped
+    private static final int READ_RECORDS = 512;
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final long mMaxAgeMillis;
+    private final Executor mMaintenance;
+    private final AtomicBoolean mForcePending = new AtomicBoolean();
+    // Failure of a maintenance task, reported by the next append
+    private volatile IOException mMaintenanceError;
+
+    private long mSegmentBase;
+    private MappedByteBuffer mSegment;
+    private int mUnforcedCount;
+    private long mLastForceTimestamp;
+    private long mLastRetentionTimestamp;
+
+    /**
+     * Open a log that forces records and applies retention on the appending thread.
+     *
+     * @see #ValueLog(File, int, int, long, Executor)
+     */
+    public ValueLog(File directory, int recordsPerSegment, int maxSegments, long maxAgeMillis)
+            throws IOException {
+        this(directory, recordsPerSegment, maxSegments, maxAgeMillis, Runnable::run);
+    }
+
+    /**
+     * Open a log, continuing after the last record of the newest existing segment.
+     *
+     * @param directory Directory holding the segment files, created if missing.
+     * @param recordsPerSegment Number of records in each segment file.
+     * @param maxSegments Maximum number of segment files retained.
+     * @param maxAgeMillis Segments whose newest record is older than this are deleted.
+     * @param maintenance Runs forcing and retention, one task at a time.
+     */
+    public ValueLog(File directory, int recordsPerSegment, int maxSegments, long maxAgeMillis,
+            Executor maintenance) throws IOException {
+        if (recordsPerSegment <= 0 || maxSegments <= 0) {
+            throw new IllegalArgumentException("Segment size and count must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create log directory " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSize = recordsPerSegment * RECORD_SIZE;
+        mMaxSegments = maxSegments;
+        mMaxAgeMillis = maxAgeMillis;
+        mMaintenance = maintenance;
+
+        File[] segments = listSegments(directory);
+        if (segments.length == 0) {
+            openSegment(0);
+        } else {
+            File newest = segments[segments.length - 1];
+            openSegment(segmentBase(newest));
+            mSegment.position(recordCount(mSegment) * RECORD_SIZE);
+        }
+        mLastRetentionTimestamp = System.currentTimeMillis();
+        scheduleRetention(mLastRetentionTimestamp);
+    }
+
+    /**
+     * Append one record, starting a new segment if the current one is full.
+     *
+     * @param timestamp Wall-clock time of the record in milliseconds; must not be zero.
+     * @throws IOException If a segment could not be started, or if forcing or
+     *         retention failed since the last append.
+     */
+    public void append(long timestamp, int source, int value) throws IOException {
+        IOException error = mMaintenanceError;
+        if (error != null) {
+            throw error;
+        }
+        if (mSegment.remaining() < RECORD_SIZE) {
+            roll(timestamp);
+        }
+        int position = mSegment.position();
+        mSegment.putInt(position + 8, source);
+        mSegment.putInt(position + 12, value);
+        // The timestamp commits the record, so it is written last
+        mSegment.putLong(position, timestamp);
+        mSegment.position(position + RECORD_SIZE);
+
+        mUnforcedCount++;
+        if (mUnforcedCount >= FORCE_EVERY_RECORDS
+                || timestamp - mLastForceTimestamp >= FORCE_INTERVAL_MS) {
+            scheduleForce();
+            mLastForceTimestamp = timestamp;
+        }
+        if (timestamp - mLastRetentionTimestamp >= RETENTION_INTERVAL_MS) {
+            mLastRetentionTimestamp = timestamp;
+            scheduleRetention(timestamp);
+        }
+    }
+
+    /**
+     * Visit the newest record of the log, if there is one, without reading the rest.
+     *
+     * @return {@code false} if the log is empty.
+     */
+    public boolean last(RecordVisitor visitor) throws IOException {
+        int position = mSegment.position() - RECORD_SIZE;
+        if (position >= 0) {
+            visitor.onRecord(mSegment.getLong(position), mSegment.getInt(position + 8),
+                    mSegment.getInt(position + 12));
+            return true;
+        }
+        // The active segment was just started; the newest record ends the one before it
+        File[] segments = listSegments(mDirectory);
+        if (segments.length < 2) {
+            return false;
+        }
+        long[] record = new long[3];
+        if (!readLastRecord(segments[segments.length - 2], record)) {
+            return false;
+        }
+        visitor.onRecord(record[0], (int) record[1], (int) record[2]);
+        return true;
+    }
+
+    /**
+     * Write appended records through to storage, on the calling thread.
+     */
+    public void flush() {
+        mSegment.force();
+        mUnforcedCount = 0;
+    }
+
+    @Override
+    public void close() {
+        if (mSegment != null) {
+            mSegment.force();
+            mSegment = null;
+        }
+    }
+
+    /**
+     * Visit every record in the log, oldest first, without allocating per record.
+     *
+     * @param fromTimestamp Records older than this are skipped.
+     * @param visitor Receiver of the records.
+     * @return The number of records visited.
+     */
+    public long replay(long fromTimestamp, RecordVisitor visitor) throws IOException {
+        return replay(mDirectory, fromTimestamp, visitor);
+    }
+
+    /**
+     * Visit every record in the log stored in {@code directory}, oldest first.
+     *
+     * @see #replay(long, RecordVisitor)
+     */
+    public static long replay(File directory, long fromTimestamp, RecordVisitor visitor)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_RECORDS * RECORD_SIZE);
+        long count = 0;
+        for (File file : listSegments(directory)) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel channel = raf.getChannel()) {
+                count += scan(channel, buffer, fromTimestamp, visitor);
+            }
+        }
+        return count;
+    }
+
+    private void roll(long now) throws IOException {
+        MappedByteBuffer full = mSegment;
+        mMaintenance.execute(full::force);
+        mUnforcedCount = 0;
+        openSegment(mSegmentBase + mSegmentSize / RECORD_SIZE);
+        mLastRetentionTimestamp = now;
+        scheduleRetention(now);
+    }
+
+    private void openSegment(long base) throws IOException {
+        File file = new File(mDirectory, String.format(Locale.US, "%020d", base) + SEGMENT_SUFFIX);
+        mSegment = map(file, mSegmentSize);
+        mSegmentBase = base;
+    }
+
+    private void scheduleForce() {
+        mUnforcedCount = 0;
+        // A force still waiting to run will write these records too
+        if (!mForcePending.compareAndSet(false, true)) {
+            return;
+        }
+        MappedByteBuffer segment = mSegment;
+        mMaintenance.execute(() -> {
+            mForcePending.set(false);
+            segment.force();
+        });
+    }
+
+    private void scheduleRetention(long now) {
+        mMaintenance.execute(() -> {
+            try {
+                applyRetention(now);
+            } catch (IOException e) {
+                mMaintenanceError = e;
+            }
+        });
+    }
+
+    /**
+     * Delete the oldest segments past the limits. Runs on the maintenance
+     * executor; it only reads and deletes segments that are no longer appended to.
+     */
+    private void applyRetention(long now) throws IOException {
+        File[] segments = listSegments(mDirectory);
+        // The active segment is always the newest and is never deleted
+        int excess = segments.length - mMaxSegments;
+        long[] record = new long[3];
+        for (int i = 0; i < segments.length - 1; i++) {
+            long newest = readLastRecord(segments[i], record) ? record[0] : 0;
+            if (i < excess || now - newest > mMaxAgeMillis) {
+                if (!segments[i].delete()) {
+                    throw new IOException("Unable to delete segment " + segments[i]);
+                }
+            } else {
+                // Segments are in age order, so the rest are all within limits
+                break;
+            }
+        }
+    }
+
+    /**
+     * Read the newest record of a segment file into {@code record}, as its
+     * timestamp, source and value.
+     *
+     * @return {@code false} if the segment holds no records.
+     */
+    private static boolean readLastRecord(File file, long[] record) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_RECORDS * RECORD_SIZE);
+            // Segments before the newest are usually full, so try the last slot first
+            long lastSlot = channel.size() / RECORD_SIZE - 1;
+            if (lastSlot >= 0 && read(channel, buffer, lastSlot * RECORD_SIZE)
+                    && buffer.getLong(0) != 0) {
+                record[0] = buffer.getLong(0);
+                record[1] = buffer.getInt(8);
+                record[2] = buffer.getInt(12);
+                return true;
+            }
+            record[0] = 0;
+            scan(channel, buffer, Long.MIN_VALUE, (timestamp, source, value) -> {
+                record[0] = timestamp;
+                record[1] = source;
+                record[2] = value;
+            });
+            return record[0] != 0;
+        }
+    }
+
+    /**
+     * Visit the records of a segment up to its first empty slot.
+     *
+     * @return The number of records visited.
+     */
+    private static long scan(FileChannel channel, ByteBuffer buffer, long fromTimestamp,
+            RecordVisitor visitor) throws IOException {
+        long count = 0;
+        long position = 0;
+        while (read(channel, buffer, position)) {
+            position += buffer.remaining();
+            while (buffer.remaining() >= RECORD_SIZE) {
+                long timestamp = buffer.getLong();
+                if (timestamp == 0) {
+                    return count;
+                }
+                int source = buffer.getInt();
+                int value = buffer.getInt();
+                if (timestamp >= fromTimestamp) {
+                    visitor.onRecord(timestamp, source, value);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Fill the buffer from a position of the channel, and flip it for reading.
+     *
+     * @return {@code false} if not even one record was left to read.
+     */
+    private static boolean read(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        // A partial record at the end of the file is ignored
+        buffer.limit(buffer.limit() - buffer.limit() % RECORD_SIZE);
+        return buffer.remaining() >= RECORD_SIZE;
+    }
+
+    /**
+     * Count the records of the mapped segment, up to its first empty slot.
+     * Pages may have been written back out of order, so this does not assume
+     * that every record before a non-empty slot is there.
+     */
+    private static int recordCount(MappedByteBuffer segment) {
+        int slots = segment.capacity() / RECORD_SIZE;
+        int count = 0;
+        while (count < slots && segment.getLong(count * RECORD_SIZE) != 0) {
+            count++;
+        }
+        return count;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long segmentBase(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static File[] listSegments(File directory) {
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (segments == null) {
+            return new File[0];
+        }
+        // Zero-padded names sort in the order the segments were written
+        Arrays.sort(segments);
+        return segments;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free queue of (source, value) pairs between exactly one
+ * producer thread and one consumer thread.
+ *
+ * When the queue is full, the {@link OverloadPolicy} decides whether the
+ * oldest queued value is discarded, the new value is discarded, or the
+ * producer waits for the consumer. Blocking the network reader stops it
+ * from draining its sockets, which pushes back on the senders through TCP
+ * flow control. Drops and stalls are counted so the capacity can be sized.
+ */
+public class ValueQueue {
+
+    /**
+     * What {@link #offer(int, int)} does when the queue is full.
+     */
+    public enum OverloadPolicy {
+        /** Discard the oldest queued value to make room. */
+        DROP_OLDEST,
+        /** Discard the value being offered. */
+        DROP_NEWEST,
+        /** Wait until the consumer makes room. */
+        BLOCK,
+    }
+
+    // Upper bound on one wait, in case a wake-up from the consumer is missed
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final OverloadPolicy mPolicy;
+    private final int[] mSources;
+    private final int[] mValues;
+    private final int mMask;
+
+    // Index of the next value to take; advanced by the consumer, and by the
+    // producer when it discards the oldest value
+    private final AtomicLong mHead = new AtomicLong();
+    // Index of the next free slot; only advanced by the producer
+    private final AtomicLong mTail = new AtomicLong();
+
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mStallCount = new AtomicLong();
+    private final AtomicLong mStallNanos = new AtomicLong();
+    private volatile Thread mWaitingProducer;
+    private volatile boolean mClosed;
+
+    /**
+     * @param capacity Maximum number of queued values, rounded up to a power of two.
+     * @param policy Behavior when the queue is full.
+     */
+    public ValueQueue(int capacity, OverloadPolicy policy) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mPolicy = policy;
+        mSources = new int[size];
+        mValues = new int[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Add a value, applying the overload policy if the queue is full.
+     * Must only be called from the producer thread.
+     *
+     * @return {@code true} if the value was queued.
+     */
+    public boolean offer(int source, int value) {
+        long tail = mTail.get();
+        long stallStart = 0;
+        while (tail - mHead.get() > mMask) {
+            if (mClosed) {
+                return false;
+            }
+            switch (mPolicy) {
+                case DROP_NEWEST:
+                    mDroppedCount.incrementAndGet();
+                    return false;
+                case DROP_OLDEST:
+                    // Fails only if the consumer took the value first, which also makes room
+                    long head = mHead.get();
+                    if (tail - head > mMask && mHead.compareAndSet(head, head + 1)) {
+                        mDroppedCount.incrementAndGet();
+                    }
+                    break;
+                case BLOCK:
+                    if (stallStart == 0) {
+                        stallStart = System.nanoTime();
+                        mStallCount.incrementAndGet();
+                    }
+                    mWaitingProducer = Thread.currentThread();
+                    if (tail - mHead.get() > mMask) {
+                        LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    }
+                    mWaitingProducer = null;
+                    break;
+            }
+        }
+        if (stallStart != 0) {
+            mStallNanos.addAndGet(System.nanoTime() - stallStart);
+        }
+        int index = (int) tail & mMask;
+        mSources[index] = source;
+        mValues[index] = value;
+        // Publishes the slot to the consumer
+        mTail.set(tail + 1);
+        return true;
+    }
+
+    /**
+     * Move up to {@code sources.length} queued values into the given arrays,
+     * oldest first. Must only be called from the consumer thread.
+     *
+     * @return The number of values moved.
+     */
+    public int drainTo(int[] sources, int[] values) {
+        int max = Math.min(sources.length, values.length);
+        int count = 0;
+        while (count < max) {
+            long head = mHead.get();
+            if (head == mTail.get()) {
+                break;
+            }
+            int index = (int) head & mMask;
+            int source = mSources[index];
+            int value = mValues[index];
+            // If the producer discarded this slot meanwhile, what was read may be torn
+            if (mHead.compareAndSet(head, head + 1)) {
+                sources[count] = source;
+                values[count] = value;
+                count++;
+            }
+        }
+        if (count > 0) {
+            Thread producer = mWaitingProducer;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stop accepting values and release a producer waiting for room.
+     */
+    public void close() {
+        mClosed = true;
+        Thread producer = mWaitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * Returns the number of values currently queued.
+     */
+    public int size() {
+        return (int) Math.max(0, mTail.get() - mHead.get());
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    public OverloadPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Returns the number of values discarded because the queue was full.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Returns the number of times the producer had to wait for room.
+     */
+    public long getStallCount() {
+        return mStallCount.get();
+    }
+
+    /**
+     * Returns the total time the producer spent waiting for room, in nanoseconds.
+     */
+    public long getStallNanos() {
+        return mStallNanos.get();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import com.example.things.lowpan.common.FrameCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Fans values received by the {@link ValueServer} out to subscribed connections.
+ *
+ * Each batch of values is encoded once into a pooled, reference-counted
+ * buffer, and the same buffer is queued on every subscriber whose filter
+ * matches its source. Subscribers are written with non-blocking gathering
+ * writes when their socket is writable, so a slow subscriber only grows its
+ * own queue. When that queue is full the oldest unsent batch is dropped,
+ * and the subscriber never holds up the others or the server.
+ *
+ * Not thread-safe; every method must be called on the server thread.
+ */
+class ValueRelay {
+    // Room for a few dozen publish frames per shared buffer
+    private static final int SHARED_BUFFER_SIZE = 1024;
+    // Released buffers kept for reuse beyond this are left to the garbage collector
+    private static final int MAX_POOLED_BUFFERS = 64;
+    // Batches waiting for a slow subscriber beyond this are dropped
+    private static final int MAX_QUEUED_BUFFERS = 64;
+    // Upper bound on buffers handed to one gathering write
+    private static final int MAX_GATHER = 16;
+
+    private final List<Subscriber> mSubscribers = new ArrayList<>();
+    private final ArrayDeque<SharedBuffer> mPool = new ArrayDeque<>();
+    private final ByteBuffer[] mGather = new ByteBuffer[MAX_GATHER];
+    private int mSequence;
+
+    private volatile int mSubscriberCount;
+    private volatile long mPublishedCount;
+    private volatile long mDroppedCount;
+
+    /**
+     * Returns the number of connections currently subscribed.
+     */
+    int getSubscriberCount() {
+        return mSubscriberCount;
+    }
+
+    /**
+     * Returns the number of values encoded for subscribers.
+     */
+    long getPublishedCount() {
+        return mPublishedCount;
+    }
+
+    /**
+     * Returns the number of values discarded because a subscriber fell behind.
+     */
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the number of released buffers waiting to be reused.
+     */
+    int getPooledBufferCount() {
+        return mPool.size();
+    }
+
+    /**
+     * Subscribe a connection, or change the filter of an existing subscription.
+     *
+     * @param key Selection key of the subscribing connection.
+     * @param subscriber The connection's current subscription, or null.
+     * @param source Source to relay, or {@link FrameCodec#SUBSCRIBE_ALL}.
+     * @return The connection's subscription.
+     */
+    Subscriber subscribe(SelectionKey key, Subscriber subscriber, int source) {
+        if (subscriber == null) {
+            subscriber = new Subscriber(key);
+            mSubscribers.add(subscriber);
+            mSubscriberCount = mSubscribers.size();
+        }
+        subscriber.mFilter = source;
+        return subscriber;
+    }
+
+    /**
+     * Remove a subscription and release every batch queued for it.
+     */
+    void unsubscribe(Subscriber subscriber) {
+        mSubscribers.remove(subscriber);
+        mSubscriberCount = mSubscribers.size();
+        SharedBuffer buffer;
+        while ((buffer = subscriber.mQueue.poll()) != null) {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Queue a batch of values on every subscriber of the source. Nothing is
+     * written here; subscribers with new data are flagged for {@code OP_WRITE}.
+     *
+     * @param source Identifier of the connection the values were received on.
+     * @param values Buffer holding the values, oldest first.
+     * @param count Number of valid entries in {@code values}.
+     */
+    void publish(int source, int[] values, int count) {
+        if (!hasSubscriber(source)) {
+            return;
+        }
+        int index = 0;
+        while (index < count) {
+            SharedBuffer buffer = acquire();
+            ByteBuffer data = buffer.mData;
+            int first = index;
+            while (index < count && data.remaining() >= FrameCodec.MAX_PUBLISH_FRAME_SIZE) {
+                FrameCodec.encodePublish(data, mSequence++, source, values[index++]);
+            }
+            buffer.mLength = data.position();
+            buffer.mValueCount = index - first;
+            for (int i = 0; i < mSubscribers.size(); i++) {
+                Subscriber subscriber = mSubscribers.get(i);
+                if (subscriber.matches(source)) {
+                    enqueue(subscriber, buffer);
+                }
+            }
+            // Drop the publisher's own reference; subscribers now hold the buffer
+            release(buffer);
+        }
+        mPublishedCount += count;
+    }
+
+    /**
+     * Write as much of a subscriber's queue as the socket accepts without blocking.
+     *
+     * @return {@code true} if data is still waiting for the socket to become writable.
+     * @throws IOException if the write failed and the connection should be closed.
+     */
+    boolean flush(SocketChannel channel, Subscriber subscriber) throws IOException {
+        ArrayDeque<SharedBuffer> queue = subscriber.mQueue;
+        while (!queue.isEmpty()) {
+            int count = 0;
+            Iterator<SharedBuffer> iterator = queue.iterator();
+            while (count < MAX_GATHER && iterator.hasNext()) {
+                SharedBuffer buffer = iterator.next();
+                // Shared buffers are only positioned here, on the server thread, just before the write
+                buffer.mData.limit(buffer.mLength);
+                buffer.mData.position(count == 0 ? subscriber.mOffset : 0);
+                mGather[count++] = buffer.mData;
+            }
+            try {
+                channel.write(mGather, 0, count);
+            } finally {
+                Arrays.fill(mGather, 0, count, null);
+            }
+            // The gathered buffers are the first entries of the queue, in order
+            for (int i = 0; i < count; i++) {
+                ByteBuffer data = queue.peek().mData;
+                if (data.hasRemaining()) {
+                    subscriber.mOffset = data.position();
+                    return true;
+                }
+                release(queue.poll());
+                subscriber.mOffset = 0;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasSubscriber(int source) {
+        for (int i = 0; i < mSubscribers.size(); i++) {
+            if (mSubscribers.get(i).matches(source)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void enqueue(Subscriber subscriber, SharedBuffer buffer) {
+        ArrayDeque<SharedBuffer> queue = subscriber.mQueue;
+        if (queue.size() >= MAX_QUEUED_BUFFERS) {
+            // Drop the oldest batch that hasn't started going out on the wire
+            SharedBuffer head = queue.poll();
+            if (subscriber.mOffset > 0) {
+                SharedBuffer dropped = queue.poll();
+                mDroppedCount += dropped.mValueCount;
+                release(dropped);
+                queue.addFirst(head);
+            } else {
+                mDroppedCount += head.mValueCount;
+                release(head);
+            }
+        }
+        buffer.mRefCount++;
+        queue.add(buffer);
+        if (queue.size() == 1) {
+            SelectionKey key = subscriber.mKey;
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private SharedBuffer acquire() {
+        SharedBuffer buffer = mPool.poll();
+        if (buffer == null) {
+            buffer = new SharedBuffer();
+        }
+        buffer.mData.clear();
+        buffer.mRefCount = 1;
+        return buffer;
+    }
+
+    private void release(SharedBuffer buffer) {
+        if (--buffer.mRefCount == 0 && mPool.size() < MAX_POOLED_BUFFERS) {
+            mPool.add(buffer);
+        }
+    }
+
+    /**
+     * Subscription state of one connection.
+     */
+    static class Subscriber {
+        final SelectionKey mKey;
+        final ArrayDeque<SharedBuffer> mQueue = new ArrayDeque<>();
+        int mFilter;
+        // Bytes of the head buffer already written to the socket
+        int mOffset;
+
+        Subscriber(SelectionKey key) {
+            mKey = key;
+        }
+
+        boolean matches(int source) {
+            return mFilter == FrameCodec.SUBSCRIBE_ALL || mFilter == source;
+        }
+    }
+
+    /**
+     * Encoded batch of publish frames, shared by every subscriber it is queued on.
+     */
+    private static class SharedBuffer {
+        final ByteBuffer mData = ByteBuffer.allocateDirect(SHARED_BUFFER_SIZE);
+        int mLength;
+        int mValueCount;
+        int mRefCount;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.receiver;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Render stage that conflates incoming values so that only the newest one
+ * is drawn, at most once per frame.
+ *
+ * Values can be offered from any thread. They are written to a single slot,
+ * and a frame is scheduled on the render {@link Handler} only when the slot
+ * goes from clean to dirty, so the handler queue never holds more than one
+ * pending frame no matter how fast values arrive.
+ */
+public class ValueRenderer {
+
+    /**
+     * Draws a value, invoked on the render handler's thread.
+     */
+    public interface Target {
+        void render(int value);
+    }
+
+    /**
+     * Clock and scheduling on the render thread; a {@link Handler} in the app.
+     */
+    interface Scheduler {
+        long uptimeMillis();
+
+        void postAtTime(Runnable runnable, long uptimeMillis);
+
+        void removeCallbacks(Runnable runnable);
+    }
+
+    private final Scheduler mScheduler;
+    private final Target mTarget;
+    private final long mFrameIntervalMillis;
+
+    private final AtomicBoolean mDirty = new AtomicBoolean();
+    private volatile int mLatestValue;
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mRenderedCount = new AtomicLong();
+    // Written on the render thread, read when scheduling the next frame
+    private volatile long mLastFrameTime;
+
+    /**
+     * @param handler Handler for the thread that owns the render target.
+     * @param maxFramesPerSecond Upper bound on how often the target is drawn.
+     * @param target Destination for rendered values.
+     */
+    public ValueRenderer(Handler handler, int maxFramesPerSecond, Target target) {
+        this(new Scheduler() {
+            @Override
+            public long uptimeMillis() {
+                return SystemClock.uptimeMillis();
+            }
+
+            @Override
+            public void postAtTime(Runnable runnable, long uptimeMillis) {
+                handler.postAtTime(runnable, uptimeMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                handler.removeCallbacks(runnable);
+            }
+        }, maxFramesPerSecond, target);
+    }
+
+    ValueRenderer(Scheduler scheduler, int maxFramesPerSecond, Target target) {
+        if (maxFramesPerSecond <= 0) {
+            throw new IllegalArgumentException("Frame rate must be positive");
+        }
+        mScheduler = scheduler;
+        mTarget = target;
+        mFrameIntervalMillis = 1000 / maxFramesPerSecond;
+    }
+
+    /**
+     * Offer a batch of values, of which only the last one may be rendered.
+     *
+     * @param values Buffer holding the values, oldest first.
+     * @param count Number of valid entries in {@code values}.
+     */
+    public void offer(int[] values, int count) {
+        if (count <= 0) {
+            return;
+        }
+        mDroppedCount.addAndGet(count - 1);
+        offer(values[count - 1]);
+    }
+
+    /**
+     * Offer a new value, replacing any value that has not been rendered yet.
+     */
+    public void offer(int value) {
+        mLatestValue = value;
+        if (mDirty.getAndSet(true)) {
+            // The previous value is overwritten before it was drawn
+            mDroppedCount.incrementAndGet();
+        } else {
+            mScheduler.postAtTime(mRenderFrame, mLastFrameTime + mFrameIntervalMillis);
+        }
+    }
+
+    /**
+     * Returns the number of values that were replaced before they could be rendered.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Returns true while a frame is scheduled and has not been drawn yet.
+     */
+    public boolean isFramePending() {
+        return mDirty.get();
+    }
+
+    /**
+     * Returns the number of frames drawn on the target.
+     */
+    public long getRenderedCount() {
+        return mRenderedCount.get();
+    }
+
+    /**
+     * Discard any pending frame.
+     */
+    public void cancel() {
+        mScheduler.removeCallbacks(mRenderFrame);
+        mDirty.set(false);
+    }
+
+    private final Runnable mRenderFrame = new Runnable() {
+        @Override
+        public void run() {
+            // Stamp the frame first, so a frame scheduled from here on is paced after this one
+            mLastFrameTime = mScheduler.uptimeMillis();
+            // Clear the flag before reading, so a value offered meanwhile schedules a new frame
+            mDirty.set(false);
+            int value = mLatestValue;
+            mTarget.render(value);
+            mRenderedCount.incrementAndGet();
+        }
+    };
+}
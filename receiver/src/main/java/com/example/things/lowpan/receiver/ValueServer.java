@@ -0,0 +1,646 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.receiver;
+
+import com.example.things.lowpan.common.DeltaCodec;
+import com.example.things.lowpan.common.Frame;
+import com.example.things.lowpan.common.FrameCodec;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server that accepts any number of transmitter connections and multiplexes
+ * them on a single thread with a {@link Selector}.
+ *
+ * Each connection carries frames in the {@link FrameCodec} wire format.
+ * The server also receives frames sent as UDP datagrams on the same port;
+ * each remote address is reported as its own connection, and datagrams
+ * whose sequence number is older than the newest one seen are discarded.
+ * An address that sends nothing for a while is reported as closed, since
+ * every restart of a transmitter sends from a new port.
+ * Datagrams can also be received from a multicast group, so that a single
+ * transmitter can reach many receivers at once.
+ * Probe frames are acknowledged on the connection or address they came from
+ * so that the sender can measure round-trip time.
+ * A connection that sends a subscribe frame additionally receives every
+ * value from the sources it selected, relayed by a {@link ValueRelay}.
+ * This class has no Android dependencies, so it can be run and load-tested
+ * on a regular JVM. All {@link Listener} callbacks are invoked on the thread
+ * that calls {@link #run()}.
+ */
+public class ValueServer implements Runnable {
+
+    /**
+     * Receives connection events and decoded values from the server thread.
+     */
+    public interface Listener {
+        /**
+         * Called when a new transmitter has connected.
+         *
+         * @param connectionId Identifier of the connection, unique for this server.
+         * @param address The remote address of the transmitter.
+         */
+        void onConnectionOpened(int connectionId, SocketAddress address);
+
+        /**
+         * Called with every value decoded from one read of a connection.
+         * The array is reused by the server, so it must not be retained
+         * after this method returns.
+         *
+         * @param connectionId The connection the values were received on.
+         * @param values Buffer holding the values, oldest first.
+         * @param count Number of valid entries in {@code values}.
+         */
+        void onValues(int connectionId, int[] values, int count);
+
+        /**
+         * Called when a connection has been closed by either end.
+         *
+         * @param connectionId The connection that was closed.
+         */
+        void onConnectionClosed(int connectionId);
+
+        /**
+         * Called when the server could not start, or when a connection failed
+         * in a way the server recovered from by closing it.
+         *
+         * @param message What the server was doing.
+         * @param e The cause.
+         */
+        default void onError(String message, IOException e) {
+        }
+    }
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    // Upper bound on reads from one connection per wakeup, so a fast sender can't starve others
+    private static final int MAX_READS_PER_WAKEUP = 16;
+    // Minimum IPv6 MTU, the largest datagram that crosses the mesh unfragmented
+    private static final int MAX_DATAGRAM_SIZE = 1280;
+    // Acknowledgements waiting for a slow connection beyond this are dropped
+    private static final int WRITE_BUFFER_SIZE = 1024;
+    // A sequence jump further back than this means the transmitter restarted
+    private static final int SEQUENCE_RESET_WINDOW = 1 << 16;
+    // A datagram source that has sent nothing for this long is closed
+    private static final long DEFAULT_DATAGRAM_IDLE_TIMEOUT_MS = 60_000;
+
+    private final int mPort;
+    private final Listener mListener;
+    // Values in batch frames take as little as one byte each
+    private final int[] mValueBatch = new int[READ_BUFFER_SIZE];
+    private final Frame mFrame = new Frame();
+    private final ByteBuffer mDatagramBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer mAckBuffer = ByteBuffer.allocateDirect(FrameCodec.MAX_FRAME_SIZE);
+    // In access order, so the sources that have been idle longest come first
+    private final Map<SocketAddress, DatagramSource> mDatagramSources =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, ConnectionMetrics> mMetrics = new ConcurrentHashMap<>();
+    private final ValueRelay mRelay = new ValueRelay();
+
+    private volatile Selector mSelector;
+    private volatile boolean mRunning = true;
+    private volatile int mLocalPort = -1;
+    private volatile int mConnectionCount;
+    private volatile int mDatagramSourceCount;
+    private volatile long mStaleDatagramCount;
+    private volatile long mDroppedAckCount;
+    private int mNextConnectionId;
+    private InetAddress mMulticastGroup;
+    private NetworkInterface mMulticastInterface;
+    private long mDatagramIdleTimeoutNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_DATAGRAM_IDLE_TIMEOUT_MS);
+
+    /**
+     * @param port The TCP port to listen on, or 0 to pick any free port.
+     * @param listener Receiver of connection events and values.
+     */
+    public ValueServer(int port, Listener listener) {
+        mPort = port;
+        mListener = listener;
+    }
+
+    /**
+     * Also receive datagrams sent to a multicast group. Must be called before {@link #run()}.
+     *
+     * @param group The group address to join.
+     * @param networkInterface The interface to join the group on.
+     */
+    public void setMulticastGroup(InetAddress group, NetworkInterface networkInterface) {
+        mMulticastGroup = group;
+        mMulticastInterface = networkInterface;
+    }
+
+    /**
+     * Close datagram sources that have sent nothing for the given time,
+     * instead of the default of one minute. Must be called before {@link #run()}.
+     */
+    public void setDatagramIdleTimeout(long timeoutMillis) {
+        mDatagramIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Returns the number of addresses currently sending datagrams.
+     */
+    public int getDatagramSourceCount() {
+        return mDatagramSourceCount;
+    }
+
+    /**
+     * Returns the port the server is bound to, or -1 if it is not listening yet.
+     */
+    public int getLocalPort() {
+        return mLocalPort;
+    }
+
+    /**
+     * Returns the number of currently open transmitter connections.
+     */
+    public int getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    /**
+     * Returns the number of transmitters currently sending, over a connection
+     * or as datagrams.
+     */
+    public int getSourceCount() {
+        return mConnectionCount + mDatagramSourceCount;
+    }
+
+    /**
+     * Returns the metrics of every open connection. The collection is a live
+     * view that can be iterated from any thread.
+     */
+    public Collection<ConnectionMetrics> getMetrics() {
+        return Collections.unmodifiableCollection(mMetrics.values());
+    }
+
+    /**
+     * Returns the metrics of an open connection, or null if there is no such connection.
+     * Metrics remain available until {@link Listener#onConnectionClosed(int)} returns.
+     */
+    public ConnectionMetrics getMetrics(int connectionId) {
+        return mMetrics.get(connectionId);
+    }
+
+    /**
+     * Returns the number of datagram frames discarded because a newer one had already arrived.
+     */
+    public long getStaleDatagramCount() {
+        return mStaleDatagramCount;
+    }
+
+    /**
+     * Returns the number of probe acknowledgements that could not be sent.
+     */
+    public long getDroppedAckCount() {
+        return mDroppedAckCount;
+    }
+
+    /**
+     * Returns the number of connections subscribed to relayed values.
+     */
+    public int getSubscriberCount() {
+        return mRelay.getSubscriberCount();
+    }
+
+    /**
+     * Returns the number of values encoded for subscribers.
+     */
+    public long getRelayedCount() {
+        return mRelay.getPublishedCount();
+    }
+
+    /**
+     * Returns the number of relayed values discarded because a subscriber fell behind.
+     */
+    public long getRelayDroppedCount() {
+        return mRelay.getDroppedCount();
+    }
+
+    /**
+     * Request the server loop to exit and close all connections.
+     * Safe to call from any thread.
+     */
+    public void stop() {
+        mRunning = false;
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             DatagramChannel datagramChannel = openDatagramChannel()) {
+            mSelector = selector;
+            try {
+                serverChannel.bind(new InetSocketAddress(mPort));
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                // Datagrams share the port number of the stream listener
+                int localPort = serverChannel.socket().getLocalPort();
+                datagramChannel.bind(new InetSocketAddress(localPort));
+                datagramChannel.configureBlocking(false);
+                datagramChannel.register(selector, SelectionKey.OP_READ);
+                if (mMulticastGroup != null) {
+                    datagramChannel.join(mMulticastGroup, mMulticastInterface);
+                }
+                mLocalPort = localPort;
+            } catch (IOException e) {
+                mListener.onError("Unable to start server socket", e);
+                return;
+            }
+
+            while (mRunning && !Thread.currentThread().isInterrupted()) {
+                try {
+                    // Wake up now and then to close idle datagram sources
+                    selector.select(mDatagramSources.isEmpty() ? 0
+                            : Math.max(1, TimeUnit.NANOSECONDS.toMillis(
+                                    mDatagramIdleTimeoutNanos) / 4));
+                } catch (IOException e) {
+                    mListener.onError("Unable to wait for connections", e);
+                    break;
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel, selector);
+                    } else if (key.channel() == datagramChannel) {
+                        receive(datagramChannel);
+                    } else {
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid()) {
+                            flush(key);
+                        }
+                    }
+                }
+                closeIdleSources(System.nanoTime());
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    close(key);
+                }
+            }
+            for (DatagramSource source : mDatagramSources.values()) {
+                mListener.onConnectionClosed(source.mId);
+                mMetrics.remove(source.mId);
+            }
+            mDatagramSources.clear();
+            mDatagramSourceCount = 0;
+        } catch (IOException e) {
+            // Opening or closing the selector or a listening channel failed
+            mListener.onError("Unable to run server socket", e);
+        } finally {
+            mSelector = null;
+            mLocalPort = -1;
+        }
+    }
+
+    private DatagramChannel openDatagramChannel() throws IOException {
+        // Joining an IPv6 group needs a channel of that family
+        return mMulticastGroup instanceof Inet6Address
+                ? DatagramChannel.open(StandardProtocolFamily.INET6)
+                : DatagramChannel.open();
+    }
+
+    private void accept(ServerSocketChannel serverChannel, Selector selector) {
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+        } catch (IOException e) {
+            // For example out of file descriptors; the next connection may still succeed
+            mListener.onError("Unable to start new socket connection", e);
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        SocketAddress address;
+        SelectionKey key;
+        try {
+            channel.configureBlocking(false);
+            address = channel.getRemoteAddress();
+            key = channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            mListener.onError("Unable to start new socket connection", e);
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Nothing left to release
+            }
+            return;
+        }
+        Connection connection = new Connection(createMetrics(address));
+        key.attach(connection);
+        mConnectionCount++;
+        mListener.onConnectionOpened(connection.mId, address);
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer = connection.mReadBuffer;
+        // Drain whatever the socket has buffered, one batch per full read buffer
+        for (int reads = 0; reads < MAX_READS_PER_WAKEUP; reads++) {
+            boolean filled;
+            int batchSize = 0;
+            try {
+                int bytes = channel.read(buffer);
+                if (bytes < 0) {
+                    close(key);
+                    return;
+                }
+                filled = !buffer.hasRemaining();
+                buffer.flip();
+                while (FrameCodec.decode(buffer, mFrame)) {
+                    if (FrameCodec.isValue(mFrame)) {
+                        mValueBatch[batchSize++] = mFrame.getValue();
+                    } else if (FrameCodec.isBatch(mFrame)) {
+                        batchSize += connection.mDeltaCodec.decode(mFrame, mValueBatch, batchSize);
+                    }
+                    if (mFrame.getType() == FrameCodec.TYPE_PROBE) {
+                        queueAck(connection);
+                    } else if (mFrame.getType() == FrameCodec.TYPE_SUBSCRIBE) {
+                        connection.mSubscriber =
+                                mRelay.subscribe(key, connection.mSubscriber, mFrame.getSource());
+                    }
+                }
+                // Keep a trailing partial frame for the next read
+                buffer.compact();
+                if (bytes > 0) {
+                    connection.mMetrics.recordRead(System.nanoTime(), bytes, batchSize);
+                }
+            } catch (IOException e) {
+                // Read failure or a malformed frame; the stream can't be resynchronized
+                mListener.onError("Closing connection " + connection.mId, e);
+                close(key);
+                return;
+            }
+            if (batchSize > 0) {
+                dispatch(connection.mId, connection.mMetrics, batchSize);
+            }
+            if (!filled) {
+                // Socket buffer is empty; don't pay for another read syscall
+                return;
+            }
+        }
+    }
+
+    private void receive(DatagramChannel channel) {
+        for (int reads = 0; reads < MAX_READS_PER_WAKEUP; reads++) {
+            SocketAddress address;
+            mDatagramBuffer.clear();
+            try {
+                address = channel.receive(mDatagramBuffer);
+            } catch (IOException e) {
+                mListener.onError("Unable to receive datagram", e);
+                return;
+            }
+            if (address == null) {
+                return;
+            }
+            DatagramSource source = mDatagramSources.get(address);
+            if (source == null) {
+                source = new DatagramSource(createMetrics(address));
+                mDatagramSources.put(address, source);
+                mDatagramSourceCount = mDatagramSources.size();
+                mListener.onConnectionOpened(source.mId, address);
+            }
+            source.mLastReceiveNanos = System.nanoTime();
+
+            int batchSize = 0;
+            mDatagramBuffer.flip();
+            int bytes = mDatagramBuffer.remaining();
+            try {
+                while (FrameCodec.decode(mDatagramBuffer, mFrame)) {
+                    boolean batch = FrameCodec.isBatch(mFrame);
+                    if (!batch && !FrameCodec.isValue(mFrame)) {
+                        continue;
+                    }
+                    int sequence = mFrame.getSequence();
+                    int age = source.mLastSequence - sequence;
+                    if (source.mHasSequence && age >= 0 && age < SEQUENCE_RESET_WINDOW) {
+                        // Reordered or duplicated; a newer value was already delivered
+                        mStaleDatagramCount++;
+                        continue;
+                    }
+                    if (mFrame.getType() == FrameCodec.TYPE_DELTAS
+                            && !(source.mHasSequence && sequence == source.mLastSequence + 1)) {
+                        // The frame it continues from was lost, so its values can't be resolved
+                        mStaleDatagramCount++;
+                        continue;
+                    }
+                    source.mHasSequence = true;
+                    source.mLastSequence = sequence;
+                    if (batch) {
+                        batchSize += source.mDeltaCodec.decode(mFrame, mValueBatch, batchSize);
+                        continue;
+                    }
+                    mValueBatch[batchSize++] = mFrame.getValue();
+                    if (mFrame.getType() == FrameCodec.TYPE_PROBE) {
+                        sendAck(channel, address);
+                    }
+                }
+            } catch (IOException e) {
+                // Malformed datagram; keep whatever decoded cleanly before it
+            }
+            source.mMetrics.recordRead(System.nanoTime(), bytes, batchSize);
+            if (batchSize > 0) {
+                dispatch(source.mId, source.mMetrics, batchSize);
+            }
+        }
+    }
+
+    /**
+     * Report datagram sources that have been silent past the idle timeout as
+     * closed, and forget them.
+     */
+    private void closeIdleSources(long now) {
+        Iterator<DatagramSource> sources = mDatagramSources.values().iterator();
+        while (sources.hasNext()) {
+            DatagramSource source = sources.next();
+            if (now - source.mLastReceiveNanos < mDatagramIdleTimeoutNanos) {
+                // Sources are in order of their last datagram, so the rest are newer
+                break;
+            }
+            sources.remove();
+            mDatagramSourceCount = mDatagramSources.size();
+            mListener.onConnectionClosed(source.mId);
+            mMetrics.remove(source.mId);
+        }
+    }
+
+    /**
+     * Buffer an acknowledgement of the probe in {@link #mFrame}, to be written by {@link #flush}.
+     */
+    private void queueAck(Connection connection) {
+        if (connection.mWriteBuffer == null) {
+            connection.mWriteBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        }
+        if (connection.mWriteBuffer.remaining() < FrameCodec.MAX_FRAME_SIZE) {
+            // The peer isn't reading its acknowledgements; don't let them pile up
+            mDroppedAckCount++;
+            return;
+        }
+        FrameCodec.encodeAck(connection.mWriteBuffer, mFrame);
+    }
+
+    /**
+     * Write buffered acknowledgements and relayed values without blocking,
+     * and wait for the socket to become writable if they don't all fit.
+     */
+    private void flush(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer = connection.mWriteBuffer;
+        SocketChannel channel = (SocketChannel) key.channel();
+        boolean pending = false;
+        try {
+            if (buffer != null && buffer.position() > 0) {
+                buffer.flip();
+                try {
+                    channel.write(buffer);
+                } finally {
+                    buffer.compact();
+                }
+                pending = buffer.position() > 0;
+            }
+            // Relayed frames go out only after a partially written acknowledgement
+            if (!pending && connection.mSubscriber != null) {
+                pending = mRelay.flush(channel, connection.mSubscriber);
+            }
+        } catch (IOException e) {
+            mListener.onError("Closing connection " + connection.mId, e);
+            close(key);
+            return;
+        }
+        key.interestOps(pending
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Acknowledge the probe in {@link #mFrame} with a datagram back to its sender.
+     */
+    private void sendAck(DatagramChannel channel, SocketAddress address) {
+        mAckBuffer.clear();
+        FrameCodec.encodeAck(mAckBuffer, mFrame);
+        mAckBuffer.flip();
+        try {
+            if (channel.send(mAckBuffer, address) == 0) {
+                mDroppedAckCount++;
+            }
+        } catch (IOException e) {
+            mDroppedAckCount++;
+        }
+    }
+
+    private ConnectionMetrics createMetrics(SocketAddress address) {
+        int connectionId = mNextConnectionId++;
+        ConnectionMetrics metrics = new ConnectionMetrics(connectionId, address, System.nanoTime());
+        mMetrics.put(connectionId, metrics);
+        return metrics;
+    }
+
+    private void dispatch(int connectionId, ConnectionMetrics metrics, int batchSize) {
+        long start = System.nanoTime();
+        mListener.onValues(connectionId, mValueBatch, batchSize);
+        metrics.recordDispatch(System.nanoTime() - start);
+        mRelay.publish(connectionId, mValueBatch, batchSize);
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Nothing left to release
+        }
+        mConnectionCount--;
+        Connection connection = (Connection) key.attachment();
+        if (connection.mSubscriber != null) {
+            mRelay.unsubscribe(connection.mSubscriber);
+        }
+        int connectionId = connection.mId;
+        mListener.onConnectionClosed(connectionId);
+        mMetrics.remove(connectionId);
+    }
+
+    /**
+     * Per-connection state, attached to the connection's {@link SelectionKey}.
+     */
+    private static class Connection {
+        final int mId;
+        final ConnectionMetrics mMetrics;
+        final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // Pending acknowledgements, allocated when the first probe arrives
+        ByteBuffer mWriteBuffer;
+        // Set once the connection subscribes to relayed values
+        ValueRelay.Subscriber mSubscriber;
+        final DeltaCodec mDeltaCodec = new DeltaCodec(false);
+
+        Connection(ConnectionMetrics metrics) {
+            mId = metrics.getConnectionId();
+            mMetrics = metrics;
+        }
+    }
+
+    /**
+     * Per-address state for values received as datagrams.
+     */
+    private static class DatagramSource {
+        final int mId;
+        final ConnectionMetrics mMetrics;
+        boolean mHasSequence;
+        int mLastSequence;
+        long mLastReceiveNanos;
+        final DeltaCodec mDeltaCodec = new DeltaCodec(true);
+
+        DatagramSource(ConnectionMetrics metrics) {
+            mId = metrics.getConnectionId();
+            mMetrics = metrics;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import com.example.things.lowpan.common.FrameCodec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the receive throughput of the original read loop, one blocking
+ * {@code read()} and one dispatch per byte-sized value, with the
+ * {@link ValueServer}, which drains each socket into a buffer and dispatches
+ * every value decoded from it as one batch.
+ *
+ * Both run over loopback with a sender writing as fast as it can. Run it on a
+ * regular JVM with:
+ *
+ * <pre>
+ * BatchReadBenchmark [values]
+ * </pre>
+ *
+ * The per-byte loop is measured without the {@code Handler.post} it used to
+ * pay for every value, so the gap on a device is larger than reported here.
+ */
+public class BatchReadBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int WRITE_CHUNK = 4096;
+
+    public static void main(String[] args) throws Exception {
+        int values = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        byte[] bytes = new byte[values];
+        for (int i = 0; i < values; i++) {
+            bytes[i] = (byte) i;
+        }
+        ByteBuffer frames = ByteBuffer.allocate(values * FrameCodec.MAX_VALUE_FRAME_SIZE);
+        for (int i = 0; i < values; i++) {
+            FrameCodec.encodeValue(frames, i, i & 0xFF);
+        }
+
+        long perByte = Long.MAX_VALUE;
+        long batched = Long.MAX_VALUE;
+        // Best of several rounds, the first of which warms up the compiler
+        for (int round = 0; round < ROUNDS; round++) {
+            perByte = Math.min(perByte, runPerByte(bytes));
+            batched = Math.min(batched, runBatched(frames.array(), frames.position(), values));
+        }
+        report("per_byte", values, bytes.length, perByte);
+        report("batched", values, frames.position(), batched);
+    }
+
+    private static long runPerByte(byte[] bytes) throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            long[] sink = new long[1];
+            Thread reader = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    InputStream in = socket.getInputStream();
+                    int value;
+                    while ((value = in.read()) >= 0) {
+                        sink[0] += value;
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, "PerByteReader");
+            reader.start();
+            long start = System.nanoTime();
+            send(server.getLocalPort(), bytes, bytes.length);
+            reader.join();
+            return System.nanoTime() - start;
+        }
+    }
+
+    private static long runBatched(byte[] frames, int length, int values) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        ValueServer server = new ValueServer(0, new ValueServer.Listener() {
+            private int mReceived;
+
+            @Override
+            public void onConnectionOpened(int connectionId, SocketAddress address) {}
+
+            @Override
+            public void onValues(int connectionId, int[] batch, int count) {
+                mReceived += count;
+                if (mReceived == values) {
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void onConnectionClosed(int connectionId) {}
+        });
+        Thread serverThread = new Thread(server, "ValueServer");
+        serverThread.start();
+        while (server.getLocalPort() < 0) {
+            Thread.sleep(1);
+        }
+        try {
+            long start = System.nanoTime();
+            send(server.getLocalPort(), frames, length);
+            if (!done.await(60, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("values did not all arrive");
+            }
+            return System.nanoTime() - start;
+        } finally {
+            server.stop();
+            serverThread.join();
+        }
+    }
+
+    private static void send(int port, byte[] data, int length) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream out = socket.getOutputStream();
+            for (int offset = 0; offset < length; offset += WRITE_CHUNK) {
+                out.write(data, offset, Math.min(WRITE_CHUNK, length - offset));
+            }
+        }
+    }
+
+    private static void report(String name, int values, int bytes, long nanos) {
+        System.out.println(String.format(Locale.US,
+                "%-9s values_per_sec=%.0f mb_per_sec=%.1f ns_per_value=%.1f",
+                name, values * 1e9 / nanos, bytes * 1e3 / nanos, (double) nanos / values));
+    }
+}
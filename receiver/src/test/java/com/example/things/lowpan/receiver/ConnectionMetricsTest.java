@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ConnectionMetricsTest {
+    private static final long MICROS = 1000;
+
+    private final ConnectionMetrics mMetrics = new ConnectionMetrics(7,
+            new InetSocketAddress("127.0.0.1", 5000), System.nanoTime());
+
+    @Test
+    public void countsReadsAndTheTimeBetweenThem() {
+        long start = 1_000_000 * MICROS;
+        mMetrics.recordRead(start, 10, 2);
+        mMetrics.recordRead(start + 500 * MICROS, 20, 3);
+        mMetrics.recordRead(start + 1500 * MICROS, 5, 1);
+
+        assertEquals(6, mMetrics.getMessageCount());
+        assertEquals(35, mMetrics.getByteCount());
+        // The first read has nothing before it
+        assertEquals(2, mMetrics.getInterArrivalMicros().getCount());
+        assertEquals(1000, mMetrics.getInterArrivalMicros().getMax());
+    }
+
+    @Test
+    public void dumpIsOneLineOfKeyValuePairs() {
+        mMetrics.recordRead(1_000 * MICROS, 10, 2);
+        mMetrics.recordRead(1_004 * MICROS, 10, 2);
+        mMetrics.recordDispatch(3 * MICROS);
+
+        String dump = mMetrics.toString();
+        assertTrue(dump, dump.indexOf('\n') < 0);
+        Map<String, String> pairs = new LinkedHashMap<>();
+        for (String pair : dump.split(" ")) {
+            int equals = pair.indexOf('=');
+            assertTrue(pair, equals > 0);
+            pairs.put(pair.substring(0, equals), pair.substring(equals + 1));
+        }
+        assertArrayEquals(new String[] { "conn", "addr", "age_ms", "msgs", "bytes",
+                "iat_us_n", "iat_us_p50", "iat_us_p99", "iat_us_max",
+                "dispatch_us_n", "dispatch_us_p50", "dispatch_us_p99", "dispatch_us_max" },
+                pairs.keySet().toArray(new String[0]));
+        assertEquals("7", pairs.get("conn"));
+        assertEquals("/127.0.0.1:5000", pairs.get("addr"));
+        assertTrue(Long.parseLong(pairs.get("age_ms")) >= 0);
+        assertEquals("4", pairs.get("msgs"));
+        assertEquals("20", pairs.get("bytes"));
+        assertEquals("1", pairs.get("iat_us_n"));
+        assertEquals("4", pairs.get("iat_us_max"));
+        assertEquals("3", pairs.get("dispatch_us_p50"));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import com.example.things.lowpan.common.FrameCodec;
+import com.example.things.lowpan.common.LatencyProbe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Runs the latency probe end to end on a regular JVM, without radios.
+ *
+ * A {@link ValueServer} is started on the loopback interface and a client
+ * sends probe frames to it over TCP or UDP, reading the acknowledgements on
+ * a second thread exactly as the transmitter does. It lives with the tests
+ * so it stays out of the APK; run it with the {@code runBenchmark} task.
+ * Arguments, all optional:
+ *
+ * <pre>
+ * ProbeHarness [probes] [intervalMicros] [tcp|udp] [lossPercent]
+ * </pre>
+ *
+ * A loss percentage drops that share of probes before they are sent, to see
+ * how the reported loss and percentiles respond.
+ */
+public class ProbeHarness {
+
+    public static void main(String[] args) throws Exception {
+        int probes = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        long intervalMicros = args.length > 1 ? Long.parseLong(args[1]) : 500;
+        boolean datagrams = args.length > 2 && "udp".equals(args[2]);
+        int lossPercent = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+        ValueServer server = new ValueServer(0, new ValueServer.Listener() {
+            @Override
+            public void onConnectionOpened(int connectionId, SocketAddress address) {}
+
+            @Override
+            public void onValues(int connectionId, int[] values, int count) {}
+
+            @Override
+            public void onConnectionClosed(int connectionId) {}
+        });
+        Thread serverThread = new Thread(server, "ValueServer");
+        serverThread.start();
+        while (server.getLocalPort() < 0) {
+            Thread.sleep(1);
+        }
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        LatencyProbe probe = new LatencyProbe();
+        Random random = new Random();
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_FRAME_SIZE);
+
+        if (datagrams) {
+            DatagramSocket socket = new DatagramSocket();
+            try {
+                socket.connect(loopback, server.getLocalPort());
+                Thread reader = startReader(() -> {
+                    DatagramPacket packet = new DatagramPacket(new byte[1280], 1280);
+                    ByteBuffer buffer = ByteBuffer.wrap(packet.getData());
+                    while (true) {
+                        socket.receive(packet);
+                        buffer.clear().limit(packet.getLength());
+                        probe.onReceived(buffer);
+                    }
+                });
+                DatagramPacket packet = new DatagramPacket(frame.array(), 0);
+                for (int i = 0; i < probes; i++) {
+                    frame.clear();
+                    int length = probe.encodeProbe(frame, i, i);
+                    if (random.nextInt(100) >= lossPercent) {
+                        packet.setLength(length);
+                        socket.send(packet);
+                    }
+                    pause(intervalMicros);
+                }
+                drain(probe);
+                // Closing the socket ends the reader
+                socket.close();
+                reader.join();
+            } finally {
+                socket.close();
+            }
+        } else {
+            Socket socket = new Socket(loopback, server.getLocalPort());
+            try {
+                socket.setTcpNoDelay(true);
+                InputStream in = socket.getInputStream();
+                Thread reader = startReader(() -> {
+                    ByteBuffer buffer = ByteBuffer.allocate(4 * FrameCodec.MAX_FRAME_SIZE);
+                    int count;
+                    while ((count = in.read(buffer.array(), buffer.position(),
+                            buffer.remaining())) >= 0) {
+                        buffer.position(buffer.position() + count);
+                        buffer.flip();
+                        probe.onReceived(buffer);
+                        buffer.compact();
+                    }
+                });
+                for (int i = 0; i < probes; i++) {
+                    frame.clear();
+                    int length = probe.encodeProbe(frame, i, i);
+                    if (random.nextInt(100) >= lossPercent) {
+                        socket.getOutputStream().write(frame.array(), 0, length);
+                    }
+                    pause(intervalMicros);
+                }
+                drain(probe);
+                socket.close();
+                reader.join();
+            } finally {
+                socket.close();
+            }
+        }
+
+        server.stop();
+        serverThread.join();
+        System.out.println((datagrams ? "udp " : "tcp ") + probe
+                + " server_dropped_acks=" + server.getDroppedAckCount());
+    }
+
+    private interface ReadLoop {
+        void run() throws IOException;
+    }
+
+    private static Thread startReader(ReadLoop loop) {
+        Thread thread = new Thread(() -> {
+            try {
+                loop.run();
+            } catch (IOException e) {
+                // Socket closed at the end of the run
+            }
+        }, "AckReader");
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Give outstanding acknowledgements a moment to arrive before reporting.
+     */
+    private static void drain(LatencyProbe probe) throws InterruptedException {
+        for (int i = 0; i < 100 && probe.getAckCount() < probe.getSentCount(); i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void pause(long micros) {
+        long deadline = System.nanoTime() + micros * 1000;
+        while (System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import com.example.things.lowpan.common.FrameCodec;
+import com.example.things.lowpan.common.LatencyHistogram;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compares value latency over TCP and over datagrams on a lossy link.
+ *
+ * Loopback never loses packets, so a proxy between the sender and the
+ * {@link ValueServer} plays the lossy mesh. For datagrams it drops a share of
+ * the frames. For TCP a lost segment is retransmitted after the
+ * retransmission timeout, and every frame behind it waits too, so the proxy
+ * holds the stream for {@code RETRANSMIT_TIMEOUT_MS} instead. Run it on a
+ * regular JVM with:
+ *
+ * <pre>
+ * TransportLossBenchmark [values] [intervalMicros] [lossPercent]
+ * </pre>
+ *
+ * Latency is from the sender's write to the server's dispatch, in microseconds.
+ */
+public class TransportLossBenchmark {
+    // Linux's minimum retransmission timeout, the best case for a lost TCP segment
+    private static final long RETRANSMIT_TIMEOUT_MS = 200;
+    // How long to wait for stragglers once everything was sent
+    private static final long DRAIN_MS = 2 * RETRANSMIT_TIMEOUT_MS + 500;
+
+    public static void main(String[] args) throws Exception {
+        int values = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+        long intervalMicros = args.length > 1 ? Long.parseLong(args[1]) : 5_000;
+        int lossPercent = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        run(false, values, intervalMicros, lossPercent);
+        run(true, values, intervalMicros, lossPercent);
+    }
+
+    private static void run(boolean datagrams, int values, long intervalMicros, int lossPercent)
+            throws Exception {
+        long[] sendTimes = new long[values];
+        LatencyHistogram latency = new LatencyHistogram();
+        ValueServer server = new ValueServer(0, new ValueServer.Listener() {
+            @Override
+            public void onConnectionOpened(int connectionId, SocketAddress address) {}
+
+            @Override
+            public void onValues(int connectionId, int[] batch, int count) {
+                long now = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    latency.record((now - sendTimes[batch[i]]) / 1000);
+                }
+            }
+
+            @Override
+            public void onConnectionClosed(int connectionId) {}
+        });
+        Thread serverThread = new Thread(server, "ValueServer");
+        serverThread.start();
+        while (server.getLocalPort() < 0) {
+            Thread.sleep(1);
+        }
+
+        Random random = new Random(42);
+        InetSocketAddress target =
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_FRAME_SIZE);
+        Thread proxy;
+        if (datagrams) {
+            DatagramSocket proxySocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            proxy = startThread(() -> dropDatagrams(proxySocket, target, random, lossPercent));
+            try (DatagramSocket socket = new DatagramSocket()) {
+                socket.connect(proxySocket.getLocalSocketAddress());
+                DatagramPacket packet = new DatagramPacket(frame.array(), 0);
+                for (int i = 0; i < values; i++) {
+                    frame.clear();
+                    packet.setLength(FrameCodec.encodeValue(frame, i, i));
+                    sendTimes[i] = System.nanoTime();
+                    socket.send(packet);
+                    pause(intervalMicros);
+                }
+                Thread.sleep(DRAIN_MS);
+            } finally {
+                proxySocket.close();
+            }
+        } else {
+            ServerSocket proxySocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            proxy = startThread(() -> delayStream(proxySocket, target, random, lossPercent));
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                    proxySocket.getLocalPort())) {
+                socket.setTcpNoDelay(true);
+                OutputStream out = socket.getOutputStream();
+                for (int i = 0; i < values; i++) {
+                    frame.clear();
+                    int length = FrameCodec.encodeValue(frame, i, i);
+                    sendTimes[i] = System.nanoTime();
+                    out.write(frame.array(), 0, length);
+                    pause(intervalMicros);
+                }
+                Thread.sleep(DRAIN_MS);
+            } finally {
+                proxySocket.close();
+            }
+        }
+        proxy.join();
+        server.stop();
+        serverThread.join();
+
+        StringBuilder report = new StringBuilder(datagrams ? "udp" : "tcp")
+                .append(" loss=").append(lossPercent).append('%')
+                .append(" delivered=").append(latency.getCount()).append('/').append(values)
+                .append(" stale=").append(server.getStaleDatagramCount())
+                .append(" p90_us=").append(latency.getPercentile(0.90)).append(' ');
+        latency.appendTo(report, "us_");
+        System.out.println(report);
+    }
+
+    /**
+     * Forward datagrams to the target, dropping the given share of them.
+     */
+    private static void dropDatagrams(DatagramSocket socket, SocketAddress target, Random random,
+            int lossPercent) throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[FrameCodec.MAX_FRAME_SIZE],
+                FrameCodec.MAX_FRAME_SIZE);
+        while (true) {
+            packet.setLength(FrameCodec.MAX_FRAME_SIZE);
+            socket.receive(packet);
+            if (random.nextInt(100) >= lossPercent) {
+                packet.setSocketAddress(target);
+                socket.send(packet);
+            }
+        }
+    }
+
+    /**
+     * Forward one stream connection to the target frame by frame, stalling the
+     * whole stream for a retransmission timeout on each frame that is "lost".
+     */
+    private static void delayStream(ServerSocket serverSocket, SocketAddress target, Random random,
+            int lossPercent) throws IOException, InterruptedException {
+        try (Socket in = serverSocket.accept(); Socket out = new Socket()) {
+            out.setTcpNoDelay(true);
+            out.connect(target);
+            DataInputStream input = new DataInputStream(in.getInputStream());
+            OutputStream output = out.getOutputStream();
+            byte[] frame = new byte[FrameCodec.MAX_FRAME_SIZE];
+            while (true) {
+                input.readFully(frame, 0, FrameCodec.HEADER_SIZE);
+                int length = FrameCodec.HEADER_SIZE + (frame[1] & 0xFF);
+                input.readFully(frame, FrameCodec.HEADER_SIZE, length - FrameCodec.HEADER_SIZE);
+                if (random.nextInt(100) < lossPercent) {
+                    Thread.sleep(RETRANSMIT_TIMEOUT_MS);
+                }
+                output.write(frame, 0, length);
+            }
+        }
+    }
+
+    private interface Loop {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private static Thread startThread(Loop loop) {
+        Thread thread = new Thread(() -> {
+            try {
+                loop.run();
+            } catch (IOException | InterruptedException e) {
+                // Socket closed at the end of the run
+            }
+        }, "LossyLink");
+        thread.start();
+        return thread;
+    }
+
+    private static void pause(long micros) {
+        long deadline = System.nanoTime() + micros * 1000;
+        while (System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+
+/**
+ * Measures appending to a {@link ValueHistory} and scanning windows of it at
+ * millions of samples, and checks that neither allocates.
+ *
+ * Run it on a regular JVM with:
+ *
+ * <pre>
+ * ValueHistoryBenchmark [capacity] [appends] [windowSamples]
+ * </pre>
+ *
+ * Appends wrap the ring several times. Each scan summarizes a window of
+ * {@code windowSamples} samples at a random position, as the receiver does
+ * when a connection closes. Allocation is reported on JVMs that count it per
+ * thread, and as -1 elsewhere.
+ */
+public class ValueHistoryBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int SCANS = 10_000;
+
+    // Per-thread allocation counter of HotSpot-based JVMs, looked up reflectively
+    private static final Object sThreadBean;
+    private static final Method sAllocatedBytes;
+
+    static {
+        Object bean = null;
+        Method method = null;
+        try {
+            bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            bean = null;
+        }
+        sThreadBean = bean;
+        sAllocatedBytes = method;
+    }
+
+    public static void main(String[] args) {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+        int appends = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+        int window = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+
+        ValueHistory history = new ValueHistory(capacity);
+        ValueHistory.Summary summary = new ValueHistory.Summary();
+        long bestAppend = Long.MAX_VALUE;
+        long bestScan = Long.MAX_VALUE;
+        long appendBytes = Long.MAX_VALUE;
+        long scanBytes = Long.MAX_VALUE;
+        long sink = 0;
+        // Best of several rounds, the first of which warms up the compiler
+        for (int round = 0; round < ROUNDS; round++) {
+            history.clear();
+            long startBytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < appends; i++) {
+                history.append(i, i ^ (i >>> 3));
+            }
+            bestAppend = Math.min(bestAppend, System.nanoTime() - start);
+            appendBytes = Math.min(appendBytes, allocatedBytes() - startBytes);
+
+            long oldest = history.getTimestamp(0);
+            int span = Math.max(1, history.size() - window);
+            startBytes = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < SCANS; i++) {
+                long from = oldest + (i * 7919L) % span;
+                sink += history.summarize(from, from + window, summary).sum;
+            }
+            bestScan = Math.min(bestScan, System.nanoTime() - start);
+            scanBytes = Math.min(scanBytes, allocatedBytes() - startBytes);
+        }
+
+        System.out.println(String.format(Locale.US,
+                "capacity=%d append_ns=%.2f scan_ns_per_sample=%.2f scan_us_per_window=%.1f"
+                        + " append_alloc=%s scan_alloc=%s sink=%d",
+                capacity, (double) bestAppend / appends,
+                (double) bestScan / ((long) SCANS * window), bestScan / 1e3 / SCANS,
+                sAllocatedBytes == null ? "-1" : Long.toString(appendBytes),
+                sAllocatedBytes == null ? "-1" : Long.toString(scanBytes), sink));
+    }
+
+    private static long allocatedBytes() {
+        if (sAllocatedBytes == null) {
+            return 0;
+        }
+        try {
+            return (Long) sAllocatedBytes.invoke(sThreadBean, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException e) {
+            return 0;
+        }
+    }
+}
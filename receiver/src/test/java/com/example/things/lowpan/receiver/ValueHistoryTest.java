@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ValueHistoryTest {
+
+    @Test
+    public void keepsSamplesInOrderBeforeFilling() {
+        ValueHistory history = new ValueHistory(4);
+        history.append(10, 1);
+        history.append(20, 2);
+        assertEquals(2, history.size());
+        assertEquals(10, history.getTimestamp(0));
+        assertEquals(2, history.getValue(1));
+    }
+
+    @Test
+    public void overwritesOldestOnceFull() {
+        ValueHistory history = new ValueHistory(3);
+        for (int i = 0; i < 7; i++) {
+            history.append(i * 10, i);
+        }
+        assertEquals(3, history.size());
+        assertEquals(4, history.getValue(0));
+        assertEquals(5, history.getValue(1));
+        assertEquals(6, history.getValue(2));
+        assertEquals(60, history.getTimestamp(2));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndexPastSize() {
+        ValueHistory history = new ValueHistory(3);
+        history.append(0, 0);
+        history.getValue(1);
+    }
+
+    @Test
+    public void findsWindowAcrossWraparound() {
+        ValueHistory history = new ValueHistory(5);
+        // Timestamps 30..70 remain, with the oldest in the middle of the arrays
+        for (int i = 0; i < 8; i++) {
+            history.append(i * 10, i);
+        }
+        assertEquals(0, history.indexOf(0));
+        assertEquals(0, history.indexOf(30));
+        assertEquals(1, history.indexOf(31));
+        assertEquals(4, history.indexOf(70));
+        assertEquals(5, history.indexOf(71));
+
+        long[] timestamps = new long[8];
+        int[] values = new int[8];
+        int count = history.copyRange(35, 65, timestamps, values);
+        assertEquals(3, count);
+        assertArrayEquals(new int[] { 4, 5, 6 }, Arrays.copyOf(values, count));
+        assertEquals(40, timestamps[0]);
+    }
+
+    @Test
+    public void copyRangeStopsWhenArraysAreFull() {
+        ValueHistory history = new ValueHistory(10);
+        for (int i = 0; i < 10; i++) {
+            history.append(i, i);
+        }
+        int[] values = new int[4];
+        assertEquals(4, history.copyRange(0, 100, new long[4], values));
+        assertArrayEquals(new int[] { 0, 1, 2, 3 }, values);
+    }
+
+    @Test
+    public void summarizesWindow() {
+        ValueHistory history = new ValueHistory(4);
+        int[] values = { 9, -3, 7, 100, 4, -8 };
+        for (int i = 0; i < values.length; i++) {
+            history.append(i, values[i]);
+        }
+        // Holds 7, 100, 4, -8 at timestamps 2..5
+        ValueHistory.Summary summary = history.summarize(3, 6, new ValueHistory.Summary());
+        assertEquals(3, summary.count);
+        assertEquals(-8, summary.min);
+        assertEquals(100, summary.max);
+        assertEquals(96, summary.sum);
+        assertEquals(32.0, summary.mean(), 0);
+
+        history.summarize(50, 60, summary);
+        assertEquals(0, summary.count);
+        assertEquals(0, summary.mean(), 0);
+    }
+
+    @Test
+    public void clearEmptiesHistory() {
+        ValueHistory history = new ValueHistory(2);
+        history.append(1, 1);
+        history.append(2, 2);
+        history.append(3, 3);
+        history.clear();
+        assertEquals(0, history.size());
+        history.append(4, 4);
+        assertEquals(4, history.getValue(0));
+    }
+}
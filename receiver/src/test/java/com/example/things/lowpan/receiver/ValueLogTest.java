@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+public class ValueLogTest {
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void continuesAfterLastRecordOnReopen() throws IOException {
+        File directory = mFolder.getRoot();
+        try (ValueLog log = new ValueLog(directory, 16, 4, DAY_MS)) {
+            for (int i = 1; i <= 10; i++) {
+                log.append(now() + i, 1, i);
+            }
+        }
+        try (ValueLog log = new ValueLog(directory, 16, 4, DAY_MS)) {
+            for (int i = 11; i <= 15; i++) {
+                log.append(now() + i, 2, i);
+            }
+        }
+        assertArrayEquals(range(1, 15), replayValues(directory));
+    }
+
+    @Test
+    public void recordWithoutTimestampIsNotReplayed() throws IOException {
+        File directory = mFolder.getRoot();
+        try (ValueLog log = new ValueLog(directory, 16, 4, DAY_MS)) {
+            for (int i = 1; i <= 3; i++) {
+                log.append(now() + i, 1, i);
+            }
+        }
+        // A crash after the source and value of the fourth record, before its timestamp
+        File segment = directory.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(3 * ValueLog.RECORD_SIZE + 8);
+            file.writeInt(1);
+            file.writeInt(99);
+        }
+        assertArrayEquals(range(1, 3), replayValues(directory));
+
+        // The torn slot is reused by the next append
+        try (ValueLog log = new ValueLog(directory, 16, 4, DAY_MS)) {
+            log.append(now() + 4, 1, 4);
+        }
+        assertArrayEquals(range(1, 4), replayValues(directory));
+    }
+
+    @Test
+    public void dropsOldestSegmentsPastCount() throws IOException {
+        File directory = mFolder.getRoot();
+        try (ValueLog log = new ValueLog(directory, 4, 2, DAY_MS)) {
+            for (int i = 1; i <= 18; i++) {
+                log.append(now() + i, 1, i);
+            }
+        }
+        assertEquals(2, directory.listFiles().length);
+        // Segments of four: 13..16 is full and 17..18 is active
+        assertArrayEquals(range(13, 18), replayValues(directory));
+    }
+
+    @Test
+    public void dropsExpiredSegmentsOnOpen() throws IOException {
+        File directory = mFolder.getRoot();
+        long longAgo = now() - 10 * DAY_MS;
+        try (ValueLog log = new ValueLog(directory, 4, 10, 100 * DAY_MS)) {
+            for (int i = 1; i <= 10; i++) {
+                log.append(longAgo + i, 1, i);
+            }
+        }
+        assertEquals(3, directory.listFiles().length);
+
+        // Opening with a shorter retention deletes every segment but the active one
+        try (ValueLog log = new ValueLog(directory, 4, 10, DAY_MS)) {
+            assertEquals(1, directory.listFiles().length);
+        }
+        assertArrayEquals(range(9, 10), replayValues(directory));
+    }
+
+    @Test
+    public void lastReadsOnlyTheNewestRecord() throws IOException {
+        File directory = mFolder.getRoot();
+        long[] last = new long[3];
+        ValueLog.RecordVisitor keepLast = (timestamp, source, value) -> {
+            last[0] = timestamp;
+            last[1] = source;
+            last[2] = value;
+        };
+        try (ValueLog log = new ValueLog(directory, 4, 10, DAY_MS)) {
+            assertFalse(log.last(keepLast));
+            log.append(now(), 3, 30);
+            log.append(now(), 4, 40);
+            assertTrue(log.last(keepLast));
+            assertEquals(4, last[1]);
+            assertEquals(40, last[2]);
+        }
+        // Reopened with the active segment full, the next append starts a new one
+        try (ValueLog log = new ValueLog(directory, 4, 10, DAY_MS)) {
+            log.append(now(), 5, 50);
+            log.append(now(), 6, 60);
+            log.append(now(), 7, 70);
+        }
+        try (ValueLog log = new ValueLog(directory, 4, 10, DAY_MS)) {
+            assertTrue(log.last(keepLast));
+            assertEquals(70, last[2]);
+            log.append(now(), 8, 80);
+            assertEquals(2, directory.listFiles().length);
+            assertTrue(log.last(keepLast));
+            assertEquals(80, last[2]);
+        }
+    }
+
+    @Test
+    public void logEndsAtTheFirstHole() throws IOException {
+        File directory = mFolder.getRoot();
+        try (ValueLog log = new ValueLog(directory, 16, 4, DAY_MS)) {
+            for (int i = 1; i <= 6; i++) {
+                log.append(now() + i, 1, i);
+            }
+        }
+        // A power loss that kept the later records but not the third
+        File segment = directory.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(2 * ValueLog.RECORD_SIZE);
+            file.writeLong(0);
+        }
+        assertArrayEquals(range(1, 2), replayValues(directory));
+
+        // Appending continues at the hole rather than after the records past it
+        try (ValueLog log = new ValueLog(directory, 16, 4, DAY_MS)) {
+            log.append(now() + 7, 1, 7);
+        }
+        assertArrayEquals(new int[] { 1, 2, 7, 4, 5, 6 }, replayValues(directory));
+    }
+
+    @Test
+    public void retentionRunsOnTheMaintenanceExecutor() throws IOException {
+        File directory = mFolder.getRoot();
+        Queue<Runnable> maintenance = new ArrayDeque<>();
+        try (ValueLog log = new ValueLog(directory, 4, 2, DAY_MS, maintenance::add)) {
+            for (int i = 1; i <= 18; i++) {
+                log.append(now() + i, 1, i);
+            }
+            // Nothing is deleted until the executor runs its tasks
+            assertEquals(5, directory.listFiles().length);
+            while (!maintenance.isEmpty()) {
+                maintenance.remove().run();
+            }
+            assertEquals(2, directory.listFiles().length);
+        }
+        assertArrayEquals(range(13, 18), replayValues(directory));
+    }
+
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+    private static int[] range(int first, int last) {
+        int[] values = new int[last - first + 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = first + i;
+        }
+        return values;
+    }
+
+    private static int[] replayValues(File directory) throws IOException {
+        List<Integer> values = new ArrayList<>();
+        ValueLog.replay(directory, 0, (timestamp, source, value) -> values.add(value));
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+}
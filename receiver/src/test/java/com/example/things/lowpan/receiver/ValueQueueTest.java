@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ValueQueueTest {
+    private static final int STRESS_VALUES = 2_000_000;
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1, new ValueQueue(1, ValueQueue.OverloadPolicy.BLOCK).capacity());
+        assertEquals(8, new ValueQueue(5, ValueQueue.OverloadPolicy.BLOCK).capacity());
+        assertEquals(8, new ValueQueue(8, ValueQueue.OverloadPolicy.BLOCK).capacity());
+    }
+
+    @Test
+    public void drainsInOrder() {
+        ValueQueue queue = new ValueQueue(8, ValueQueue.OverloadPolicy.BLOCK);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(i, i * 10));
+        }
+        int[] sources = new int[3];
+        int[] values = new int[3];
+        assertEquals(3, queue.drainTo(sources, values));
+        assertArrayEquals(new int[] { 0, 10, 20 }, values);
+        assertEquals(2, queue.drainTo(sources, values));
+        assertEquals(4, sources[1]);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void dropNewestKeepsOldest() {
+        ValueQueue queue = new ValueQueue(4, ValueQueue.OverloadPolicy.DROP_NEWEST);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, queue.offer(0, i));
+        }
+        int[] values = new int[8];
+        assertEquals(4, queue.drainTo(new int[8], values));
+        assertEquals(3, values[3]);
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestKeepsNewest() {
+        ValueQueue queue = new ValueQueue(4, ValueQueue.OverloadPolicy.DROP_OLDEST);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(queue.offer(0, i));
+        }
+        int[] values = new int[8];
+        assertEquals(4, queue.drainTo(new int[8], values));
+        assertEquals(2, values[0]);
+        assertEquals(5, values[3]);
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    @Test
+    public void closeReleasesBlockedProducer() throws InterruptedException {
+        ValueQueue queue = new ValueQueue(1, ValueQueue.OverloadPolicy.BLOCK);
+        assertTrue(queue.offer(0, 1));
+        AtomicBoolean accepted = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> accepted.set(queue.offer(0, 2)));
+        producer.start();
+        while (queue.getStallCount() == 0) {
+            Thread.sleep(1);
+        }
+        queue.close();
+        producer.join(5_000);
+        assertFalse(producer.isAlive());
+        assertFalse(accepted.get());
+    }
+
+    @Test
+    public void dropOldestUnderContentionNeverTearsOrReorders() throws InterruptedException {
+        ValueQueue queue = new ValueQueue(16, ValueQueue.OverloadPolicy.DROP_OLDEST);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < STRESS_VALUES; i++) {
+                queue.offer(i, ~i);
+            }
+            queue.close();
+        });
+        producer.start();
+        long received = consume(queue, producer, false);
+        assertEquals(STRESS_VALUES, received + queue.getDroppedCount());
+        assertTrue("nothing was dropped, so the race was not exercised",
+                queue.getDroppedCount() > 0);
+    }
+
+    @Test
+    public void blockDeliversEverythingInOrder() throws InterruptedException {
+        ValueQueue queue = new ValueQueue(16, ValueQueue.OverloadPolicy.BLOCK);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < STRESS_VALUES; i++) {
+                queue.offer(i, ~i);
+            }
+        });
+        producer.start();
+        long received = consume(queue, producer, true);
+        assertEquals(STRESS_VALUES, received);
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    /**
+     * Drain until the producer is done and the queue is empty, checking that
+     * every value belongs to its source and that sources only increase.
+     */
+    private static long consume(ValueQueue queue, Thread producer, boolean contiguous)
+            throws InterruptedException {
+        int[] sources = new int[7];
+        int[] values = new int[7];
+        long received = 0;
+        int last = -1;
+        while (true) {
+            boolean done = !producer.isAlive();
+            int count = queue.drainTo(sources, values);
+            for (int i = 0; i < count; i++) {
+                assertEquals("torn read", ~sources[i], values[i]);
+                if (contiguous) {
+                    assertEquals(last + 1, sources[i]);
+                } else {
+                    assertTrue("reordered", sources[i] > last);
+                }
+                last = sources[i];
+            }
+            received += count;
+            if (done && count == 0) {
+                break;
+            }
+        }
+        producer.join();
+        return received;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.example.things.lowpan.common.Frame;
+import com.example.things.lowpan.common.FrameCodec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+public class ValueRelayTest {
+    private static final int SOURCE = 3;
+
+    private final ValueRelay mRelay = new ValueRelay();
+
+    @Test
+    public void sharedBufferIsReleasedAfterEverySubscriberWrote() throws IOException {
+        FakeChannel first = new FakeChannel();
+        FakeChannel second = new FakeChannel();
+        ValueRelay.Subscriber a = subscribe(first, FrameCodec.SUBSCRIBE_ALL);
+        ValueRelay.Subscriber b = subscribe(second, SOURCE);
+
+        mRelay.publish(SOURCE, new int[] { 1, -2, 3 }, 3);
+        assertEquals(SelectionKey.OP_WRITE, a.mKey.interestOps());
+        assertFalse(mRelay.flush(first, a));
+        assertEquals(0, mRelay.getPooledBufferCount());
+        assertFalse(mRelay.flush(second, b));
+        assertEquals(1, mRelay.getPooledBufferCount());
+
+        assertEquals(values(1, -2, 3), first.decode());
+        assertEquals(values(1, -2, 3), second.decode());
+    }
+
+    @Test
+    public void unsubscribeReleasesQueuedBuffers() {
+        ValueRelay.Subscriber a = subscribe(new FakeChannel(), FrameCodec.SUBSCRIBE_ALL);
+        ValueRelay.Subscriber b = subscribe(new FakeChannel(), FrameCodec.SUBSCRIBE_ALL);
+        mRelay.publish(SOURCE, new int[] { 1 }, 1);
+        mRelay.unsubscribe(a);
+        assertEquals(0, mRelay.getPooledBufferCount());
+        mRelay.unsubscribe(b);
+        assertEquals(1, mRelay.getPooledBufferCount());
+        assertEquals(0, mRelay.getSubscriberCount());
+    }
+
+    @Test
+    public void filteredSourceIsNotEncoded() {
+        subscribe(new FakeChannel(), SOURCE + 1);
+        mRelay.publish(SOURCE, new int[] { 1 }, 1);
+        assertEquals(0, mRelay.getPublishedCount());
+    }
+
+    @Test
+    public void partialWritesResumeAtTheirOffset() throws IOException {
+        FakeChannel channel = new FakeChannel();
+        channel.mBudget = 5;
+        ValueRelay.Subscriber subscriber = subscribe(channel, FrameCodec.SUBSCRIBE_ALL);
+        // Enough values to span several shared buffers
+        int[] published = new int[200];
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < published.length; i++) {
+            published[i] = i * 7919 - 100_000;
+            expected.add(published[i]);
+        }
+        mRelay.publish(SOURCE, published, published.length);
+
+        int partial = 0;
+        while (mRelay.flush(channel, subscriber)) {
+            partial++;
+        }
+        assertTrue(partial > 0);
+        assertEquals(expected, channel.decode());
+    }
+
+    @Test
+    public void slowSubscriberDropsOldestUnsentBatch() throws IOException {
+        FakeChannel slow = new FakeChannel();
+        FakeChannel fast = new FakeChannel();
+        ValueRelay.Subscriber slowSubscriber = subscribe(slow, FrameCodec.SUBSCRIBE_ALL);
+        ValueRelay.Subscriber fastSubscriber = subscribe(fast, FrameCodec.SUBSCRIBE_ALL);
+
+        int batches = 70;
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < batches; i++) {
+            mRelay.publish(SOURCE, new int[] { i }, 1);
+            all.add(i);
+            assertFalse(mRelay.flush(fast, fastSubscriber));
+            if (i == 0) {
+                // Start the first batch on the wire so it can't be dropped
+                slow.mBudget = 3;
+                assertTrue(mRelay.flush(slow, slowSubscriber));
+                slow.mBudget = 0;
+            }
+        }
+        // 64 batches fit; the head is partly written, so batches 1..6 are dropped
+        assertEquals(6, mRelay.getDroppedCount());
+
+        slow.mBudget = Integer.MAX_VALUE;
+        assertFalse(mRelay.flush(slow, slowSubscriber));
+        List<Integer> expected = new ArrayList<>(all.subList(7, batches));
+        expected.add(0, 0);
+        assertEquals(expected, slow.decode());
+        assertEquals(all, fast.decode());
+    }
+
+    private ValueRelay.Subscriber subscribe(FakeChannel channel, int source) {
+        return mRelay.subscribe(new FakeKey(channel), null, source);
+    }
+
+    private static List<Integer> values(Integer... values) {
+        List<Integer> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+
+    /**
+     * Channel that records what is written and accepts at most
+     * {@code mBudget} bytes per write.
+     */
+    private static class FakeChannel extends SocketChannel {
+        final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+        int mBudget = Integer.MAX_VALUE;
+
+        FakeChannel() {
+            super(SelectorProvider.provider());
+        }
+
+        List<Integer> decode() throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(mWritten.toByteArray());
+            Frame frame = new Frame();
+            List<Integer> values = new ArrayList<>();
+            while (FrameCodec.decode(in, frame)) {
+                assertEquals(FrameCodec.TYPE_PUBLISH, frame.getType());
+                assertEquals(SOURCE, frame.getSource());
+                values.add(frame.getValue());
+            }
+            assertFalse("trailing partial frame", in.hasRemaining());
+            return values;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length && written < mBudget; i++) {
+                ByteBuffer src = srcs[i];
+                while (src.hasRemaining() && written < mBudget) {
+                    mWritten.write(src.get());
+                    written++;
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            return 0;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            return 0;
+        }
+
+        @Override
+        public SocketChannel bind(SocketAddress local) {
+            return this;
+        }
+
+        @Override
+        public <T> SocketChannel setOption(SocketOption<T> name, T value) {
+            return this;
+        }
+
+        @Override
+        public <T> T getOption(SocketOption<T> name) {
+            return null;
+        }
+
+        @Override
+        public Set<SocketOption<?>> supportedOptions() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public SocketChannel shutdownInput() {
+            return this;
+        }
+
+        @Override
+        public SocketChannel shutdownOutput() {
+            return this;
+        }
+
+        @Override
+        public Socket socket() {
+            return null;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isConnectionPending() {
+            return false;
+        }
+
+        @Override
+        public boolean connect(SocketAddress remote) {
+            return true;
+        }
+
+        @Override
+        public boolean finishConnect() {
+            return true;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        protected void implCloseSelectableChannel() {}
+
+        @Override
+        protected void implConfigureBlocking(boolean block) {}
+    }
+
+    /**
+     * Selection key that only tracks its interest set.
+     */
+    private static class FakeKey extends SelectionKey {
+        private final SelectableChannel mChannel;
+        private int mInterestOps;
+
+        FakeKey(SelectableChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public SelectableChannel channel() {
+            return mChannel;
+        }
+
+        @Override
+        public Selector selector() {
+            return null;
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public void cancel() {}
+
+        @Override
+        public int interestOps() {
+            return mInterestOps;
+        }
+
+        @Override
+        public SelectionKey interestOps(int ops) {
+            mInterestOps = ops;
+            return this;
+        }
+
+        @Override
+        public int readyOps() {
+            return 0;
+        }
+    }
+}
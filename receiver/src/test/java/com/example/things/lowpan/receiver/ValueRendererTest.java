@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ValueRendererTest {
+    // Ten frames per second, one every 100ms
+    private static final int MAX_FPS = 10;
+
+    private final ManualScheduler mScheduler = new ManualScheduler();
+    private final List<Integer> mRendered = new ArrayList<>();
+    private final ValueRenderer mRenderer = new ValueRenderer(mScheduler, MAX_FPS, mRendered::add);
+
+    @Test
+    public void onlyTheNewestValueIsDrawn() {
+        mRenderer.offer(1);
+        mRenderer.offer(2);
+        mRenderer.offer(3);
+        // The dirty slot holds a single frame, however many values arrive
+        assertEquals(1, mScheduler.mTasks.size());
+        assertTrue(mRenderer.isFramePending());
+
+        mScheduler.advance(0);
+        assertEquals(Collections.singletonList(3), mRendered);
+        assertEquals(2, mRenderer.getDroppedCount());
+        assertEquals(1, mRenderer.getRenderedCount());
+        assertFalse(mRenderer.isFramePending());
+    }
+
+    @Test
+    public void framesArePacedByTheFrameRate() {
+        mRenderer.offer(1);
+        mScheduler.advance(0);
+        mScheduler.advance(10);
+        mRenderer.offer(2);
+        mScheduler.advance(89);
+        assertEquals(Collections.singletonList(1), mRendered);
+
+        mScheduler.advance(1);
+        assertEquals(Arrays.asList(1, 2), mRendered);
+        // A value after a quiet spell is drawn at once
+        mScheduler.advance(500);
+        mRenderer.offer(3);
+        mScheduler.advance(0);
+        assertEquals(Arrays.asList(1, 2, 3), mRendered);
+        assertEquals(0, mRenderer.getDroppedCount());
+    }
+
+    @Test
+    public void batchKeepsOnlyItsLastValue() {
+        int[] values = { 4, 5, 6, 0 };
+        mRenderer.offer(values, 3);
+        mRenderer.offer(values, 0);
+        mScheduler.advance(0);
+
+        assertEquals(Collections.singletonList(6), mRendered);
+        assertEquals(2, mRenderer.getDroppedCount());
+    }
+
+    @Test
+    public void cancelDiscardsThePendingFrame() {
+        mRenderer.offer(1);
+        mRenderer.cancel();
+        mScheduler.advance(1000);
+        assertTrue(mRendered.isEmpty());
+
+        mRenderer.offer(2);
+        mScheduler.advance(0);
+        assertEquals(Collections.singletonList(2), mRendered);
+    }
+
+    private static class ManualScheduler implements ValueRenderer.Scheduler {
+        final List<Task> mTasks = new ArrayList<>();
+        // Away from zero, like a device that has been up for a while
+        long mNow = 1_000_000;
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public void postAtTime(Runnable runnable, long uptimeMillis) {
+            mTasks.add(new Task(runnable, uptimeMillis));
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            mTasks.removeIf(task -> task.mRunnable == runnable);
+        }
+
+        /**
+         * Move the clock forward and run every task that became due, in order.
+         */
+        void advance(long millis) {
+            mNow += millis;
+            while (true) {
+                Task next = null;
+                for (Task task : mTasks) {
+                    if (task.mDueAt <= mNow && (next == null || task.mDueAt < next.mDueAt)) {
+                        next = task;
+                    }
+                }
+                if (next == null) {
+                    return;
+                }
+                mTasks.remove(next);
+                next.mRunnable.run();
+            }
+        }
+    }
+
+    private static class Task {
+        final Runnable mRunnable;
+        final long mDueAt;
+
+        Task(Runnable runnable, long dueAt) {
+            mRunnable = runnable;
+            mDueAt = dueAt;
+        }
+    }
+}
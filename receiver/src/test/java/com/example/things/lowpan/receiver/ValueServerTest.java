@@ -0,0 +1,250 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.receiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.example.things.lowpan.common.FrameCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ValueServerTest {
+    private static final long TIMEOUT_MS = 5_000;
+    private static final long DATAGRAM_IDLE_TIMEOUT_MS = 200;
+
+    private final RecordingListener mListener = new RecordingListener();
+    private ValueServer mServer;
+    private Thread mServerThread;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mServer = new ValueServer(0, mListener);
+        mServer.setDatagramIdleTimeout(DATAGRAM_IDLE_TIMEOUT_MS);
+        mServerThread = new Thread(mServer, "ValueServer");
+        mServerThread.start();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (mServer.getLocalPort() < 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue("server did not start", mServer.getLocalPort() > 0);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mServer.stop();
+        mServerThread.join(TIMEOUT_MS);
+    }
+
+    @Test
+    public void valuesWrittenTogetherArriveInFewerBatches() throws Exception {
+        int count = 200;
+        ByteBuffer frames = ByteBuffer.allocate(count * FrameCodec.MAX_VALUE_FRAME_SIZE);
+        for (int i = 0; i < count; i++) {
+            FrameCodec.encodeValue(frames, i, i * 1000 - 7);
+        }
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write(frames.array(), 0, frames.position());
+            mListener.awaitValues(count);
+        }
+
+        int[] expected = new int[count];
+        for (int i = 0; i < count; i++) {
+            expected[i] = i * 1000 - 7;
+        }
+        assertArrayEquals(expected, mListener.values());
+        assertTrue("one dispatch per value: " + mListener.batchCount(),
+                mListener.batchCount() < count);
+    }
+
+    @Test
+    public void frameSplitAcrossWritesIsReassembled() throws Exception {
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_FRAME_SIZE);
+        int length = FrameCodec.encodeValue(frame, 1, Integer.MIN_VALUE);
+        try (Socket socket = connect()) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; i < length; i++) {
+                out.write(frame.array(), i, 1);
+                out.flush();
+                Thread.sleep(20);
+            }
+            mListener.awaitValues(1);
+        }
+        assertArrayEquals(new int[] { Integer.MIN_VALUE }, mListener.values());
+    }
+
+    @Test
+    public void malformedFrameClosesOnlyThatConnection() throws Exception {
+        try (Socket bad = connect(); Socket good = connect()) {
+            mListener.awaitOpened(2);
+            bad.getOutputStream().write(new byte[] { 9, 9, 9, 9, 9 });
+            mListener.awaitClosed(1);
+
+            ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_FRAME_SIZE);
+            int length = FrameCodec.encodeValue(frame, 1, 42);
+            good.getOutputStream().write(frame.array(), 0, length);
+            mListener.awaitValues(1);
+        }
+        assertArrayEquals(new int[] { 42 }, mListener.values());
+        assertEquals(1, mListener.errorCount());
+    }
+
+    @Test
+    public void staleDatagramsAreDiscarded() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(InetAddress.getLoopbackAddress(), mServer.getLocalPort());
+            sendDatagram(socket, 5, 5);
+            mListener.awaitValues(1);
+            // Overtaken by the frame above, so it must not be delivered
+            sendDatagram(socket, 3, 3);
+            sendDatagram(socket, 6, 6);
+            mListener.awaitValues(2);
+        }
+        assertArrayEquals(new int[] { 5, 6 }, mListener.values());
+        assertEquals(1, mServer.getStaleDatagramCount());
+    }
+
+    @Test
+    public void idleDatagramSourceIsClosed() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(InetAddress.getLoopbackAddress(), mServer.getLocalPort());
+            sendDatagram(socket, 1, 1);
+            mListener.awaitOpened(1);
+            assertEquals(1, mServer.getDatagramSourceCount());
+            // A source without a connection still counts as sending
+            assertEquals(0, mServer.getConnectionCount());
+            assertEquals(1, mServer.getSourceCount());
+
+            mListener.awaitClosed(1);
+            assertEquals(0, mServer.getDatagramSourceCount());
+            assertEquals(0, mServer.getSourceCount());
+
+            // The same address is a new source once it sends again
+            sendDatagram(socket, 2, 2);
+            mListener.awaitOpened(2);
+        }
+    }
+
+    private void sendDatagram(DatagramSocket socket, int sequence, int value) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_FRAME_SIZE);
+        int length = FrameCodec.encodeValue(frame, sequence, value);
+        socket.send(new DatagramPacket(frame.array(), length));
+    }
+
+    private Socket connect() throws IOException {
+        return new Socket(InetAddress.getLoopbackAddress(), mServer.getLocalPort());
+    }
+
+    /**
+     * Collects callbacks from the server thread and lets the test wait for them.
+     */
+    static class RecordingListener implements ValueServer.Listener {
+        private final List<Integer> mValues = new ArrayList<>();
+        private int mBatches;
+        private int mOpened;
+        private int mClosed;
+        private int mErrors;
+
+        @Override
+        public synchronized void onConnectionOpened(int connectionId, SocketAddress address) {
+            mOpened++;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onValues(int connectionId, int[] values, int count) {
+            mBatches++;
+            for (int i = 0; i < count; i++) {
+                mValues.add(values[i]);
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onConnectionClosed(int connectionId) {
+            mClosed++;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onError(String message, IOException e) {
+            mErrors++;
+        }
+
+        synchronized int[] values() {
+            int[] values = new int[mValues.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = mValues.get(i);
+            }
+            return values;
+        }
+
+        synchronized int batchCount() {
+            return mBatches;
+        }
+
+        synchronized int errorCount() {
+            return mErrors;
+        }
+
+        synchronized void awaitValues(int count) throws InterruptedException {
+            await(() -> mValues.size() >= count, "values " + count);
+        }
+
+        synchronized void awaitOpened(int count) throws InterruptedException {
+            await(() -> mOpened >= count, "opened " + count);
+        }
+
+        synchronized void awaitClosed(int count) throws InterruptedException {
+            await(() -> mClosed >= count, "closed " + count);
+        }
+
+        private interface Condition {
+            boolean met();
+        }
+
+        private void await(Condition condition, String what) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!condition.met()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new AssertionError("timed out waiting for " + what
+                            + ", got " + Arrays.toString(values()));
+                }
+                wait(left);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.scanner;
+
+import com.google.android.things.lowpan.LowpanBeaconInfo;
+import com.google.android.things.lowpan.LowpanIdentity;
+
+import java.util.Arrays;
+
+/**
+ * Display strings of one beacon row, formatted once and reused for every
+ * bind until the details they show change.
+ */
+public class BeaconDisplay {
+    private String mName;
+    private byte[] mXpanid;
+    private String mXpanidText;
+    private byte[] mAddress;
+    private String mAddressText;
+    private int mChannel;
+    private String mChannelText;
+    private int mPanid;
+    private String mPanidText;
+    private int mRssiLevel;
+    private int mLqi;
+
+    /**
+     * Refresh the strings from a beacon, reformatting only the fields that changed.
+     */
+    public void update(LowpanBeaconInfo beacon) {
+        LowpanIdentity identity = beacon.getLowpanIdentity();
+        update(identity.getName(), identity.getXpanid(), beacon.getBeaconAddress(),
+                identity.getChannel(), identity.getPanid(), beacon.getRssi(), beacon.getLqi());
+    }
+
+    /**
+     * Refresh the strings from a beacon's fields, reformatting only the ones that changed.
+     */
+    public void update(String name, byte[] xpanid, byte[] address, int channel, int panid,
+            int rssi, int lqi) {
+        mName = name;
+        if (mXpanidText == null || !Arrays.equals(mXpanid, xpanid)) {
+            mXpanid = xpanid;
+            mXpanidText = Utils.bytesToHex(xpanid);
+        }
+        if (mAddressText == null || !Arrays.equals(mAddress, address)) {
+            mAddress = address;
+            mAddressText = Utils.bytesToAddrHex(address);
+        }
+        if (mChannelText == null || mChannel != channel) {
+            mChannel = channel;
+            mChannelText = Integer.toString(channel);
+        }
+        if (mPanidText == null || mPanid != panid) {
+            mPanid = panid;
+            mPanidText = Utils.shortToHex(panid);
+        }
+        mRssiLevel = Utils.rssiToLqi(rssi);
+        mLqi = lqi;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getXpanidText() {
+        return mXpanidText;
+    }
+
+    public String getAddressText() {
+        return mAddressText;
+    }
+
+    public String getChannelText() {
+        return mChannelText;
+    }
+
+    public String getPanidText() {
+        return mPanidText;
+    }
+
+    /**
+     * Returns the signal strength scaled like an LQI, for the RSSI bar.
+     */
+    public int getRssiLevel() {
+        return mRssiLevel;
+    }
+
+    public int getLqi() {
+        return mLqi;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.scanner;
+
+import com.google.android.things.lowpan.LowpanBeaconInfo;
+import com.google.android.things.lowpan.LowpanIdentity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Beacons heard by the scanner, one row per router of each network.
+ *
+ * Rows are keyed by the network's extended PAN ID and the beacon's MAC
+ * address, so a router that is heard again updates its row in place instead
+ * of adding another one. Lookups take constant time and reuse a single key,
+ * so updating a known row does not allocate. Rows keep the order in which
+ * they were first heard, until one is removed.
+ *
+ * With a time-to-live, routers that are not heard again within it are
+ * evicted by a {@link TimerWheel}, so expiry only looks at the rows that are
+ * due instead of scanning the whole table.
+ *
+ * Not thread-safe; use it from the main thread.
+ */
+public class BeaconTable {
+
+    /**
+     * Receives the rows that need to be redrawn.
+     */
+    public interface Listener {
+        /** Called when a beacon from a new router was added at the end of the table. */
+        void onRowInserted(int position);
+
+        /** Called when a router was heard again with different details. */
+        void onRowChanged(int position);
+
+        /** Called when a router expired; the last row has moved into its position. */
+        void onRowRemoved(int position);
+    }
+
+    // Resolution of expiry, as a fraction of the time-to-live
+    private static final int EXPIRY_TICKS = 32;
+
+    /**
+     * The latest beacon heard from one router.
+     */
+    public static class Row extends TimerWheel.Entry {
+        Key mKey;
+        LowpanBeaconInfo mBeacon;
+        long mLastSeenMillis;
+        int mSeenCount;
+        int mPosition;
+        // Strings of the beacon last displayed, formatted when the row is first bound
+        private BeaconDisplay mDisplay;
+        private LowpanBeaconInfo mDisplayedBeacon;
+
+        public LowpanBeaconInfo getBeacon() {
+            return mBeacon;
+        }
+
+        /**
+         * Returns the row's display strings, refreshed if the beacon was replaced.
+         */
+        public BeaconDisplay getDisplay() {
+            if (mDisplay == null) {
+                mDisplay = new BeaconDisplay();
+            }
+            if (mDisplayedBeacon != mBeacon) {
+                mDisplay.update(mBeacon);
+                mDisplayedBeacon = mBeacon;
+            }
+            return mDisplay;
+        }
+
+        /**
+         * Returns the time the router was last heard, as passed to {@link #update}.
+         */
+        public long getLastSeenMillis() {
+            return mLastSeenMillis;
+        }
+
+        /**
+         * Returns the number of beacons heard from the router.
+         */
+        public int getSeenCount() {
+            return mSeenCount;
+        }
+    }
+
+    private final Listener mListener;
+    private final long mTtlMillis;
+    private final Map<Key, Row> mRows = new HashMap<>();
+    private final List<Row> mOrder = new ArrayList<>();
+    private final Key mLookupKey = new Key();
+    // Created with the first update, once the current time is known
+    private TimerWheel<Row> mWheel;
+
+    private long mInsertedCount;
+    private long mEvictedCount;
+
+    /**
+     * @param listener Receives the rows that need to be redrawn.
+     * @param ttlMillis Time after which a router that was not heard again is
+     *         removed, or 0 to keep every row until {@link #clear()}.
+     */
+    public BeaconTable(Listener listener, long ttlMillis) {
+        mListener = listener;
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Add the beacon, or replace the earlier beacon from the same router.
+     *
+     * @param beacon The beacon that was heard.
+     * @param nowMillis Current time, recorded as the router's last-seen time.
+     */
+    public void update(LowpanBeaconInfo beacon, long nowMillis) {
+        Row row = record(beacon.getLowpanIdentity().getXpanid(), beacon.getBeaconAddress(),
+                nowMillis);
+        LowpanBeaconInfo previous = row.mBeacon;
+        row.mBeacon = beacon;
+        if (previous == null) {
+            mListener.onRowInserted(row.mPosition);
+        } else if (!isSameDisplay(previous, beacon)) {
+            mListener.onRowChanged(row.mPosition);
+        }
+    }
+
+    /**
+     * Add a row for the router, or refresh its existing row, without setting
+     * the beacon or notifying the listener.
+     *
+     * @return The router's row; a new one has no beacon yet.
+     */
+    Row record(byte[] xpanid, byte[] address, long nowMillis) {
+        mLookupKey.set(xpanid, address);
+        Row row = mRows.get(mLookupKey);
+        if (row == null) {
+            row = new Row();
+            row.mKey = new Key(mLookupKey);
+            row.mPosition = mOrder.size();
+            mRows.put(row.mKey, row);
+            mOrder.add(row);
+            mInsertedCount++;
+        }
+        row.mLastSeenMillis = nowMillis;
+        row.mSeenCount++;
+        scheduleExpiry(row, nowMillis);
+        return row;
+    }
+
+    /**
+     * Remove the routers that were not heard within the time-to-live.
+     *
+     * @return The number of rows removed.
+     */
+    public int expire(long nowMillis) {
+        if (mWheel == null) {
+            return 0;
+        }
+        return mWheel.advance(nowMillis, mExpiryListener);
+    }
+
+    /**
+     * Returns the resolution of expiry, the longest useful interval between
+     * calls to {@link #expire(long)}, or 0 without a time-to-live.
+     */
+    public long getExpiryTickMillis() {
+        return mTtlMillis > 0 ? Math.max(1, mTtlMillis / EXPIRY_TICKS) : 0;
+    }
+
+    /**
+     * Returns the number of rows added since the table was created.
+     */
+    public long getInsertedCount() {
+        return mInsertedCount;
+    }
+
+    /**
+     * Returns the number of rows removed by expiry since the table was created.
+     */
+    public long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * Returns the number of rows.
+     */
+    public int size() {
+        return mOrder.size();
+    }
+
+    /**
+     * Returns the row at a position, in the order routers were first heard.
+     */
+    public Row get(int position) {
+        return mOrder.get(position);
+    }
+
+    /**
+     * Remove every row.
+     */
+    public void clear() {
+        if (mWheel != null) {
+            for (Row row : mOrder) {
+                mWheel.cancel(row);
+            }
+        }
+        mRows.clear();
+        mOrder.clear();
+    }
+
+    private void scheduleExpiry(Row row, long nowMillis) {
+        if (mTtlMillis <= 0) {
+            return;
+        }
+        if (mWheel == null) {
+            mWheel = new TimerWheel<>(getExpiryTickMillis(), mTtlMillis, nowMillis);
+        }
+        mWheel.schedule(row, nowMillis + mTtlMillis);
+    }
+
+    private final TimerWheel.ExpiryListener<Row> mExpiryListener = this::evict;
+
+    /**
+     * Remove an expired row, filling its gap with the last row so removal is constant time.
+     */
+    private void evict(Row row) {
+        mRows.remove(row.mKey);
+        Row last = mOrder.remove(mOrder.size() - 1);
+        if (last != row) {
+            mOrder.set(row.mPosition, last);
+            last.mPosition = row.mPosition;
+        }
+        mEvictedCount++;
+        mListener.onRowRemoved(row.mPosition);
+    }
+
+    /**
+     * Returns true if the beacons would be displayed the same way.
+     */
+    private static boolean isSameDisplay(LowpanBeaconInfo a, LowpanBeaconInfo b) {
+        LowpanIdentity identityA = a.getLowpanIdentity();
+        LowpanIdentity identityB = b.getLowpanIdentity();
+        return a.getRssi() == b.getRssi()
+                && a.getLqi() == b.getLqi()
+                && identityA.getChannel() == identityB.getChannel()
+                && identityA.getPanid() == identityB.getPanid()
+                && identityA.getName().equals(identityB.getName());
+    }
+
+    /**
+     * Extended PAN ID and MAC address, each packed into a long. Both are eight
+     * bytes on 802.15.4; longer values are folded, and the length is kept so
+     * a short address can't match an extended one.
+     */
+    private static final class Key {
+        long mXpanid;
+        long mAddress;
+        int mAddressLength;
+
+        Key() {}
+
+        Key(Key other) {
+            mXpanid = other.mXpanid;
+            mAddress = other.mAddress;
+            mAddressLength = other.mAddressLength;
+        }
+
+        void set(byte[] xpanid, byte[] address) {
+            mXpanid = pack(xpanid);
+            mAddress = pack(address);
+            mAddressLength = address == null ? 0 : address.length;
+        }
+
+        private static long pack(byte[] bytes) {
+            long packed = 0;
+            if (bytes != null) {
+                for (byte b : bytes) {
+                    packed = (packed << 8 | packed >>> 56) ^ (b & 0xFF);
+                }
+            }
+            return packed;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mXpanid == other.mXpanid && mAddress == other.mAddress
+                    && mAddressLength == other.mAddressLength;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = mXpanid * 31 + mAddress;
+            return (int) (hash ^ hash >>> 32) * 31 + mAddressLength;
+        }
+    }
+}
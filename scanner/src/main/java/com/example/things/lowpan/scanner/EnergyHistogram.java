@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.scanner;
+
+import com.example.things.lowpan.common.ChannelAnalyzer;
+
+import java.util.Arrays;
+
+/**
+ * Per-channel histograms of the peak signal strength reported by energy scans.
+ *
+ * Each channel has a fixed set of 5 dB buckets from -100 dBm up, with weaker
+ * samples counted in the first bucket and stronger ones in the last. All
+ * counts live in flat primitive arrays allocated up front, so adding a sample
+ * never allocates.
+ *
+ * This class has no Android dependencies and is not thread-safe.
+ */
+final class EnergyHistogram {
+    private static final int FIRST_CHANNEL = ChannelAnalyzer.FIRST_CHANNEL;
+    private static final int LAST_CHANNEL = ChannelAnalyzer.LAST_CHANNEL;
+    private static final int CHANNEL_COUNT = LAST_CHANNEL - FIRST_CHANNEL + 1;
+    // Lower edge of the first bucket, and the width of every bucket
+    static final int MIN_RSSI = -100;
+    static final int BUCKET_WIDTH = 5;
+    static final int BUCKET_COUNT = 16;
+    // Bar characters from empty to the fullest bucket of the channel
+    private static final char[] BAR = " .:-=+*#".toCharArray();
+
+    // Bucket counts, BUCKET_COUNT per channel
+    private final int[] mCounts = new int[CHANNEL_COUNT * BUCKET_COUNT];
+    private final int[] mSampleCount = new int[CHANNEL_COUNT];
+    private final long[] mRssiSum = new long[CHANNEL_COUNT];
+    private final int[] mMaxRssi = new int[CHANNEL_COUNT];
+
+    EnergyHistogram() {
+        clear();
+    }
+
+    /**
+     * Count one energy scan result. Results for channels outside 11-26 are ignored.
+     */
+    void add(int channel, int maxRssi) {
+        if (channel < FIRST_CHANNEL || channel > LAST_CHANNEL) {
+            return;
+        }
+        int index = channel - FIRST_CHANNEL;
+        mCounts[index * BUCKET_COUNT + bucketOf(maxRssi)]++;
+        mSampleCount[index]++;
+        mRssiSum[index] += maxRssi;
+        if (maxRssi > mMaxRssi[index]) {
+            mMaxRssi[index] = maxRssi;
+        }
+    }
+
+    /**
+     * Returns the number of samples counted for the channel.
+     */
+    int getSampleCount(int channel) {
+        return isValidChannel(channel) ? mSampleCount[channel - FIRST_CHANNEL] : 0;
+    }
+
+    /**
+     * Returns the number of samples in a bucket of the channel. Bucket {@code b}
+     * holds samples from {@code MIN_RSSI + b * BUCKET_WIDTH} dBm up.
+     */
+    int getCount(int channel, int bucket) {
+        if (!isValidChannel(channel) || bucket < 0 || bucket >= BUCKET_COUNT) {
+            return 0;
+        }
+        return mCounts[(channel - FIRST_CHANNEL) * BUCKET_COUNT + bucket];
+    }
+
+    /**
+     * Returns the mean of the channel's samples in dBm, or {@code MIN_RSSI}
+     * if there are none.
+     */
+    int getMeanRssi(int channel) {
+        int samples = getSampleCount(channel);
+        if (samples == 0) {
+            return MIN_RSSI;
+        }
+        return (int) Math.round((double) mRssiSum[channel - FIRST_CHANNEL] / samples);
+    }
+
+    /**
+     * Returns the strongest sample of the channel in dBm, or {@code MIN_RSSI}
+     * if there are none.
+     */
+    int getMaxRssi(int channel) {
+        return getSampleCount(channel) == 0 ? MIN_RSSI : mMaxRssi[channel - FIRST_CHANNEL];
+    }
+
+    /**
+     * Returns the upper edge of the bucket holding the given fraction of the
+     * channel's samples, capped at the strongest sample. A channel that is
+     * quiet on average but has a loud 90th percentile sees bursty traffic.
+     */
+    int getPercentileRssi(int channel, double fraction) {
+        int samples = getSampleCount(channel);
+        if (samples == 0) {
+            return MIN_RSSI;
+        }
+        int base = (channel - FIRST_CHANNEL) * BUCKET_COUNT;
+        int target = Math.max(1, (int) Math.ceil(fraction * samples));
+        int seen = 0;
+        int bucket = 0;
+        while (bucket < BUCKET_COUNT - 1) {
+            seen += mCounts[base + bucket];
+            if (seen >= target) {
+                break;
+            }
+            bucket++;
+        }
+        int upper = MIN_RSSI + (bucket + 1) * BUCKET_WIDTH - 1;
+        return Math.min(upper, getMaxRssi(channel));
+    }
+
+    /**
+     * Feed the mean noise of every measured channel to a channel analyzer.
+     */
+    void addTo(ChannelAnalyzer analyzer) {
+        for (int channel = FIRST_CHANNEL; channel <= LAST_CHANNEL; channel++) {
+            if (getSampleCount(channel) > 0) {
+                analyzer.addEnergy(channel, getMeanRssi(channel));
+            }
+        }
+    }
+
+    /**
+     * Forget every sample.
+     */
+    void clear() {
+        Arrays.fill(mCounts, 0);
+        Arrays.fill(mSampleCount, 0);
+        Arrays.fill(mRssiSum, 0);
+        Arrays.fill(mMaxRssi, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Append one line per channel, with its sample count, mean, 90th
+     * percentile and peak in dBm, followed by a bar per bucket from weakest
+     * to strongest. Meant for a monospace font.
+     */
+    void render(StringBuilder out) {
+        out.append("ch    n mean  p90  max  ").append(MIN_RSSI).append(" dBm\n");
+        for (int channel = FIRST_CHANNEL; channel <= LAST_CHANNEL; channel++) {
+            int index = channel - FIRST_CHANNEL;
+            int samples = mSampleCount[index];
+            out.append(channel);
+            appendPadded(out, samples, 5);
+            if (samples == 0) {
+                out.append('\n');
+                continue;
+            }
+            appendPadded(out, getMeanRssi(channel), 5);
+            appendPadded(out, getPercentileRssi(channel, 0.9), 5);
+            appendPadded(out, getMaxRssi(channel), 5);
+            out.append("  |");
+            int base = index * BUCKET_COUNT;
+            int fullest = 0;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                fullest = Math.max(fullest, mCounts[base + bucket]);
+            }
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                int count = mCounts[base + bucket];
+                // Any sample at all shows, however small its share
+                int level = count == 0 ? 0
+                        : 1 + (int) ((long) count * (BAR.length - 2) / fullest);
+                out.append(BAR[level]);
+            }
+            out.append("|\n");
+        }
+    }
+
+    private static int bucketOf(int rssi) {
+        int bucket = Math.floorDiv(rssi - MIN_RSSI, BUCKET_WIDTH);
+        return Math.max(0, Math.min(BUCKET_COUNT - 1, bucket));
+    }
+
+    private static boolean isValidChannel(int channel) {
+        return channel >= FIRST_CHANNEL && channel <= LAST_CHANNEL;
+    }
+
+    private static void appendPadded(StringBuilder out, int value, int width) {
+        int length = out.length();
+        out.append(value);
+        int digits = out.length() - length;
+        for (int i = digits; i < width; i++) {
+            out.insert(length, ' ');
+        }
+    }
+}
@@ -20,53 +20,84 @@ import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.google.android.things.lowpan.LowpanBeaconInfo;
 
 /**
- * List adapter to bind and display details of a LoWPAN network beacon.
+ * List adapter to bind and display details of the LoWPAN network beacons in a
+ * {@link BeaconTable}.
  */
-public class LowpanBeaconAdapter extends ArrayAdapter<LowpanBeaconInfo> {
+public class LowpanBeaconAdapter extends BaseAdapter {
+    private final Context mContext;
+    private final BeaconTable mTable;
 
-    public LowpanBeaconAdapter(Context context) {
-        super(context, 0);
+    public LowpanBeaconAdapter(Context context, BeaconTable table) {
+        mContext = context;
+        mTable = table;
+    }
+
+    @Override
+    public int getCount() {
+        return mTable.size();
+    }
+
+    @Override
+    public LowpanBeaconInfo getItem(int position) {
+        return mTable.get(position).getBeacon();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
         if (convertView == null) {
-            LayoutInflater inflater = LayoutInflater.from(getContext());
+            LayoutInflater inflater = LayoutInflater.from(mContext);
             convertView = inflater.inflate(R.layout.list_item_beacon, parent, false);
+            holder = new ViewHolder(convertView);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
         }
 
-        LowpanBeaconInfo beacon = getItem(position);
+        BeaconDisplay display = mTable.get(position).getDisplay();
+        holder.mNetworkName.setText(display.getName());
+        holder.mXpanid.setText(display.getXpanidText());
+        holder.mChannel.setText(display.getChannelText());
+        holder.mPanid.setText(display.getPanidText());
+        holder.mMacAddress.setText(display.getAddressText());
+        holder.mRssiProgress.setProgress(display.getRssiLevel());
+        holder.mLqiProgress.setProgress(display.getLqi());
 
-        TextView networkNameView = convertView.findViewById(R.id.networkName);
-        networkNameView.setText(beacon.getLowpanIdentity().getName());
-
-        TextView xpanidView = convertView.findViewById(R.id.xpanid);
-        xpanidView.setText(Utils.bytesToHex(beacon.getLowpanIdentity().getXpanid()));
-
-        TextView chanView = convertView.findViewById(R.id.chanValue);
-        chanView.setText(String.format("%d", beacon.getLowpanIdentity().getChannel()));
-
-        TextView panidView = convertView.findViewById(R.id.panidValue);
-        panidView.setText(String.format("%04X", beacon.getLowpanIdentity().getPanid()));
-
-        TextView macAddrView = convertView.findViewById(R.id.macaddr);
-        macAddrView.setText(Utils.bytesToAddrHex(beacon.getBeaconAddress()));
-
-        ProgressBar rssiProgressView = convertView.findViewById(R.id.rssiProgress);
-        int rssi = Utils.rssiToLqi(beacon.getRssi());
-        rssiProgressView.setProgress(rssi);
+        return convertView;
+    }
 
-        ProgressBar lqiProgressView = convertView.findViewById(R.id.lqiProgress);
-        int lqi = beacon.getLqi();
-        lqiProgressView.setProgress(lqi);
+    /**
+     * Views of one row, looked up once when the row is inflated.
+     */
+    private static class ViewHolder {
+        final TextView mNetworkName;
+        final TextView mXpanid;
+        final TextView mChannel;
+        final TextView mPanid;
+        final TextView mMacAddress;
+        final ProgressBar mRssiProgress;
+        final ProgressBar mLqiProgress;
 
-        return convertView;
+        ViewHolder(View row) {
+            mNetworkName = row.findViewById(R.id.networkName);
+            mXpanid = row.findViewById(R.id.xpanid);
+            mChannel = row.findViewById(R.id.chanValue);
+            mPanid = row.findViewById(R.id.panidValue);
+            mMacAddress = row.findViewById(R.id.macaddr);
+            mRssiProgress = row.findViewById(R.id.rssiProgress);
+            mLqiProgress = row.findViewById(R.id.lqiProgress);
+        }
     }
 }
@@ -20,6 +20,7 @@ import android.app.Activity;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
@@ -27,9 +28,11 @@ import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import com.example.things.lowpan.common.ChannelAnalyzer;
 import com.google.android.things.contrib.driver.lowpan.UartLowpanDriver;
 import com.google.android.things.lowpan.LowpanBeaconInfo;
 import com.google.android.things.lowpan.LowpanCredential;
+import com.google.android.things.lowpan.LowpanEnergyScanResult;
 import com.google.android.things.lowpan.LowpanException;
 import com.google.android.things.lowpan.LowpanIdentity;
 import com.google.android.things.lowpan.LowpanInterface;
@@ -51,14 +54,44 @@ public class LowpanScanActivity extends Activity implements AdapterView.OnItemCl
     // Network info
     private static final String LOWPAN_KEY = "FC4262D8F8F79502ABCD326356C610A5";
 
+    // Keep scanning until stopped, for site surveys, instead of scanning once per tap
+    private static final boolean CONTINUOUS_SCAN = false;
+    // Idle time between continuous scans; the radio's scan duty cycle is scan / (scan + pause)
+    private static final long SCAN_PAUSE_MS = 2_000;
+    // Remove routers not heard for this long during continuous scans
+    private static final long BEACON_TTL_MS = 60_000;
+    // Energy scan passes per tap of Energy; each pass measures every channel once
+    private static final int ENERGY_SCAN_PASSES = 50;
+    // Treat a stopped network scan as finished if it has not reported so by then
+    private static final long NET_SCAN_STOP_TIMEOUT_MS = 1_000;
+
     private LowpanManager mLowpanManager = LowpanManager.getInstance();
     private LowpanInterface mLowpanInterface = null;
     private LowpanScanner mLowpanScanner = null;
     private UartLowpanDriver mLowpanDriver;
 
-    private Button mScanButton;
-    private TextView mInterfaceStatus, mNetworkStatus;
+    private Button mScanButton, mEnergyButton;
+    private TextView mInterfaceStatus, mNetworkStatus, mEnergyView;
+    private ListView mBeaconsView;
+    private BeaconTable mBeaconTable;
     private LowpanBeaconAdapter mBeaconsAdapter;
+    private Handler mUiThreadHandler;
+    // Set while a full refresh of the list is posted, which makes row updates redundant
+    private boolean mRefreshPending;
+    // Continuous scanning state, and the table's counters when the current scan started
+    private boolean mContinuousScanning;
+    // Set from starting a network scan until it reports that it finished, even if stopped,
+    // or until NET_SCAN_STOP_TIMEOUT_MS after it was stopped
+    private boolean mNetScanPending;
+    private int mScanCount;
+    private long mScanStartMillis;
+    private long mScanStartInserted;
+    private long mScanStartEvicted;
+    // Energy scan state; the histogram keeps the last results for forming a network
+    private final EnergyHistogram mEnergyHistogram = new EnergyHistogram();
+    private final StringBuilder mEnergyText = new StringBuilder();
+    private boolean mEnergyScanning;
+    private int mEnergyPassCount;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -68,19 +101,26 @@ public class LowpanScanActivity extends Activity implements AdapterView.OnItemCl
         mScanButton = findViewById(R.id.scanButton);
         mScanButton.setOnClickListener((view) -> beginScan());
 
+        mEnergyButton = findViewById(R.id.energyButton);
+        mEnergyButton.setOnClickListener(view -> beginEnergyScan());
+
         Button provisionButton = findViewById(R.id.provisionButton);
         provisionButton.setOnClickListener(view -> createNewNetwork());
 
         Button leaveButton = findViewById(R.id.leaveButton);
         leaveButton.setOnClickListener(view -> leaveNetwork());
 
-        ListView beaconsView = findViewById(R.id.beacons);
-        beaconsView.setOnItemClickListener(this);
-        mBeaconsAdapter = new LowpanBeaconAdapter(this);
-        beaconsView.setAdapter(mBeaconsAdapter);
+        mUiThreadHandler = new Handler(Looper.getMainLooper());
+        mBeaconsView = findViewById(R.id.beacons);
+        mBeaconsView.setOnItemClickListener(this);
+        mBeaconTable = new BeaconTable(mBeaconTableListener,
+                CONTINUOUS_SCAN ? BEACON_TTL_MS : 0);
+        mBeaconsAdapter = new LowpanBeaconAdapter(this, mBeaconTable);
+        mBeaconsView.setAdapter(mBeaconsAdapter);
 
         mInterfaceStatus = findViewById(R.id.interfaceStatus);
         mNetworkStatus = findViewById(R.id.networkStatus);
+        mEnergyView = findViewById(R.id.energyHistogram);
 
         try {
             mLowpanManager.registerCallback(mInterfaceCallback);
@@ -133,6 +173,10 @@ public class LowpanScanActivity extends Activity implements AdapterView.OnItemCl
         }
 
         mLowpanManager.unregisterCallback(mInterfaceCallback);
+        mUiThreadHandler.removeCallbacks(mRefreshRunnable);
+        stopContinuousScan();
+        stopEnergyScan();
+        mUiThreadHandler.removeCallbacks(mNetScanTimeoutRunnable);
     }
 
     /**
@@ -163,6 +207,7 @@ public class LowpanScanActivity extends Activity implements AdapterView.OnItemCl
             Log.e(TAG, "No LoWPAN interface found");
             mInterfaceStatus.setText(R.string.error_no_lowpan_interface);
             mScanButton.setEnabled(false);
+            mEnergyButton.setEnabled(false);
             return;
         }
         mLowpanInterface.registerCallback(mStateCallback);
@@ -172,53 +217,310 @@ public class LowpanScanActivity extends Activity implements AdapterView.OnItemCl
 
         mInterfaceStatus.setText(R.string.ready_to_scan);
         mScanButton.setEnabled(true);
+        mEnergyButton.setEnabled(true);
     }
 
     /**
      * Start to scan for nearby LoWPAN networks.
      */
     private void beginScan() {
+        if (mContinuousScanning) {
+            stopContinuousScan();
+            return;
+        }
+
         // Empty the list
-        mBeaconsAdapter.clear();
+        mBeaconTable.clear();
+        mBeaconsAdapter.notifyDataSetChanged();
+        mEnergyView.setVisibility(View.GONE);
+        mBeaconsView.setVisibility(View.VISIBLE);
+
+        if (!startScan()) {
+            return;
+        }
+
+        if (CONTINUOUS_SCAN) {
+            // The button stops the scans instead
+            mContinuousScanning = true;
+            mScanCount = 0;
+            mScanButton.setText(R.string.button_stop);
+            mUiThreadHandler.postDelayed(mExpireRunnable, mBeaconTable.getExpiryTickMillis());
+            return;
+        }
+
+        // Disable buttons until scan is complete
+        mScanButton.setEnabled(false);
+        mEnergyButton.setEnabled(false);
+    }
 
-        // Start scanning for networks
+    /**
+     * Start one network scan, keeping the table's results.
+     *
+     * @return {@code false} if the scan could not be started.
+     */
+    private boolean startScan() {
         try {
             mLowpanScanner.startNetScan();
+            mUiThreadHandler.removeCallbacks(mNetScanTimeoutRunnable);
+            mNetScanPending = true;
             Log.d(TAG, "Scanning for networks...");
             mInterfaceStatus.setText(R.string.progress_scanning);
         } catch (LowpanException e) {
             mInterfaceStatus.setText(R.string.error_scan_failed);
             Log.e(TAG, "Scan failed", e);
-            return;
+            return false;
         }
+        mScanStartMillis = SystemClock.elapsedRealtime();
+        mScanStartInserted = mBeaconTable.getInsertedCount();
+        mScanStartEvicted = mBeaconTable.getEvictedCount();
+        return true;
+    }
 
-        // Disable button until scan is complete
-        mScanButton.setEnabled(false);
+    /**
+     * End continuous scanning, keeping the results of the scans so far.
+     */
+    private void stopContinuousScan() {
+        if (!mContinuousScanning) {
+            return;
+        }
+        mContinuousScanning = false;
+        mUiThreadHandler.removeCallbacks(mRescanRunnable);
+        mUiThreadHandler.removeCallbacks(mExpireRunnable);
+        if (mLowpanScanner != null) {
+            mLowpanScanner.stopNetScan();
+        }
+        if (mNetScanPending) {
+            mUiThreadHandler.postDelayed(mNetScanTimeoutRunnable, NET_SCAN_STOP_TIMEOUT_MS);
+        }
+        mScanButton.setText(R.string.button_scan);
+        mInterfaceStatus.setText(R.string.scan_finished);
     }
 
     /**
      * A callback that is run when the scan is complete.
      */
     private void scanComplete() {
+        if (mContinuousScanning) {
+            reportScan();
+            mUiThreadHandler.postDelayed(mRescanRunnable, SCAN_PAUSE_MS);
+            return;
+        }
+
         // Network scan is complete
         mInterfaceStatus.setText(R.string.scan_finished);
         Log.d(TAG, "Scan Finished");
 
-        // Enable the scan button again
+        // Enable the scan buttons again
+        mScanButton.setEnabled(true);
+        mEnergyButton.setEnabled(true);
+    }
+
+    /**
+     * A callback that is run when a network scan has finished, or was stopped
+     * and did not report finishing in time.
+     */
+    private void netScanFinished() {
+        mNetScanPending = false;
+        mUiThreadHandler.removeCallbacks(mNetScanTimeoutRunnable);
+        if (!mEnergyScanning) {
+            scanComplete();
+        } else if (!startEnergyPass()) {
+            stopEnergyScan();
+        }
+    }
+
+    /**
+     * Start to measure the energy on every channel, repeatedly, and show
+     * how the peaks spread. Tapping again stops early.
+     */
+    private void beginEnergyScan() {
+        if (mEnergyScanning) {
+            stopEnergyScan();
+            return;
+        }
+        stopContinuousScan();
+
+        mEnergyHistogram.clear();
+        mEnergyPassCount = 0;
+        // A stopped network scan finishes first; its finish would otherwise count as a pass
+        if (!mNetScanPending && !startEnergyPass()) {
+            return;
+        }
+        mEnergyScanning = true;
+        mScanButton.setEnabled(false);
+        mEnergyButton.setText(R.string.button_stop);
+        mBeaconsView.setVisibility(View.GONE);
+        mEnergyView.setVisibility(View.VISIBLE);
+        showEnergyHistogram();
+    }
+
+    /**
+     * Start one energy scan pass, keeping the histogram's results.
+     *
+     * @return {@code false} if the scan could not be started.
+     */
+    private boolean startEnergyPass() {
+        try {
+            mLowpanScanner.startEnergyScan();
+        } catch (LowpanException e) {
+            mInterfaceStatus.setText(R.string.error_scan_failed);
+            Log.e(TAG, "Energy scan failed", e);
+            return false;
+        }
+        mInterfaceStatus.setText(getString(R.string.progress_energy_scan,
+                mEnergyPassCount + 1, ENERGY_SCAN_PASSES));
+        return true;
+    }
+
+    /**
+     * A callback that is run when an energy scan pass is complete.
+     */
+    private void energyPassComplete() {
+        mEnergyPassCount++;
+        showEnergyHistogram();
+        if (mEnergyPassCount < ENERGY_SCAN_PASSES && startEnergyPass()) {
+            return;
+        }
+        stopEnergyScan();
+    }
+
+    /**
+     * End the energy scan, keeping the histogram of the passes so far.
+     */
+    private void stopEnergyScan() {
+        if (!mEnergyScanning) {
+            return;
+        }
+        mEnergyScanning = false;
+        // No pass has started while a stopped network scan is still finishing
+        if (mLowpanScanner != null && !mNetScanPending) {
+            mLowpanScanner.stopEnergyScan();
+        }
+        Log.i(TAG, "Energy scan of " + mEnergyPassCount + " passes:\n" + mEnergyText);
+        mEnergyButton.setText(R.string.button_energy);
         mScanButton.setEnabled(true);
+        mInterfaceStatus.setText(R.string.scan_finished);
+    }
+
+    /**
+     * Redraw the energy histogram.
+     */
+    private void showEnergyHistogram() {
+        mEnergyText.setLength(0);
+        mEnergyHistogram.render(mEnergyText);
+        mEnergyView.setText(mEnergyText.toString());
+    }
+
+    /**
+     * Log and show how long the last continuous scan took and how much the
+     * set of routers changed during it.
+     */
+    private void reportScan() {
+        mScanCount++;
+        long durationMillis = SystemClock.elapsedRealtime() - mScanStartMillis;
+        long added = mBeaconTable.getInsertedCount() - mScanStartInserted;
+        long evicted = mBeaconTable.getEvictedCount() - mScanStartEvicted;
+        int rows = mBeaconTable.size();
+        // Share of the table that came or went during this scan
+        double churn = rows == 0 ? 0 : (double) (added + evicted) / rows;
+        String report = getString(R.string.status_scan_report, mScanCount, durationMillis,
+                rows, added, evicted, churn * 100);
+        Log.i(TAG, report);
+        mInterfaceStatus.setText(report);
     }
 
     /**
-     * Add a newly discovered LoWPAN network to the list of nearby LoWPAN networks.
+     * Task to start the next continuous scan after a pause.
+     */
+    private final Runnable mRescanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mContinuousScanning && !startScan()) {
+                stopContinuousScan();
+            }
+        }
+    };
+
+    /**
+     * Task to stop waiting for a stopped network scan that never reported finishing.
+     */
+    private final Runnable mNetScanTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mNetScanPending) {
+                Log.w(TAG, "Network scan did not finish after it was stopped");
+                netScanFinished();
+            }
+        }
+    };
+
+    /**
+     * Task to evict routers that have not been heard within their time-to-live.
+     */
+    private final Runnable mExpireRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mBeaconTable.expire(SystemClock.elapsedRealtime());
+            mUiThreadHandler.postDelayed(this, mBeaconTable.getExpiryTickMillis());
+        }
+    };
+
+    /**
+     * Add a newly discovered LoWPAN network to the list of nearby LoWPAN networks,
+     * or update the row of a router that was heard before.
      *
      * @param beacon The LoWPAN network that was discovered.
      */
     private void addDiscoveredBeacon(LowpanBeaconInfo beacon) {
-        // Display information about each beacon when it is discovered.
-        mBeaconsAdapter.add(beacon);
-        Log.d(TAG, "Added beacon: " + beacon.toString());
+        mBeaconTable.update(beacon, SystemClock.elapsedRealtime());
     }
 
+    /**
+     * Redraw only what changed in the beacon table.
+     */
+    private BeaconTable.Listener mBeaconTableListener = new BeaconTable.Listener() {
+        @Override
+        public void onRowInserted(int position) {
+            Log.d(TAG, "Added beacon: " + mBeaconTable.get(position).getBeacon());
+            // New rows change the list's layout; lay it out once for all rows added this frame
+            if (!mRefreshPending) {
+                mRefreshPending = true;
+                mUiThreadHandler.post(mRefreshRunnable);
+            }
+        }
+
+        @Override
+        public void onRowRemoved(int position) {
+            if (!mRefreshPending) {
+                mRefreshPending = true;
+                mUiThreadHandler.post(mRefreshRunnable);
+            }
+        }
+
+        @Override
+        public void onRowChanged(int position) {
+            if (mRefreshPending) {
+                return;
+            }
+            // Rebind the row's view in place if it is on screen; others bind when scrolled to
+            int index = position - mBeaconsView.getFirstVisiblePosition();
+            if (index >= 0 && index < mBeaconsView.getChildCount()) {
+                mBeaconsAdapter.getView(position, mBeaconsView.getChildAt(index), mBeaconsView);
+            }
+        }
+    };
+
+    /**
+     * Task to lay out the list after rows were added.
+     */
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mRefreshPending = false;
+            mBeaconsAdapter.notifyDataSetChanged();
+        }
+    };
+
     /**
      * Handle results when new networks are detected by the scanner.
      */
@@ -229,9 +531,18 @@ public class LowpanScanActivity extends Activity implements AdapterView.OnItemCl
             addDiscoveredBeacon(beacon);
         }
 
+        @Override
+        public void onEnergyScanResult(LowpanEnergyScanResult result) {
+            mEnergyHistogram.add(result.getChannel(), result.getMaxRssi());
+        }
+
         @Override
         public void onScanFinished() {
-            scanComplete();
+            if (mNetScanPending) {
+                netScanFinished();
+            } else if (mEnergyScanning) {
+                energyPassComplete();
+            }
         }
     };
 
@@ -251,10 +562,10 @@ public class LowpanScanActivity extends Activity implements AdapterView.OnItemCl
         Random random = new Random();
         // Generate a new network name that is easily unique, ie. "LoWPAN_142"
         String name = "LoWPAN_" + Integer.toString(random.nextInt(1000));
+        LowpanIdentity.Builder identity = new LowpanIdentity.Builder().setName(name);
+        chooseChannel(identity, random);
         LowpanProvisioningParams params = new LowpanProvisioningParams.Builder()
-                .setLowpanIdentity(new LowpanIdentity.Builder()
-                    .setName(name)
-                    .build())
+                .setLowpanIdentity(identity.build())
                 .setLowpanCredential(LowpanCredential.createMasterKey(LOWPAN_KEY))
                 .build();
         try {
@@ -270,6 +581,42 @@ public class LowpanScanActivity extends Activity implements AdapterView.OnItemCl
         }
     }
 
+    /**
+     * Set the least congested channel, and a PAN ID no network in range uses,
+     * from the routers in the list and the last energy scan. Without a scan,
+     * both are left to the stack.
+     */
+    private void chooseChannel(LowpanIdentity.Builder identity, Random random) {
+        ChannelAnalyzer analyzer = new ChannelAnalyzer();
+        for (int i = 0; i < mBeaconTable.size(); i++) {
+            LowpanBeaconInfo beacon = mBeaconTable.get(i).getBeacon();
+            analyzer.addBeacon(beacon.getLowpanIdentity().getChannel(),
+                    beacon.getLowpanIdentity().getPanid(), beacon.getRssi());
+        }
+        mEnergyHistogram.addTo(analyzer);
+        if (!analyzer.hasSamples()) {
+            return;
+        }
+        int[] supported = null;
+        try {
+            supported = mLowpanInterface.getSupportedChannels();
+        } catch (LowpanException e) {
+            Log.w(TAG, "Unable to read supported channels", e);
+        }
+        int channel = analyzer.pickChannel(supported);
+        if (channel < 0) {
+            return;
+        }
+        int panid = analyzer.pickPanid(random);
+        Log.i(TAG, "Channel scores: " + analyzer);
+        Log.i(TAG, "Picked channel " + channel + " and PAN ID " + Utils.shortToHex(panid));
+        identity.setChannel(channel);
+        if (panid >= 0) {
+            // Otherwise every PAN ID was heard, and the stack picks one
+            identity.setPanid(panid);
+        }
+    }
+
     /**
      * Connect to the provided LoWPAN network
      * @param beacon Beacon containing the network identity
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.scanner;
+
+/**
+ * Hashed timer wheel for deadlines up to about a fixed horizon ahead.
+ *
+ * Time is divided into ticks, and each entry is linked into the slot of the
+ * tick its deadline falls in. Scheduling, rescheduling and cancelling are
+ * constant time, and advancing the wheel only visits the slots of the ticks
+ * that passed, so the cost of expiry does not grow with the number of entries
+ * that are still live. Deadlines are rounded up to a whole tick, so entries
+ * never expire early; one beyond the horizon stays in its slot for another
+ * round of the wheel.
+ *
+ * Entries are linked intrusively and not thread-safe.
+ */
+class TimerWheel<E extends TimerWheel.Entry> {
+
+    /**
+     * Linkage of an entry into its slot; extend it to put objects on the wheel.
+     */
+    static class Entry {
+        Entry mNext;
+        Entry mPrev;
+        long mDeadlineTick;
+        boolean mScheduled;
+    }
+
+    /**
+     * Receives the entries whose deadline has passed.
+     */
+    interface ExpiryListener<E> {
+        void onExpired(E entry);
+    }
+
+    private final long mTickMillis;
+    // Sentinel head of each slot's circular list
+    private final Entry[] mSlots;
+    private long mCurrentTick;
+
+    /**
+     * @param tickMillis Resolution of the wheel.
+     * @param horizonMillis Furthest deadline that will be scheduled, relative to now.
+     * @param nowMillis Current time.
+     */
+    TimerWheel(long tickMillis, long horizonMillis, long nowMillis) {
+        if (tickMillis <= 0 || horizonMillis <= 0) {
+            throw new IllegalArgumentException("Tick and horizon must be positive");
+        }
+        mTickMillis = tickMillis;
+        // Enough slots that deadlines within the horizon expire in the first round
+        int slotCount = (int) ((horizonMillis + tickMillis - 1) / tickMillis) + 2;
+        mSlots = new Entry[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            Entry head = new Entry();
+            head.mNext = head;
+            head.mPrev = head;
+            mSlots[i] = head;
+        }
+        mCurrentTick = nowMillis / tickMillis;
+    }
+
+    long getTickMillis() {
+        return mTickMillis;
+    }
+
+    /**
+     * Schedule an entry, moving it if it was already scheduled.
+     */
+    void schedule(E entry, long deadlineMillis) {
+        cancel(entry);
+        long tick = (deadlineMillis + mTickMillis - 1) / mTickMillis;
+        // A deadline already passed expires on the next tick
+        tick = Math.max(tick, mCurrentTick + 1);
+        Entry head = mSlots[(int) (tick % mSlots.length)];
+        entry.mDeadlineTick = tick;
+        entry.mNext = head;
+        entry.mPrev = head.mPrev;
+        head.mPrev.mNext = entry;
+        head.mPrev = entry;
+        entry.mScheduled = true;
+    }
+
+    /**
+     * Remove an entry from the wheel, if it is scheduled.
+     */
+    void cancel(E entry) {
+        if (!entry.mScheduled) {
+            return;
+        }
+        entry.mPrev.mNext = entry.mNext;
+        entry.mNext.mPrev = entry.mPrev;
+        entry.mNext = null;
+        entry.mPrev = null;
+        entry.mScheduled = false;
+    }
+
+    /**
+     * Move the wheel to the current time and report every entry whose
+     * deadline has passed, after removing it from the wheel.
+     *
+     * @return The number of entries that expired.
+     */
+    @SuppressWarnings("unchecked")
+    int advance(long nowMillis, ExpiryListener<E> listener) {
+        long nowTick = nowMillis / mTickMillis;
+        // After a long pause every slot is due, but each only needs a single visit
+        long firstTick = Math.max(mCurrentTick + 1, nowTick - mSlots.length + 1);
+        int expired = 0;
+        for (long tick = firstTick; tick <= nowTick; tick++) {
+            Entry head = mSlots[(int) (tick % mSlots.length)];
+            Entry entry = head.mNext;
+            while (entry != head) {
+                Entry next = entry.mNext;
+                if (entry.mDeadlineTick <= nowTick) {
+                    cancel((E) entry);
+                    listener.onExpired((E) entry);
+                    expired++;
+                }
+                entry = next;
+            }
+        }
+        mCurrentTick = Math.max(mCurrentTick, nowTick);
+        return expired;
+    }
+}
@@ -19,6 +19,10 @@ package com.example.things.lowpan.scanner;
 import com.google.android.things.lowpan.LowpanInterface;
 
 public class Utils {
+    // Digits by nibble value, so hex encoding is a table lookup instead of String.format
+    private static final char[] HEX_LOWER = "0123456789abcdef".toCharArray();
+    private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+
     public static String stateToString(int state) {
         switch (state) {
             case LowpanInterface.STATE_OFFLINE:
@@ -50,22 +54,37 @@ public class Utils {
     }
 
     public static String bytesToHex(byte[] in) {
-        final StringBuilder builder = new StringBuilder();
-        for (byte b : in) {
-            builder.append(String.format("%02x", b));
+        char[] out = new char[in.length * 2];
+        for (int i = 0; i < in.length; i++) {
+            out[2 * i] = HEX_LOWER[(in[i] >> 4) & 0xF];
+            out[2 * i + 1] = HEX_LOWER[in[i] & 0xF];
         }
-        return builder.toString();
+        return new String(out);
     }
 
     public static String bytesToAddrHex(byte[] in) {
-        final StringBuilder builder = new StringBuilder();
+        if (in.length == 0) {
+            return "";
+        }
+        char[] out = new char[in.length * 3 - 1];
         for (int i = 0; i < in.length; i++) {
             if (i != 0) {
-                builder.append(":");
+                out[3 * i - 1] = ':';
             }
-            builder.append(String.format("%02x", in[i]));
+            out[3 * i] = HEX_LOWER[(in[i] >> 4) & 0xF];
+            out[3 * i + 1] = HEX_LOWER[in[i] & 0xF];
         }
-        return builder.toString();
+        return new String(out);
+    }
+
+    /**
+     * Returns the low 16 bits as four upper-case hex digits, like a PAN ID.
+     */
+    public static String shortToHex(int value) {
+        return new String(new char[] {
+                HEX_UPPER[(value >> 12) & 0xF], HEX_UPPER[(value >> 8) & 0xF],
+                HEX_UPPER[(value >> 4) & 0xF], HEX_UPPER[value & 0xF]
+        });
     }
 
     public static int rssiToLqi(int rssi) {
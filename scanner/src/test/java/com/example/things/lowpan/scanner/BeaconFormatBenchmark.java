@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.scanner;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the cost of producing a beacon row's display strings: formatting
+ * them with {@code String.format} on every bind, as the adapter used to,
+ * formatting them with the lookup tables in {@link Utils}, and reusing the
+ * strings cached in a {@link BeaconDisplay}.
+ *
+ * It lives with the tests; run it with the {@code runBenchmark} task.
+ * Arguments, all optional:
+ *
+ * <pre>
+ * BeaconFormatBenchmark [rows] [binds]
+ * </pre>
+ *
+ * Each bind refreshes one row with a new RSSI, as repeated beacons do.
+ * Allocation is reported on JVMs that count it per thread, and as -1 elsewhere.
+ */
+public class BeaconFormatBenchmark {
+    private static final int ROUNDS = 5;
+
+    // Per-thread allocation counter of HotSpot-based JVMs, looked up reflectively
+    private static final Object sThreadBean;
+    private static final Method sAllocatedBytes;
+
+    static {
+        Object bean = null;
+        Method method = null;
+        try {
+            bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            bean = null;
+        }
+        sThreadBean = bean;
+        sAllocatedBytes = method;
+    }
+
+    private interface Binder {
+        /** Produce the display strings of a row, returning something derived from them. */
+        int bind(int row, int rssi);
+    }
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int binds = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        Random random = new Random(42);
+        String[] names = new String[rows];
+        byte[][] xpanids = new byte[rows][8];
+        byte[][] addresses = new byte[rows][8];
+        int[] channels = new int[rows];
+        int[] panids = new int[rows];
+        BeaconDisplay[] displays = new BeaconDisplay[rows];
+        for (int i = 0; i < rows; i++) {
+            names[i] = "LoWPAN_" + random.nextInt(1000);
+            random.nextBytes(xpanids[i]);
+            random.nextBytes(addresses[i]);
+            channels[i] = 11 + random.nextInt(16);
+            panids[i] = random.nextInt(0x10000);
+            displays[i] = new BeaconDisplay();
+        }
+
+        run("string_format", rows, binds, (row, rssi) -> {
+            String channel = String.format("%d", channels[row]);
+            String panid = String.format("%04X", panids[row]);
+            return names[row].length() + formatHex(xpanids[row]).length()
+                    + formatAddrHex(addresses[row]).length() + channel.length()
+                    + panid.length() + Utils.rssiToLqi(rssi);
+        });
+        run("lookup_table", rows, binds, (row, rssi) -> {
+            String channel = Integer.toString(channels[row]);
+            String panid = Utils.shortToHex(panids[row]);
+            return names[row].length() + Utils.bytesToHex(xpanids[row]).length()
+                    + Utils.bytesToAddrHex(addresses[row]).length() + channel.length()
+                    + panid.length() + Utils.rssiToLqi(rssi);
+        });
+        run("cached", rows, binds, (row, rssi) -> {
+            BeaconDisplay display = displays[row];
+            display.update(names[row], xpanids[row], addresses[row], channels[row],
+                    panids[row], rssi, 200);
+            return display.getName().length() + display.getXpanidText().length()
+                    + display.getAddressText().length() + display.getChannelText().length()
+                    + display.getPanidText().length() + display.getRssiLevel();
+        });
+    }
+
+    private static void run(String name, int rows, int binds, Binder binder) {
+        long bestNanos = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        long sink = 0;
+        // Best of several rounds, the first of which warms up the compiler
+        for (int round = 0; round < ROUNDS; round++) {
+            long startBytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < binds; i++) {
+                sink += binder.bind(i % rows, -50 - (i & 31));
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            bestBytes = Math.min(bestBytes, allocatedBytes() - startBytes);
+        }
+        System.out.println(String.format(Locale.US, "%-13s ns_per_bind=%.1f bytes_per_bind=%s sink=%d",
+                name, (double) bestNanos / binds,
+                sAllocatedBytes == null ? "-1" : String.format(Locale.US, "%.1f",
+                        (double) bestBytes / binds),
+                sink));
+    }
+
+    private static long allocatedBytes() {
+        if (sAllocatedBytes == null) {
+            return 0;
+        }
+        try {
+            return (Long) sAllocatedBytes.invoke(sThreadBean, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException e) {
+            return 0;
+        }
+    }
+
+    /** The former {@code Utils.bytesToHex}. */
+    private static String formatHex(byte[] in) {
+        final StringBuilder builder = new StringBuilder();
+        for (byte b : in) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    /** The former {@code Utils.bytesToAddrHex}. */
+    private static String formatAddrHex(byte[] in) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < in.length; i++) {
+            if (i != 0) {
+                builder.append(":");
+            }
+            builder.append(String.format("%02x", in[i]));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BeaconTableTest {
+
+    private static final long TTL_MILLIS = 3200;
+
+    private static final byte[] XPANID_A = { 1, 2, 3, 4, 5, 6, 7, 8 };
+    private static final byte[] XPANID_B = { 8, 7, 6, 5, 4, 3, 2, 1 };
+
+    /** Records the positions reported for removed rows. */
+    private static class RecordingListener implements BeaconTable.Listener {
+        final List<Integer> mRemoved = new ArrayList<>();
+
+        @Override
+        public void onRowInserted(int position) {}
+
+        @Override
+        public void onRowChanged(int position) {}
+
+        @Override
+        public void onRowRemoved(int position) {
+            mRemoved.add(position);
+        }
+    }
+
+    private final RecordingListener mListener = new RecordingListener();
+    private final BeaconTable mTable = new BeaconTable(mListener, TTL_MILLIS);
+
+    private static byte[] address(int router) {
+        return new byte[] { 0x12, 0x34, 0, 0, 0, 0, 0, (byte) router };
+    }
+
+    @Test
+    public void rowsKeepTheOrderRoutersWereFirstHeard() {
+        BeaconTable.Row first = mTable.record(XPANID_A, address(1), 0);
+        BeaconTable.Row second = mTable.record(XPANID_A, address(2), 10);
+        BeaconTable.Row third = mTable.record(XPANID_B, address(1), 20);
+
+        assertEquals(3, mTable.size());
+        assertEquals(3, mTable.getInsertedCount());
+        assertSame(first, mTable.get(0));
+        assertSame(second, mTable.get(1));
+        assertSame(third, mTable.get(2));
+    }
+
+    @Test
+    public void routerHeardAgainUpdatesItsRowInPlace() {
+        BeaconTable.Row row = mTable.record(XPANID_A, address(1), 0);
+        mTable.record(XPANID_A, address(2), 10);
+
+        assertSame(row, mTable.record(XPANID_A, address(1).clone(), 500));
+        assertEquals(2, mTable.size());
+        assertEquals(2, mTable.getInsertedCount());
+        assertSame(row, mTable.get(0));
+        assertEquals(2, row.getSeenCount());
+        assertEquals(500, row.getLastSeenMillis());
+    }
+
+    @Test
+    public void shortAddressDoesNotMatchExtendedAddress() {
+        BeaconTable.Row extended =
+                mTable.record(XPANID_A, new byte[] { 0, 0, 0, 0, 0, 0, 0x12, 0x34 }, 0);
+        BeaconTable.Row shortAddress = mTable.record(XPANID_A, new byte[] { 0x12, 0x34 }, 0);
+
+        assertNotSame(extended, shortAddress);
+        assertEquals(2, mTable.size());
+    }
+
+    @Test
+    public void expiredRowIsReplacedByTheLastRow() {
+        BeaconTable.Row first = mTable.record(XPANID_A, address(1), 0);
+        mTable.record(XPANID_A, address(2), 0);
+        BeaconTable.Row third = mTable.record(XPANID_A, address(3), 0);
+        BeaconTable.Row last = mTable.record(XPANID_A, address(4), 0);
+        // Everything but the second router is heard again
+        mTable.record(XPANID_A, address(1), 2000);
+        mTable.record(XPANID_A, address(3), 2000);
+        mTable.record(XPANID_A, address(4), 2000);
+
+        assertEquals(0, mTable.expire(TTL_MILLIS - 1));
+        assertEquals(1, mTable.expire(TTL_MILLIS));
+
+        assertEquals(1, mTable.getEvictedCount());
+        assertEquals(3, mTable.size());
+        assertEquals(1, (int) mListener.mRemoved.get(0));
+        assertSame(first, mTable.get(0));
+        assertSame(last, mTable.get(1));
+        assertSame(third, mTable.get(2));
+        // The moved row keeps its new position for later removals
+        assertEquals(3, mTable.expire(2000 + TTL_MILLIS));
+        assertEquals(0, mTable.size());
+        assertEquals(4, mTable.getEvictedCount());
+    }
+
+    @Test
+    public void positionsStayConsistentAcrossRemovals() {
+        for (int i = 0; i < 8; i++) {
+            // Routers heard every 100ms expire one tick apart
+            mTable.record(XPANID_A, address(i), i * 100);
+        }
+        for (int i = 0; i < 8; i++) {
+            mTable.expire(TTL_MILLIS + i * 100);
+            for (int position = 0; position < mTable.size(); position++) {
+                assertEquals(position, mTable.get(position).mPosition);
+            }
+        }
+        assertEquals(0, mTable.size());
+        // The first router expired at position 0, the last one filled its gap
+        assertEquals(0, (int) mListener.mRemoved.get(0));
+        assertEquals(8, mListener.mRemoved.size());
+    }
+
+    @Test
+    public void rowsOnlyExpireWithATimeToLive() {
+        BeaconTable table = new BeaconTable(mListener, 0);
+        table.record(XPANID_A, address(1), 0);
+
+        assertEquals(0, table.getExpiryTickMillis());
+        assertEquals(0, table.expire(Long.MAX_VALUE / 2));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void clearedRowsDoNotExpireLater() {
+        mTable.record(XPANID_A, address(1), 0);
+        mTable.record(XPANID_A, address(2), 0);
+        mTable.clear();
+        BeaconTable.Row row = mTable.record(XPANID_A, address(1), 1000);
+
+        assertEquals(0, mTable.expire(TTL_MILLIS));
+        assertSame(row, mTable.get(0));
+        assertEquals(1, row.getSeenCount());
+        assertEquals(0, mTable.getEvictedCount());
+        assertEquals(1, mTable.expire(1000 + TTL_MILLIS));
+        assertEquals(0, mTable.size());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EnergyHistogramTest {
+
+    private final EnergyHistogram mHistogram = new EnergyHistogram();
+
+    @Test
+    public void samplesFallIntoFiveDecibelBuckets() {
+        mHistogram.add(15, -100);
+        mHistogram.add(15, -96);
+        mHistogram.add(15, -95);
+        mHistogram.add(15, -26);
+
+        assertEquals(2, mHistogram.getCount(15, 0));
+        assertEquals(1, mHistogram.getCount(15, 1));
+        assertEquals(1, mHistogram.getCount(15, 14));
+        assertEquals(4, mHistogram.getSampleCount(15));
+        assertEquals(0, mHistogram.getSampleCount(16));
+    }
+
+    @Test
+    public void samplesOutsideTheRangeGoToTheEndBuckets() {
+        mHistogram.add(20, -120);
+        mHistogram.add(20, 0);
+
+        assertEquals(1, mHistogram.getCount(20, 0));
+        assertEquals(1, mHistogram.getCount(20, EnergyHistogram.BUCKET_COUNT - 1));
+        assertEquals(-60, mHistogram.getMeanRssi(20));
+        assertEquals(0, mHistogram.getMaxRssi(20));
+    }
+
+    @Test
+    public void channelsOutsideTheBandAreIgnored() {
+        mHistogram.add(10, -50);
+        mHistogram.add(27, -50);
+
+        for (int channel = 11; channel <= 26; channel++) {
+            assertEquals(0, mHistogram.getSampleCount(channel));
+        }
+        assertEquals(0, mHistogram.getSampleCount(10));
+        assertEquals(0, mHistogram.getCount(27, 10));
+    }
+
+    @Test
+    public void emptyChannelReportsTheFloor() {
+        assertEquals(EnergyHistogram.MIN_RSSI, mHistogram.getMeanRssi(11));
+        assertEquals(EnergyHistogram.MIN_RSSI, mHistogram.getMaxRssi(11));
+        assertEquals(EnergyHistogram.MIN_RSSI, mHistogram.getPercentileRssi(11, 0.9));
+    }
+
+    @Test
+    public void percentileIsTheUpperEdgeOfItsBucket() {
+        addBursty(15);
+
+        assertEquals(-85, mHistogram.getMeanRssi(15));
+        // Nine quiet samples out of ten
+        assertEquals(-86, mHistogram.getPercentileRssi(15, 0.9));
+        // The burst's bucket ends at -36, but nothing louder than -40 was heard
+        assertEquals(-40, mHistogram.getPercentileRssi(15, 0.95));
+        assertEquals(-40, mHistogram.getPercentileRssi(15, 1.0));
+        // Even a tiny fraction takes at least one sample
+        assertEquals(-86, mHistogram.getPercentileRssi(15, 0.0));
+    }
+
+    @Test
+    public void clearForgetsEverySample() {
+        addBursty(15);
+        mHistogram.clear();
+        mHistogram.add(15, -70);
+
+        assertEquals(1, mHistogram.getSampleCount(15));
+        assertEquals(-70, mHistogram.getMaxRssi(15));
+        assertEquals(0, mHistogram.getCount(15, 2));
+    }
+
+    @Test
+    public void renderShowsOneLinePerChannel() {
+        addBursty(15);
+        StringBuilder out = new StringBuilder();
+        mHistogram.render(out);
+        String[] lines = out.toString().split("\n");
+
+        assertEquals(17, lines.length);
+        assertEquals("ch    n mean  p90  max  -100 dBm", lines[0]);
+        assertEquals("11    0", lines[1]);
+        // The fullest bucket gets the densest bar; any sample shows
+        assertEquals("15   10  -85  -86  -40  |  #         .   |", lines[5]);
+        assertTrue(out.toString().endsWith("\n"));
+    }
+
+    /** Nine quiet samples and one loud burst. */
+    private void addBursty(int channel) {
+        for (int i = 0; i < 9; i++) {
+            mHistogram.add(channel, -90);
+        }
+        mHistogram.add(channel, -40);
+    }
+}
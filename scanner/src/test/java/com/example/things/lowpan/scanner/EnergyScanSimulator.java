@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.scanner;
+
+import com.example.things.lowpan.common.ChannelAnalyzer;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Runs the scanner's energy scan collection against a simulated radio and
+ * prints the resulting histograms, the channel a new network would pick, and
+ * the cost of counting a sample.
+ *
+ * It lives with the tests; run it with the {@code runBenchmark} task.
+ * Arguments, all optional:
+ *
+ * <pre>
+ * EnergyScanSimulator [passes] [seed]
+ * </pre>
+ *
+ * The simulated site has busy Wi-Fi on channel 6, lighter Wi-Fi on 1 and 11,
+ * and an occasional broadband burst, like a microwave oven, across the band.
+ * Allocation is reported on JVMs that count it per thread, and as -1 elsewhere.
+ */
+public class EnergyScanSimulator {
+    private static final int ROUNDS = 5;
+    // Timing passes per round, enough to make the per-sample cost measurable
+    private static final int TIMED_PASSES = 100_000;
+
+    // Per-thread allocation counter of HotSpot-based JVMs, looked up reflectively
+    private static final Object sThreadBean;
+    private static final Method sAllocatedBytes;
+
+    static {
+        Object bean = null;
+        Method method = null;
+        try {
+            bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            bean = null;
+        }
+        sThreadBean = bean;
+        sAllocatedBytes = method;
+    }
+
+    /** The results of one simulated energy scan pass, as the scanner callback delivers them. */
+    private interface Callback {
+        void onEnergyScanResult(int channel, int maxRssi);
+
+        void onScanFinished();
+    }
+
+    /**
+     * A radio that reports one peak RSSI per 802.15.4 channel per pass.
+     */
+    private static final class SimulatedScanner {
+        // Wi-Fi channels 1, 6 and 11 each overlap four 802.15.4 channels
+        private static final int[][] WIFI_CHANNELS = {
+                { 11, 12, 13, 14 }, { 16, 17, 18, 19 }, { 21, 22, 23, 24 } };
+        // Share of samples in which each Wi-Fi channel is transmitting, and how loud
+        private static final double[] WIFI_DUTY = { 0.25, 0.6, 0.15 };
+        private static final int[] WIFI_RSSI = { -62, -55, -70 };
+        // Share of passes hit by a broadband burst
+        private static final double BURST_CHANCE = 0.03;
+        private static final int NOISE_FLOOR_DBM = -96;
+
+        private final Random mRandom;
+
+        SimulatedScanner(long seed) {
+            mRandom = new Random(seed);
+        }
+
+        void startEnergyScan(Callback callback) {
+            boolean burst = mRandom.nextDouble() < BURST_CHANCE;
+            for (int channel = ChannelAnalyzer.FIRST_CHANNEL;
+                    channel <= ChannelAnalyzer.LAST_CHANNEL; channel++) {
+                int rssi = NOISE_FLOOR_DBM + mRandom.nextInt(6);
+                for (int wifi = 0; wifi < WIFI_CHANNELS.length; wifi++) {
+                    if (contains(WIFI_CHANNELS[wifi], channel)
+                            && mRandom.nextDouble() < WIFI_DUTY[wifi]) {
+                        rssi = Math.max(rssi, WIFI_RSSI[wifi] + (int) (mRandom.nextGaussian() * 6));
+                    }
+                }
+                if (burst) {
+                    rssi = Math.max(rssi, -45 + mRandom.nextInt(10));
+                }
+                callback.onEnergyScanResult(channel, rssi);
+            }
+            callback.onScanFinished();
+        }
+    }
+
+    /**
+     * Collects passes into a histogram the way the activity does: every
+     * result is counted, and a finished pass starts the next until enough
+     * passes have run.
+     */
+    private static final class Collector implements Callback {
+        private final SimulatedScanner mScanner;
+        private final EnergyHistogram mHistogram;
+        private final int mPasses;
+        private int mPassCount;
+
+        Collector(SimulatedScanner scanner, EnergyHistogram histogram, int passes) {
+            mScanner = scanner;
+            mHistogram = histogram;
+            mPasses = passes;
+        }
+
+        void run() {
+            mPassCount = 0;
+            mHistogram.clear();
+            mScanner.startEnergyScan(this);
+        }
+
+        @Override
+        public void onEnergyScanResult(int channel, int maxRssi) {
+            mHistogram.add(channel, maxRssi);
+        }
+
+        @Override
+        public void onScanFinished() {
+            mPassCount++;
+            if (mPassCount < mPasses) {
+                mScanner.startEnergyScan(this);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int passes = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+
+        EnergyHistogram histogram = new EnergyHistogram();
+        new Collector(new SimulatedScanner(seed), histogram, passes).run();
+        StringBuilder table = new StringBuilder();
+        histogram.render(table);
+        System.out.print(table);
+
+        ChannelAnalyzer analyzer = new ChannelAnalyzer();
+        histogram.addTo(analyzer);
+        System.out.println("picked channel=" + analyzer.pickChannel(null));
+        System.out.println(analyzer);
+
+        // The collection cost alone, with a radio that replays recorded passes
+        int channels = ChannelAnalyzer.LAST_CHANNEL - ChannelAnalyzer.FIRST_CHANNEL + 1;
+        int[] recorded = new int[1024 * channels];
+        Random random = new Random(seed);
+        for (int i = 0; i < recorded.length; i++) {
+            recorded[i] = -100 + random.nextInt(70);
+        }
+        long bestNanos = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        long samples = (long) TIMED_PASSES * channels;
+        // Best of several rounds, the first of which warms up the compiler
+        for (int round = 0; round < ROUNDS; round++) {
+            histogram.clear();
+            long startBytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int pass = 0; pass < TIMED_PASSES; pass++) {
+                int base = (pass & 1023) * channels;
+                for (int i = 0; i < channels; i++) {
+                    histogram.add(ChannelAnalyzer.FIRST_CHANNEL + i, recorded[base + i]);
+                }
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            bestBytes = Math.min(bestBytes, allocatedBytes() - startBytes);
+        }
+        System.out.println(String.format(Locale.US, "samples=%d ns_per_sample=%.1f bytes_per_sample=%s"
+                        + " check=%d",
+                samples, (double) bestNanos / samples,
+                sAllocatedBytes == null ? "-1" : String.format(Locale.US, "%.3f",
+                        (double) bestBytes / samples),
+                histogram.getSampleCount(ChannelAnalyzer.FIRST_CHANNEL)));
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long allocatedBytes() {
+        if (sAllocatedBytes == null) {
+            return 0;
+        }
+        try {
+            return (Long) sAllocatedBytes.invoke(sThreadBean, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException e) {
+            return 0;
+        }
+    }
+}
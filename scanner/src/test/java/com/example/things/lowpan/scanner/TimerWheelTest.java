@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TimerWheelTest {
+
+    private static final long TICK_MILLIS = 10;
+    private static final long HORIZON_MILLIS = 100;
+
+    private static class Timer extends TimerWheel.Entry {
+        final int mId;
+
+        Timer(int id) {
+            mId = id;
+        }
+    }
+
+    private final List<Integer> mExpired = new ArrayList<>();
+    private final TimerWheel.ExpiryListener<Timer> mListener = timer -> mExpired.add(timer.mId);
+
+    private final TimerWheel<Timer> mWheel = new TimerWheel<>(TICK_MILLIS, HORIZON_MILLIS, 0);
+
+    @Test
+    public void entryNeverExpiresEarly() {
+        Timer timer = new Timer(1);
+        // Rounded up to the tick at 30ms
+        mWheel.schedule(timer, 25);
+
+        assertEquals(0, mWheel.advance(29, mListener));
+        assertTrue(timer.mScheduled);
+        assertEquals(1, mWheel.advance(30, mListener));
+        assertFalse(timer.mScheduled);
+        assertEquals(Arrays.asList(1), mExpired);
+    }
+
+    @Test
+    public void passedDeadlineExpiresOnTheNextTick() {
+        mWheel.advance(50, mListener);
+        mWheel.schedule(new Timer(1), 20);
+
+        assertEquals(0, mWheel.advance(59, mListener));
+        assertEquals(1, mWheel.advance(60, mListener));
+    }
+
+    @Test
+    public void cancelledEntryDoesNotExpire() {
+        Timer first = new Timer(1);
+        Timer cancelled = new Timer(2);
+        Timer last = new Timer(3);
+        // Unlinked from the middle of its slot
+        mWheel.schedule(first, 40);
+        mWheel.schedule(cancelled, 40);
+        mWheel.schedule(last, 40);
+        mWheel.cancel(cancelled);
+        // Cancelling twice is harmless
+        mWheel.cancel(cancelled);
+
+        assertEquals(2, mWheel.advance(40, mListener));
+        assertEquals(Arrays.asList(1, 3), mExpired);
+    }
+
+    @Test
+    public void rescheduleMovesTheDeadline() {
+        Timer timer = new Timer(1);
+        mWheel.schedule(timer, 40);
+        mWheel.schedule(timer, 90);
+
+        assertEquals(0, mWheel.advance(80, mListener));
+        assertEquals(1, mWheel.advance(90, mListener));
+        // Rescheduling earlier works as well
+        mWheel.schedule(timer, 190);
+        mWheel.schedule(timer, 120);
+        assertEquals(1, mWheel.advance(120, mListener));
+        assertEquals(0, mWheel.advance(300, mListener));
+    }
+
+    @Test
+    public void wheelWrapsAroundItsSlots() {
+        // Each round is 12 slots of 10ms; keep a timer alive over many of them
+        Timer timer = new Timer(1);
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            mWheel.schedule(timer, now + HORIZON_MILLIS);
+            now += HORIZON_MILLIS - TICK_MILLIS;
+            assertEquals(0, mWheel.advance(now, mListener));
+        }
+        assertEquals(1, mWheel.advance(now + TICK_MILLIS, mListener));
+    }
+
+    @Test
+    public void deadlineBeyondTheHorizonWaitsAnotherRound() {
+        Timer far = new Timer(1);
+        Timer near = new Timer(2);
+        // Both land in the same slot, a round apart
+        mWheel.schedule(far, 160);
+        mWheel.schedule(near, 40);
+
+        assertEquals(1, mWheel.advance(40, mListener));
+        assertEquals(Arrays.asList(2), mExpired);
+        assertEquals(0, mWheel.advance(159, mListener));
+        assertEquals(1, mWheel.advance(160, mListener));
+        assertEquals(Arrays.asList(2, 1), mExpired);
+    }
+
+    @Test
+    public void longPauseExpiresEverythingDue() {
+        for (int i = 0; i < 20; i++) {
+            mWheel.schedule(new Timer(i), 10 + i * 5);
+        }
+        Timer later = new Timer(99);
+
+        assertEquals(20, mWheel.advance(10_000, mListener));
+        mWheel.schedule(later, 10_050);
+        assertEquals(0, mWheel.advance(10_040, mListener));
+        assertEquals(1, mWheel.advance(10_050, mListener));
+    }
+
+    @Test
+    public void listenerMayRescheduleTheExpiredEntry() {
+        Timer first = new Timer(1);
+        Timer second = new Timer(2);
+        mWheel.schedule(first, 30);
+        mWheel.schedule(second, 30);
+        int[] rounds = new int[1];
+        TimerWheel.ExpiryListener<Timer> again = timer -> {
+            mExpired.add(timer.mId);
+            if (timer == first && rounds[0]++ == 0) {
+                // Lands in the slot being visited, one round later
+                mWheel.schedule(timer, 30 + 12 * TICK_MILLIS);
+            }
+        };
+
+        assertEquals(2, mWheel.advance(30, again));
+        assertEquals(Arrays.asList(1, 2), mExpired);
+        assertEquals(0, mWheel.advance(149, again));
+        assertEquals(1, mWheel.advance(150, again));
+        assertEquals(Arrays.asList(1, 2, 1), mExpired);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of resolved receiver addresses for one network.
+ *
+ * A successful lookup is kept for a fixed time to live and refreshed in the
+ * background before it expires, so a reconnect normally finds a fresh
+ * address without waiting for name resolution. An entry that was not used
+ * since it was resolved is dropped instead of refreshed, so hosts nobody
+ * asks for anymore are not resolved forever. A failed lookup is remembered
+ * for a shorter window, so a name that doesn't resolve doesn't stall every
+ * retry. Lookups on different threads may run concurrently; a cached entry
+ * is read without locking.
+ *
+ * This class has no Android dependencies, so it can be exercised on a
+ * regular JVM with a simulated resolver.
+ */
+public class AddressCache {
+
+    /**
+     * Resolves a host name, typically {@code Network#getByName(String)}.
+     */
+    public interface Resolver {
+        InetAddress resolve(String host) throws UnknownHostException;
+    }
+
+    private final Resolver mResolver;
+    private final ScheduledExecutorService mScheduler;
+    private final long mTtlMillis;
+    private final long mNegativeTtlMillis;
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+    private volatile boolean mInvalidated;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mNegativeHitCount = new AtomicLong();
+    private final AtomicLong mRefreshCount = new AtomicLong();
+    private final AtomicLong mIdleDropCount = new AtomicLong();
+
+    /**
+     * @param resolver Name resolution for the network this cache belongs to.
+     * @param scheduler Runs background refreshes.
+     * @param ttlMillis How long a resolved address is used.
+     * @param negativeTtlMillis How long a failed lookup is remembered.
+     */
+    public AddressCache(Resolver resolver, ScheduledExecutorService scheduler, long ttlMillis,
+            long negativeTtlMillis) {
+        mResolver = resolver;
+        mScheduler = scheduler;
+        mTtlMillis = ttlMillis;
+        mNegativeTtlMillis = negativeTtlMillis;
+    }
+
+    /**
+     * Returns the address of a host, resolving it only if no live entry is cached.
+     *
+     * @throws UnknownHostException if the host doesn't resolve, now or within
+     *         the negative caching window.
+     */
+    public InetAddress resolve(String host) throws UnknownHostException {
+        Entry entry = mEntries.get(host);
+        if (entry != null && System.nanoTime() - entry.mExpiresAt < 0) {
+            if (entry.mAddress == null) {
+                mNegativeHitCount.incrementAndGet();
+                throw new UnknownHostException(host + " (cached failure)");
+            }
+            mHitCount.incrementAndGet();
+            if (!entry.mUsed) {
+                entry.mUsed = true;
+            }
+            return entry.mAddress;
+        }
+        mMissCount.incrementAndGet();
+        return lookup(host, true);
+    }
+
+    /**
+     * Resolve a host in the background so that a later {@link #resolve(String)} is a hit.
+     */
+    public void prefetch(String host) {
+        mScheduler.execute(() -> {
+            try {
+                lookup(host, false);
+            } catch (UnknownHostException e) {
+                // Remembered as a negative entry
+            }
+        });
+    }
+
+    /**
+     * Forget every entry and stop refreshing, when the network goes away.
+     * Nothing is cached after this; use a new cache for the next network.
+     */
+    public void invalidate() {
+        mInvalidated = true;
+        for (Entry entry : mEntries.values()) {
+            if (entry.mRefresh != null) {
+                entry.mRefresh.cancel(false);
+            }
+        }
+        mEntries.clear();
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Returns the statistics as a single line of space-separated {@code key=value} pairs.
+     */
+    @Override
+    public String toString() {
+        return "hits=" + mHitCount.get()
+                + " misses=" + mMissCount.get()
+                + " negative_hits=" + mNegativeHitCount.get()
+                + " refreshes=" + mRefreshCount.get()
+                + " idle_drops=" + mIdleDropCount.get();
+    }
+
+    /**
+     * Resolve a host, cache the outcome and schedule a refresh of a success.
+     *
+     * @param used Whether the caller uses the address now, rather than prefetching it.
+     */
+    private InetAddress lookup(String host, boolean used) throws UnknownHostException {
+        InetAddress address;
+        try {
+            address = mResolver.resolve(host);
+        } catch (UnknownHostException e) {
+            replace(host, new Entry(null, mNegativeTtlMillis));
+            throw e;
+        }
+        Entry entry = new Entry(address, mTtlMillis);
+        entry.mUsed = used;
+        replace(host, entry);
+        scheduleRefresh(host, entry);
+        return address;
+    }
+
+    /**
+     * Resolve a cached host again before its entry expires.
+     */
+    private void refresh(String host, Entry entry) {
+        if (mEntries.get(host) != entry) {
+            // Superseded by a newer lookup, which has its own refresh
+            return;
+        }
+        if (!entry.mUsed) {
+            // Not looked up since it was resolved; the next lookup resolves it again
+            if (mEntries.remove(host, entry)) {
+                mIdleDropCount.incrementAndGet();
+            }
+            return;
+        }
+        mRefreshCount.incrementAndGet();
+        Entry fresh;
+        try {
+            fresh = new Entry(mResolver.resolve(host), mTtlMillis);
+        } catch (UnknownHostException e) {
+            // Keep using the current address until it expires
+            return;
+        }
+        if (mEntries.replace(host, entry, fresh)) {
+            scheduleRefresh(host, fresh);
+        }
+    }
+
+    private void scheduleRefresh(String host, Entry entry) {
+        if (mInvalidated) {
+            return;
+        }
+        // Refresh a quarter of the time to live early, so the entry never lapses
+        entry.mRefresh = mScheduler.schedule(() -> refresh(host, entry),
+                mTtlMillis - mTtlMillis / 4, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Replace the entry of a host, unless the cache was invalidated meanwhile.
+     */
+    private void replace(String host, Entry entry) {
+        if (mInvalidated) {
+            return;
+        }
+        Entry previous = mEntries.put(host, entry);
+        if (previous != null && previous.mRefresh != null) {
+            previous.mRefresh.cancel(false);
+        }
+    }
+
+    /**
+     * Outcome of one lookup: an address, or null for a failure.
+     */
+    private static class Entry {
+        final InetAddress mAddress;
+        final long mExpiresAt;
+        volatile ScheduledFuture<?> mRefresh;
+        // Set by the first hit, so only entries in use are refreshed
+        volatile boolean mUsed;
+
+        Entry(InetAddress address, long ttlMillis) {
+            mAddress = address;
+            mExpiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+/**
+ * Ranks the beacons of the demo network heard during a scan. Works on the
+ * raw readings of a beacon, so it can be tested without the LoWPAN classes.
+ */
+final class BeaconRanking {
+
+    private BeaconRanking() {}
+
+    /**
+     * Returns true if the candidate has a better link quality, or the same
+     * quality and a stronger signal. A tie keeps the beacon heard first.
+     */
+    static boolean isBetter(int candidateLqi, int candidateRssi, int bestLqi, int bestRssi) {
+        if (candidateLqi != bestLqi) {
+            return candidateLqi > bestLqi;
+        }
+        return candidateRssi > bestRssi;
+    }
+}
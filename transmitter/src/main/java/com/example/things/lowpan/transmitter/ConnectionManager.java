@@ -0,0 +1,419 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.things.lowpan.common.FrameCodec;
+import com.example.things.lowpan.common.LatencyHistogram;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Keeps a transport to the receiver open for as long as a connection is requested.
+ *
+ * Failed writes and reads close the transport and start recovery. Recovery
+ * first promotes a warm spare transport, opened in the background after
+ * each successful connect, so the next value doesn't wait for a handshake.
+ * Connectionless transports such as datagrams have no handshake and get no spare.
+ * The spare is read like the current transport, so a spare the receiver
+ * closed is dropped instead of promoted. Without a spare, connecting is
+ * retried with jittered exponential backoff, and immediately when a network
+ * becomes available again.
+ *
+ * Apart from {@link #connect()}, {@link #disconnect()} and the network
+ * notifications, which may be called from any thread, every method must be
+ * called on the handler's thread.
+ */
+public class ConnectionManager {
+    private static final String TAG = ConnectionManager.class.getSimpleName();
+
+    private static final long INITIAL_BACKOFF_MS = 250;
+    private static final long MAX_BACKOFF_MS = 30_000;
+
+    /**
+     * Opens a new transport to the receiver, invoked on the handler's thread.
+     */
+    public interface TransportFactory {
+        ValueTransport create() throws IOException;
+    }
+
+    /**
+     * Receives data sent back by the receiver, on a reader thread.
+     * Bytes left in the buffer are kept for the next call, and an exception
+     * fails the connection.
+     */
+    public interface Receiver {
+        void onReceived(ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Reports connection state changes, invoked on the handler's thread.
+     */
+    public interface Callback {
+        void onConnecting();
+
+        void onConnected();
+
+        void onDisconnected();
+    }
+
+    private final Handler mHandler;
+    private final TransportFactory mFactory;
+    private final Receiver mReceiver;
+    private final Callback mCallback;
+    private final Random mRandom = new Random();
+
+    private volatile boolean mRequested;
+    private ValueTransport mTransport;
+    private ValueTransport mSpare;
+    private Reader mSpareReader;
+    private int mAttempt;
+    // When the last working transport failed, or 0 when not recovering
+    private long mFailureTime;
+
+    private volatile long mFailureCount;
+    private volatile long mReconnectCount;
+    private volatile long mSparePromotionCount;
+    private volatile long mSpareFailureCount;
+    private final LatencyHistogram mRecoverMillis = new LatencyHistogram();
+
+    /**
+     * @param handler Handler for the thread that sends values.
+     * @param factory Opens transports to the receiver.
+     * @param receiver Destination for data sent back by the receiver.
+     * @param callback Receiver of connection state changes.
+     */
+    public ConnectionManager(Handler handler, TransportFactory factory, Receiver receiver,
+            Callback callback) {
+        mHandler = handler;
+        mFactory = factory;
+        mReceiver = receiver;
+        mCallback = callback;
+    }
+
+    /**
+     * Returns true if a connection has been requested and not yet cancelled.
+     */
+    public boolean isConnectRequested() {
+        return mRequested;
+    }
+
+    /**
+     * Open a connection, and keep it open until {@link #disconnect()}.
+     */
+    public void connect() {
+        mRequested = true;
+        mHandler.post(() -> {
+            mCallback.onConnecting();
+            mAttempt = 0;
+            mHandler.removeCallbacks(mConnectRunnable);
+            mConnectRunnable.run();
+        });
+    }
+
+    /**
+     * Close the connection and any spare, and stop reconnecting.
+     */
+    public void disconnect() {
+        mRequested = false;
+        mHandler.post(() -> {
+            mHandler.removeCallbacks(mConnectRunnable);
+            closeAll();
+            mFailureTime = 0;
+            mCallback.onDisconnected();
+        });
+    }
+
+    /**
+     * Reconnect right away on a network that just became available.
+     */
+    public void onNetworkAvailable() {
+        mHandler.post(() -> {
+            if (!mRequested) {
+                return;
+            }
+            // Sockets bound to the previous network can't be reused
+            if (mTransport != null && mFailureTime == 0) {
+                mFailureTime = SystemClock.elapsedRealtime();
+            }
+            closeAll();
+            mAttempt = 0;
+            mHandler.removeCallbacks(mConnectRunnable);
+            mConnectRunnable.run();
+        });
+    }
+
+    /**
+     * Drop the connection and wait for {@link #onNetworkAvailable()} to reconnect.
+     */
+    public void onNetworkLost() {
+        mHandler.post(() -> {
+            if (mTransport != null) {
+                mFailureCount++;
+                mFailureTime = SystemClock.elapsedRealtime();
+            }
+            mHandler.removeCallbacks(mConnectRunnable);
+            closeAll();
+            if (mRequested) {
+                mCallback.onConnecting();
+            }
+        });
+    }
+
+    /**
+     * Send frames on the current transport. A failed write starts recovery.
+     *
+     * @return {@code true} if the frames were written.
+     */
+    public boolean send(byte[] frames, int length) {
+        ValueTransport transport = mTransport;
+        if (transport == null) {
+            return false;
+        }
+        try {
+            transport.send(frames, length);
+            return true;
+        } catch (IOException e) {
+            onFailure(transport, e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of working connections that failed.
+     */
+    public long getFailureCount() {
+        return mFailureCount;
+    }
+
+    /**
+     * Returns the number of connections established after a failure.
+     */
+    public long getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * Returns the time from a failure to the next working connection, in milliseconds.
+     */
+    public LatencyHistogram getRecoverMillis() {
+        return mRecoverMillis;
+    }
+
+    /**
+     * Returns the metrics as a single line of space-separated {@code key=value} pairs.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(128)
+                .append("failures=").append(mFailureCount)
+                .append(" reconnects=").append(mReconnectCount)
+                .append(" spare_promotions=").append(mSparePromotionCount)
+                .append(" spare_failures=").append(mSpareFailureCount)
+                .append(' ');
+        return mRecoverMillis.appendTo(builder, "recover_ms_").toString();
+    }
+
+    private final Runnable mConnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRequested || mTransport != null) {
+                return;
+            }
+            if (mSpare != null && mSpareReader.isFinished()) {
+                // Its failure is still on the way to this thread
+                dropSpare(new IOException("Spare closed before promotion"));
+            }
+            if (mSpare != null) {
+                // Its reader is already running and now reports to the current transport
+                mTransport = mSpare;
+                mSpare = null;
+                mSpareReader = null;
+                mSparePromotionCount++;
+            } else {
+                try {
+                    mTransport = mFactory.create();
+                } catch (IOException | RuntimeException e) {
+                    long delay = nextBackoff();
+                    Log.w(TAG, "Connection attempt " + mAttempt + " failed, retrying in "
+                            + delay + "ms: " + e);
+                    mHandler.postDelayed(this, delay);
+                    return;
+                }
+                new Thread(new Reader(mTransport), "TransportReader").start();
+            }
+            mAttempt = 0;
+            if (mFailureTime != 0) {
+                long recoverMillis = SystemClock.elapsedRealtime() - mFailureTime;
+                mFailureTime = 0;
+                mReconnectCount++;
+                mRecoverMillis.record(recoverMillis);
+                Log.i(TAG, "Reconnected after " + recoverMillis + "ms");
+            }
+            mCallback.onConnected();
+            mHandler.post(mWarmSpareRunnable);
+        }
+    };
+
+    /**
+     * Task to open a spare transport while the current one works.
+     */
+    private final Runnable mWarmSpareRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRequested || mTransport == null || mSpare != null
+                    || !mTransport.isConnectionOriented()) {
+                return;
+            }
+            try {
+                mSpare = mFactory.create();
+            } catch (IOException | RuntimeException e) {
+                // Recovery falls back to connecting from scratch
+                Log.w(TAG, "Unable to open spare connection: " + e);
+                return;
+            }
+            mSpareReader = new Reader(mSpare);
+            new Thread(mSpareReader, "TransportReader").start();
+        }
+    };
+
+    /**
+     * Close a failed transport and start recovering, if it is still the current one.
+     */
+    private void onFailure(ValueTransport transport, Exception e) {
+        if (transport != null && transport == mSpare) {
+            dropSpare(e);
+            return;
+        }
+        if (transport != mTransport) {
+            return;
+        }
+        Log.w(TAG, "Connection failed: " + e);
+        close(mTransport);
+        mTransport = null;
+        mFailureCount++;
+        mFailureTime = SystemClock.elapsedRealtime();
+        if (!mRequested) {
+            return;
+        }
+        mCallback.onConnecting();
+        // A spare that failed too is dropped by the connect task
+        if (mSpare != null) {
+            mConnectRunnable.run();
+        } else {
+            mHandler.postDelayed(mConnectRunnable, nextBackoff());
+        }
+    }
+
+    /**
+     * Returns the delay before the next connection attempt: exponential in the
+     * number of attempts, with half of it randomized so that many transmitters
+     * don't reconnect in lockstep.
+     */
+    private long nextBackoff() {
+        long delay = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(mAttempt, 16));
+        mAttempt++;
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Close a spare that failed while waiting to be promoted. A new spare is
+     * opened after the next successful connect.
+     */
+    private void dropSpare(Exception e) {
+        Log.w(TAG, "Spare connection failed: " + e);
+        close(mSpare);
+        mSpare = null;
+        mSpareReader = null;
+        mSpareFailureCount++;
+    }
+
+    private void closeAll() {
+        close(mTransport);
+        close(mSpare);
+        mTransport = null;
+        mSpare = null;
+        mSpareReader = null;
+    }
+
+    private static void close(ValueTransport transport) {
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Close failed: " + e);
+        }
+    }
+
+    /**
+     * Task to read from a transport until it is closed, reporting a failure
+     * unless the transport was closed on purpose.
+     */
+    private class Reader implements Runnable {
+        private final ValueTransport mReaderTransport;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(4 * FrameCodec.MAX_FRAME_SIZE);
+        private volatile boolean mFinished;
+
+        Reader(ValueTransport transport) {
+            mReaderTransport = transport;
+        }
+
+        /**
+         * Returns true once the transport failed or was closed, possibly
+         * before the failure has been handled on the handler's thread.
+         */
+        boolean isFinished() {
+            return mFinished;
+        }
+
+        @Override
+        public void run() {
+            Exception failure;
+            try {
+                while (true) {
+                    int count = mReaderTransport.receive(mBuffer.array(), mBuffer.position(),
+                            mBuffer.remaining());
+                    if (count < 0) {
+                        failure = new IOException("Connection closed by receiver");
+                        break;
+                    }
+                    mBuffer.position(mBuffer.position() + count);
+                    mBuffer.flip();
+                    mReceiver.onReceived(mBuffer);
+                    mBuffer.compact();
+                    if (!mBuffer.hasRemaining()) {
+                        // Nobody is consuming what the receiver sends
+                        mBuffer.clear();
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            mFinished = true;
+            Exception e = failure;
+            mHandler.post(() -> onFailure(mReaderTransport, e));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.transmitter;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+
+/**
+ * Transport that sends each write as a single UDP datagram.
+ *
+ * A lost datagram only loses the values it carried, instead of stalling
+ * every value queued behind it as a TCP retransmission would. The receiver
+ * uses frame sequence numbers to drop datagrams that arrive out of order.
+ */
+public class DatagramTransport implements ValueTransport {
+    private final DatagramSocket mSocket;
+    private final DatagramPacket mPacket;
+    private final DatagramPacket mReceivePacket = new DatagramPacket(new byte[0], 0);
+
+    /**
+     * @param socket A socket already connected to the receiver.
+     */
+    public DatagramTransport(DatagramSocket socket) {
+        if (!socket.isConnected()) {
+            throw new IllegalArgumentException("Datagram socket must be connected");
+        }
+        mSocket = socket;
+        mPacket = new DatagramPacket(new byte[0], 0, socket.getRemoteSocketAddress());
+    }
+
+    @Override
+    public void send(byte[] frames, int length) throws IOException {
+        mPacket.setData(frames, 0, length);
+        mSocket.send(mPacket);
+    }
+
+    @Override
+    public int receive(byte[] buffer, int offset, int length) throws IOException {
+        mReceivePacket.setData(buffer, offset, length);
+        try {
+            mSocket.receive(mReceivePacket);
+        } catch (IOException e) {
+            if (mSocket.isClosed()) {
+                return -1;
+            }
+            throw e;
+        }
+        return mReceivePacket.getLength();
+    }
+
+    @Override
+    public boolean isConnectionOriented() {
+        // Opening a datagram socket sends nothing, so there is no handshake to save
+        return false;
+    }
+
+    @Override
+    public void close() {
+        mSocket.close();
+    }
+}
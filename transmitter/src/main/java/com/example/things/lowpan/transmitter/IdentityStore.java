@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.transmitter;
+
+import android.content.SharedPreferences;
+
+import com.google.android.things.lowpan.LowpanIdentity;
+
+/**
+ * Remembers the identity of the last network the transmitter attached to, so
+ * the next start can join it directly instead of scanning every channel.
+ *
+ * The name, channel, PAN ID and extended PAN ID are kept as a single string in
+ * shared preferences, so an entry is either complete or missing.
+ */
+public class IdentityStore {
+    private static final String KEY_IDENTITY = "lowpan_identity";
+    // Name, channel, PAN ID and XPAN ID in hex; the name may itself contain the separator
+    private static final char SEPARATOR = ':';
+
+    private final SharedPreferences mPreferences;
+
+    public IdentityStore(SharedPreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * Returns the stored identity, or null if none was saved or it can't be read.
+     */
+    public LowpanIdentity load() {
+        Entry entry = Entry.parse(mPreferences.getString(KEY_IDENTITY, null));
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return new LowpanIdentity.Builder()
+                    .setName(entry.mName)
+                    .setChannel(entry.mChannel)
+                    .setPanid(entry.mPanid)
+                    .setXpanid(entry.mXpanid)
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Store the identity, replacing any previous one.
+     */
+    public void save(LowpanIdentity identity) {
+        byte[] xpanid = identity.getXpanid();
+        Entry entry = new Entry(identity.getName(), identity.getChannel(), identity.getPanid(),
+                xpanid != null ? xpanid : new byte[0]);
+        mPreferences.edit().putString(KEY_IDENTITY, entry.format()).apply();
+    }
+
+    /**
+     * Forget the stored identity, after it failed to get the transmitter attached.
+     */
+    public void clear() {
+        mPreferences.edit().remove(KEY_IDENTITY).apply();
+    }
+
+    /**
+     * The stored fields of an identity, and their string form. Kept apart
+     * from {@link LowpanIdentity} so the format can be tested on a regular JVM.
+     */
+    static class Entry {
+        final String mName;
+        final int mChannel;
+        final int mPanid;
+        final byte[] mXpanid;
+
+        Entry(String name, int channel, int panid, byte[] xpanid) {
+            mName = name;
+            mChannel = channel;
+            mPanid = panid;
+            mXpanid = xpanid;
+        }
+
+        /**
+         * Returns the entry stored as the string, or null if it is missing or malformed.
+         */
+        static Entry parse(String entry) {
+            if (entry == null) {
+                return null;
+            }
+            int xpanidStart = entry.lastIndexOf(SEPARATOR);
+            int panidStart = entry.lastIndexOf(SEPARATOR, xpanidStart - 1);
+            int channelStart = entry.lastIndexOf(SEPARATOR, panidStart - 1);
+            if (channelStart < 0) {
+                return null;
+            }
+            try {
+                return new Entry(entry.substring(0, channelStart),
+                        Integer.parseInt(entry.substring(channelStart + 1, panidStart)),
+                        Integer.parseInt(entry.substring(panidStart + 1, xpanidStart), 16),
+                        fromHex(entry.substring(xpanidStart + 1)));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        String format() {
+            StringBuilder entry = new StringBuilder(64)
+                    .append(mName).append(SEPARATOR)
+                    .append(mChannel).append(SEPARATOR)
+                    .append(Integer.toHexString(mPanid)).append(SEPARATOR);
+            for (byte b : mXpanid) {
+                entry.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return entry.toString();
+        }
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd length hex " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hex " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
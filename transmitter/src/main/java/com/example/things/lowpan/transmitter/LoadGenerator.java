@@ -0,0 +1,294 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import com.example.things.lowpan.common.FrameCodec;
+import com.example.things.lowpan.common.LatencyHistogram;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless source of synthetic values for stress-testing a receiver.
+ *
+ * Each connection runs on its own thread and sends single-value frames on an
+ * open-loop schedule: the time each value is due is fixed in advance by the
+ * rate and distribution, and send latency is measured from that due time, so
+ * a stalled connection shows up as latency instead of silently lowering the
+ * rate. Failed connects and writes are counted and the connection is
+ * reopened.
+ *
+ * This class has no Android dependencies; {@code LoadGeneratorHarness} in
+ * the tests runs it on a regular JVM.
+ */
+public class LoadGenerator {
+
+    /**
+     * How values are spread over time.
+     */
+    public enum Distribution {
+        /** Evenly spaced values. */
+        CONSTANT,
+        /** Exponentially distributed gaps, as from many independent sources. */
+        POISSON,
+        /** Back-to-back bursts of {@link #BURST_SIZE} values, evenly spaced. */
+        BURSTY
+    }
+
+    /** Number of values sent back to back by the bursty distribution. */
+    public static final int BURST_SIZE = 32;
+
+    private static final long RECONNECT_DELAY_MS = 100;
+    // Longest wait in stop() for each connection's thread to exit
+    private static final long JOIN_TIMEOUT_MS = 1_000;
+
+    private final ConnectionManager.TransportFactory mFactory;
+    private final int mConnections;
+    private final double mValuesPerSecond;
+    private final Distribution mDistribution;
+    private final List<Thread> mThreads = new ArrayList<>();
+    private final List<Worker> mWorkers = new ArrayList<>();
+
+    private volatile boolean mRunning;
+    private volatile long mStartNanos;
+    private volatile long mStopNanos;
+    private final AtomicLong mSentCount = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private final LatencyHistogram mSendMicros = new LatencyHistogram();
+
+    /**
+     * @param factory Opens one transport per connection.
+     * @param connections Number of concurrent connections.
+     * @param valuesPerSecond Total rate across all connections.
+     * @param distribution How values are spread over time.
+     */
+    public LoadGenerator(ConnectionManager.TransportFactory factory, int connections,
+            double valuesPerSecond, Distribution distribution) {
+        if (connections <= 0 || valuesPerSecond <= 0) {
+            throw new IllegalArgumentException("Connections and rate must be positive");
+        }
+        mFactory = factory;
+        mConnections = connections;
+        mValuesPerSecond = valuesPerSecond;
+        mDistribution = distribution;
+    }
+
+    /**
+     * Start a thread per connection.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mStartNanos = System.nanoTime();
+        mStopNanos = 0;
+        for (int i = 0; i < mConnections; i++) {
+            Worker worker = new Worker(i);
+            Thread thread = new Thread(worker, "LoadGenerator-" + i);
+            mWorkers.add(worker);
+            mThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop every connection and wait a bounded time for its thread to exit.
+     * The transports are closed first, since an interrupt does not unblock a
+     * write to a stalled socket.
+     *
+     * @return {@code false} if a thread was still running when the wait ended.
+     */
+    public synchronized boolean stop() throws InterruptedException {
+        mRunning = false;
+        for (Worker worker : mWorkers) {
+            worker.closeTransport();
+        }
+        boolean stopped = true;
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+            thread.join(JOIN_TIMEOUT_MS);
+            stopped &= !thread.isAlive();
+        }
+        mWorkers.clear();
+        mThreads.clear();
+        mStopNanos = System.nanoTime();
+        return stopped;
+    }
+
+    public long getSentCount() {
+        return mSentCount.get();
+    }
+
+    public long getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    /**
+     * Returns the rate achieved since {@link #start()}, in values per second.
+     */
+    public double getAchievedRate() {
+        long end = mStopNanos != 0 ? mStopNanos : System.nanoTime();
+        double seconds = (end - mStartNanos) / 1e9;
+        return seconds > 0 ? mSentCount.get() / seconds : 0;
+    }
+
+    /**
+     * Returns the delay from each value's due time to the end of its write, in microseconds.
+     */
+    public LatencyHistogram getSendMicros() {
+        return mSendMicros;
+    }
+
+    /**
+     * Returns the report as a single line of space-separated {@code key=value} pairs.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(256)
+                .append("connections=").append(mConnections)
+                .append(" distribution=").append(mDistribution.name().toLowerCase(Locale.US))
+                .append(" target_rate=").append(String.format(Locale.US, "%.1f", mValuesPerSecond))
+                .append(" achieved_rate=")
+                .append(String.format(Locale.US, "%.1f", getAchievedRate()))
+                .append(" sent=").append(mSentCount.get())
+                .append(" errors=").append(mErrorCount.get())
+                .append(' ');
+        return mSendMicros.appendTo(builder, "send_us_").toString();
+    }
+
+    /**
+     * Sends values on one connection at its share of the total rate.
+     */
+    private class Worker implements Runnable {
+        private final int mIndex;
+        private final Random mRandom = new Random();
+        private final ByteBuffer mFrame = ByteBuffer.allocate(FrameCodec.MAX_FRAME_SIZE);
+        private final double mIntervalNanos = 1e9 * mConnections / mValuesPerSecond;
+        // Written by the worker; read by stop() to close it from another thread
+        private volatile ValueTransport mTransport;
+        private int mSequence;
+
+        Worker(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            // Stagger the connections so constant load isn't sent in lockstep
+            long due = System.nanoTime() + (long) (mIntervalNanos * mIndex / mConnections);
+            try {
+                while (mRunning) {
+                    if (mTransport == null && !open()) {
+                        continue;
+                    }
+                    int count = mDistribution == Distribution.BURSTY ? BURST_SIZE : 1;
+                    await(due);
+                    for (int i = 0; i < count && mTransport != null; i++) {
+                        send(due);
+                    }
+                    due += nextGap(count);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private long nextGap(int count) {
+            if (mDistribution == Distribution.POISSON) {
+                return (long) (-Math.log(1 - mRandom.nextDouble()) * mIntervalNanos);
+            }
+            return (long) (mIntervalNanos * count);
+        }
+
+        private void send(long due) {
+            mFrame.clear();
+            int value = mSequence;
+            int length = FrameCodec.encodeValue(mFrame, mSequence++, value);
+            ValueTransport transport = mTransport;
+            if (transport == null) {
+                return;
+            }
+            try {
+                transport.send(mFrame.array(), length);
+                mSendMicros.record((System.nanoTime() - due) / 1000);
+                mSentCount.incrementAndGet();
+            } catch (IOException e) {
+                if (mRunning) {
+                    mErrorCount.incrementAndGet();
+                }
+                close();
+            }
+        }
+
+        private boolean open() {
+            try {
+                mTransport = mFactory.create();
+                if (!mRunning) {
+                    // Opened after stop() closed the transports
+                    close();
+                }
+                return true;
+            } catch (IOException | RuntimeException e) {
+                mErrorCount.incrementAndGet();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RECONNECT_DELAY_MS));
+                return false;
+            }
+        }
+
+        private void close() {
+            ValueTransport transport = mTransport;
+            mTransport = null;
+            if (transport != null) {
+                try {
+                    transport.close();
+                } catch (IOException ignored) {
+                    // Reopened on the next value
+                }
+            }
+        }
+
+        /**
+         * Close the transport from stop(), failing a write blocked on it.
+         */
+        void closeTransport() {
+            ValueTransport transport = mTransport;
+            if (transport != null) {
+                try {
+                    transport.close();
+                } catch (IOException ignored) {
+                    // The worker closes it again on its way out
+                }
+            }
+        }
+    }
+
+    private static void await(long due) {
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import com.example.things.lowpan.common.FrameCodec;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Bounded first-in first-out queue of outgoing values, persisted in
+ * memory-mapped segment files so that nothing is lost while the receiver
+ * is unreachable or the process restarts.
+ *
+ * Values are appended to the newest segment. A batch that was written to
+ * the transport has only reached the kernel; a connection that fails can
+ * still lose it. So a separate offset file holds the index of the oldest
+ * value that is kept for replay, which trails the values sent by the last
+ * few batches. {@link #rewind()} after a reconnect, and reopening the queue
+ * after a crash, send those batches again. Delivery is therefore at least
+ * once for values in the replay window, and the receiver sees them twice
+ * when they did arrive; a value sent more batches ago than the window is
+ * assumed delivered. Segments are deleted once every value in them has left
+ * the replay window. When all segments are full, new values are rejected.
+ *
+ * Every record holds the value and a check word derived from its index and
+ * value, never zero, so the zero-filled tail of a segment marks its end.
+ * Not thread-safe; confine each instance to a single thread.
+ */
+public class OutboundQueue implements Closeable {
+
+    /**
+     * Encodes and sends drained values.
+     */
+    public interface Sink {
+        /**
+         * Write one frame at the buffer's position, carrying one or more of the
+         * given values in order, without going past the buffer's limit.
+         *
+         * @return The number of values written, or 0 if none fit.
+         */
+        int encode(ByteBuffer out, int[] values, int offset, int count);
+
+        /**
+         * Send a batch of encoded frames.
+         *
+         * @return {@code true} if the frames were written to the transport.
+         */
+        boolean send(byte[] frames, int length);
+    }
+
+    /** Size of one record: value and check word. */
+    public static final int RECORD_SIZE = 4 + 4;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String OFFSET_FILE = "offset";
+    private static final int CHECK_SEED = 0x9E3779B9;
+
+    private final File mDirectory;
+    private final int mRecordsPerSegment;
+    private final int mMaxSegments;
+    private final int mMaxBatchBytes;
+    private final ByteBuffer mBatch;
+    private final int[] mBatchValues;
+    private final MappedByteBuffer mOffset;
+    // End index of each batch in the replay window, oldest first, as a ring
+    private final long[] mReplayEnds;
+    private int mReplayFirst;
+    private int mReplayCount;
+
+    private long mWriteBase;
+    private MappedByteBuffer mWriteSegment;
+    // Base of the oldest segment, and of the segment holding the head
+    private long mReadBase;
+    private long mSendBase;
+    private MappedByteBuffer mSendSegment;
+    // Index of the oldest value kept for replay, of the oldest unsent value,
+    // and of the next value to append
+    private long mCommitted;
+    private long mHead;
+    private long mTail;
+
+    private long mDrainedCount;
+    private long mBatchCount;
+    private long mReplayedCount;
+    private long mRejectedCount;
+
+    /**
+     * Open a queue, continuing with the unsent values of existing segments.
+     *
+     * @param directory Directory holding the queue files, created if missing.
+     * @param recordsPerSegment Number of values in each segment file; must not
+     *         change between runs that share a directory.
+     * @param maxSegments Maximum number of segment files.
+     * @param maxBatchBytes Upper bound on the frames handed to a single send.
+     * @param replayBatches Number of sent batches kept for {@link #rewind()},
+     *         or 0 to treat every value written to the transport as delivered.
+     */
+    public OutboundQueue(File directory, int recordsPerSegment, int maxSegments,
+            int maxBatchBytes, int replayBatches) throws IOException {
+        if (recordsPerSegment <= 0 || maxSegments <= 0) {
+            throw new IllegalArgumentException("Segment size and count must be positive");
+        }
+        if (replayBatches < 0) {
+            throw new IllegalArgumentException("Replay window must not be negative");
+        }
+        if (maxBatchBytes < FrameCodec.MAX_VALUE_FRAME_SIZE) {
+            throw new IllegalArgumentException("Batch must hold at least one frame");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create queue directory " + directory);
+        }
+        mDirectory = directory;
+        mRecordsPerSegment = recordsPerSegment;
+        mMaxSegments = maxSegments;
+        mMaxBatchBytes = maxBatchBytes;
+        mBatch = ByteBuffer.allocate(maxBatchBytes);
+        // No frame carries a value in less than a byte
+        mBatchValues = new int[maxBatchBytes];
+        mReplayEnds = new long[replayBatches];
+        mOffset = map(new File(directory, OFFSET_FILE), 8);
+
+        File[] segments = listSegments(directory);
+        if (segments.length == 0) {
+            mWriteSegment = openSegment(0);
+            mTail = 0;
+            mReadBase = 0;
+        } else {
+            mWriteBase = segmentBase(segments[segments.length - 1]);
+            mWriteSegment = openSegment(mWriteBase);
+            mTail = mWriteBase + recordCount(mWriteSegment, mWriteBase);
+            mReadBase = segmentBase(segments[0]);
+        }
+        // Whatever was in the replay window when the process stopped is sent again
+        mCommitted = Math.min(Math.max(mOffset.getLong(0), mReadBase), mTail);
+        mHead = mCommitted;
+        deleteCommittedSegments();
+    }
+
+    /**
+     * Append a value, starting a new segment if the current one is full.
+     *
+     * @return {@code false} if the queue is full and the value was rejected.
+     */
+    public boolean offer(int value) throws IOException {
+        if (mTail - mWriteBase == mRecordsPerSegment) {
+            if ((mWriteBase - mReadBase) / mRecordsPerSegment + 1 >= mMaxSegments) {
+                mRejectedCount++;
+                return false;
+            }
+            mWriteSegment.force();
+            mWriteBase = mTail;
+            mWriteSegment = openSegment(mWriteBase);
+        }
+        int position = (int) (mTail - mWriteBase) * RECORD_SIZE;
+        mWriteSegment.putInt(position, value);
+        mWriteSegment.putInt(position + 4, check(mTail, value));
+        mTail++;
+        return true;
+    }
+
+    /**
+     * Send queued values in order, in batches of up to the maximum batch size,
+     * until the queue is empty or a send fails.
+     *
+     * @return {@code true} if every queued value was sent.
+     */
+    public boolean drain(Sink sink) throws IOException {
+        while (mHead < mTail) {
+            mapSendSegment();
+            // A batch stops at the end of the segment being read
+            int available = (int) Math.min(Math.min(mTail, mSendBase + mRecordsPerSegment) - mHead,
+                    mBatchValues.length);
+            for (int i = 0; i < available; i++) {
+                mBatchValues[i] = mSendSegment.getInt((int) (mHead + i - mSendBase) * RECORD_SIZE);
+            }
+            mBatch.clear();
+            int batched = 0;
+            while (batched < available) {
+                int written = sink.encode(mBatch, mBatchValues, batched, available - batched);
+                if (written == 0) {
+                    break;
+                }
+                batched += written;
+            }
+            if (batched == 0) {
+                throw new IllegalStateException("Sink did not encode a value into "
+                        + mMaxBatchBytes + " bytes");
+            }
+            if (!sink.send(mBatch.array(), mBatch.position())) {
+                return false;
+            }
+            mDrainedCount += batched;
+            mBatchCount++;
+            mHead += batched;
+            commit(mHead);
+        }
+        return true;
+    }
+
+    /**
+     * Send the batches in the replay window again on the next {@link #drain(Sink)},
+     * after the transport was replaced and may have lost them.
+     */
+    public void rewind() {
+        mReplayedCount += mHead - mCommitted;
+        mHead = mCommitted;
+        mReplayCount = 0;
+    }
+
+    /**
+     * Returns the number of values waiting to be sent, not counting the replay window.
+     */
+    public long size() {
+        return mTail - mHead;
+    }
+
+    /**
+     * Returns the number of values sent by {@link #drain(Sink)}.
+     */
+    public long getDrainedCount() {
+        return mDrainedCount;
+    }
+
+    /**
+     * Returns the number of batches sent by {@link #drain(Sink)}.
+     */
+    public long getBatchCount() {
+        return mBatchCount;
+    }
+
+    /**
+     * Returns the number of values queued again by {@link #rewind()}.
+     */
+    public long getReplayedCount() {
+        return mReplayedCount;
+    }
+
+    /**
+     * Returns the number of values rejected because the queue was full.
+     */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Returns the statistics as a single line of space-separated {@code key=value} pairs.
+     */
+    @Override
+    public String toString() {
+        return "queued=" + size()
+                + " drained=" + mDrainedCount
+                + " batches=" + mBatchCount
+                + " replayed=" + mReplayedCount
+                + " rejected=" + mRejectedCount;
+    }
+
+    @Override
+    public void close() {
+        if (mWriteSegment != null) {
+            mWriteSegment.force();
+            mOffset.force();
+            mWriteSegment = null;
+            mSendSegment = null;
+        }
+    }
+
+    /**
+     * Add a sent batch to the replay window, and move the offset past the
+     * batch that falls out of it.
+     */
+    private void commit(long end) throws IOException {
+        if (mReplayEnds.length == 0) {
+            mCommitted = end;
+        } else {
+            if (mReplayCount == mReplayEnds.length) {
+                mCommitted = mReplayEnds[mReplayFirst];
+                mReplayFirst = (mReplayFirst + 1) % mReplayEnds.length;
+                mReplayCount--;
+            }
+            mReplayEnds[(mReplayFirst + mReplayCount) % mReplayEnds.length] = end;
+            mReplayCount++;
+        }
+        mOffset.putLong(0, mCommitted);
+        deleteCommittedSegments();
+    }
+
+    /**
+     * Delete segments whose values have all left the replay window.
+     */
+    private void deleteCommittedSegments() throws IOException {
+        while (mReadBase < mWriteBase && mCommitted >= mReadBase + mRecordsPerSegment) {
+            File consumed = segmentFile(mReadBase);
+            if (!consumed.delete()) {
+                throw new IOException("Unable to delete segment " + consumed);
+            }
+            mReadBase += mRecordsPerSegment;
+        }
+    }
+
+    /**
+     * Map the segment holding the head, which is never before the oldest segment.
+     */
+    private void mapSendSegment() throws IOException {
+        long base = mReadBase + (mHead - mReadBase) / mRecordsPerSegment * mRecordsPerSegment;
+        if (mSendSegment == null || base != mSendBase) {
+            mSendBase = base;
+            mSendSegment = base == mWriteBase ? mWriteSegment : openSegment(base);
+        }
+    }
+
+    private MappedByteBuffer openSegment(long base) throws IOException {
+        return map(segmentFile(base), (long) mRecordsPerSegment * RECORD_SIZE);
+    }
+
+    private File segmentFile(long base) {
+        return new File(mDirectory, String.format(Locale.US, "%020d", base) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Binary search for the first empty record slot of a segment.
+     */
+    private int recordCount(MappedByteBuffer segment, long base) {
+        int low = 0;
+        int high = mRecordsPerSegment;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (segment.getInt(mid * RECORD_SIZE + 4) != 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        // Only the last record can have been cut short by a crash
+        int last = low - 1;
+        if (last >= 0 && segment.getInt(last * RECORD_SIZE + 4)
+                != check(base + last, segment.getInt(last * RECORD_SIZE))) {
+            segment.putInt(last * RECORD_SIZE + 4, 0);
+            return last;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the check word of a record, which is never zero.
+     */
+    private static int check(long index, int value) {
+        int hash = ((int) index ^ (int) (index >>> 32) ^ value) * CHECK_SEED;
+        return hash | 1;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long segmentBase(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static File[] listSegments(File directory) {
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (segments == null) {
+            return new File[0];
+        }
+        // Zero-padded names sort in the order the segments were written
+        Arrays.sort(segments);
+        return segments;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.transmitter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Reliable, ordered transport over a TCP connection.
+ */
+public class TcpTransport implements ValueTransport {
+    private final Socket mSocket;
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+
+    public TcpTransport(Socket socket) throws IOException {
+        mSocket = socket;
+        // Values are already coalesced by the TransmitPipeline before they are
+        // sent, so Nagle's algorithm would only hold each frame back
+        socket.setTcpNoDelay(true);
+        mInputStream = socket.getInputStream();
+        mOutputStream = socket.getOutputStream();
+    }
+
+    @Override
+    public void send(byte[] frames, int length) throws IOException {
+        mOutputStream.write(frames, 0, length);
+    }
+
+    @Override
+    public int receive(byte[] buffer, int offset, int length) throws IOException {
+        return mInputStream.read(buffer, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.things.lowpan.common.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transmit stage that coalesces outgoing values so that only the newest one
+ * is sent, when the {@link FlushPolicy} says it is time.
+ *
+ * Values can be offered from any thread. They are written to a single slot
+ * and counted; a flush is scheduled on the send {@link Handler} when the
+ * first value arrives after a send, or pulled forward when the policy asks
+ * for an immediate flush. Dragging a slider therefore produces one frame
+ * per flush instead of one tiny write per intermediate position.
+ */
+public class TransmitPipeline {
+    private static final String TAG = TransmitPipeline.class.getSimpleName();
+
+    /**
+     * Writes a value to the network, invoked on the send handler's thread.
+     */
+    public interface Sender {
+        void send(int value) throws IOException;
+    }
+
+    /**
+     * Decides when pending values are flushed.
+     */
+    public interface FlushPolicy {
+        /**
+         * Returns how long to wait before flushing, or 0 to flush now.
+         *
+         * @param pendingMillis Time since the oldest unsent value was offered.
+         * @param sinceSendMillis Time since the previous send.
+         * @param pendingCount Number of values offered since the previous send.
+         */
+        long getFlushDelay(long pendingMillis, long sinceSendMillis, int pendingCount);
+
+        /**
+         * Send every value as soon as the send thread is free. Values offered
+         * while a send is in progress are still coalesced.
+         */
+        static FlushPolicy immediate() {
+            return (pendingMillis, sinceSendMillis, pendingCount) -> 0;
+        }
+
+        /**
+         * Send at most once per interval.
+         */
+        static FlushPolicy fixedInterval(long intervalMillis) {
+            return (pendingMillis, sinceSendMillis, pendingCount) ->
+                    Math.max(0, intervalMillis - sinceSendMillis);
+        }
+
+        /**
+         * Hold values for up to {@code maxLatencyMillis}, but send as soon as
+         * {@code maxBatch} values have been coalesced.
+         */
+        static FlushPolicy maxLatency(long maxLatencyMillis, int maxBatch) {
+            return (pendingMillis, sinceSendMillis, pendingCount) ->
+                    pendingCount >= maxBatch ? 0 : Math.max(0, maxLatencyMillis - pendingMillis);
+        }
+    }
+
+    /**
+     * Clock and delayed execution on the send thread; a {@link Handler} in the app.
+     */
+    interface Scheduler {
+        long uptimeMillis();
+
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        void removeCallbacks(Runnable runnable);
+    }
+
+    private final Scheduler mScheduler;
+    private final FlushPolicy mPolicy;
+    private final Sender mSender;
+
+    private volatile int mLatestValue;
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+    // Set while a flush is posted to run without delay
+    private final AtomicBoolean mFlushDue = new AtomicBoolean();
+    private volatile long mFirstPendingTime;
+    // Written on the send thread, read when scheduling the next flush
+    private volatile long mLastSendTime;
+
+    private final AtomicLong mOfferedCount = new AtomicLong();
+    private final AtomicLong mSendCount = new AtomicLong();
+    private final LatencyHistogram mCoalescedPerSend = new LatencyHistogram();
+
+    /**
+     * @param handler Handler for the thread that owns the network connection.
+     * @param policy When to flush pending values.
+     * @param sender Destination for flushed values.
+     */
+    public TransmitPipeline(Handler handler, FlushPolicy policy, Sender sender) {
+        this(new Scheduler() {
+            @Override
+            public long uptimeMillis() {
+                return SystemClock.uptimeMillis();
+            }
+
+            @Override
+            public void postDelayed(Runnable runnable, long delayMillis) {
+                handler.postDelayed(runnable, delayMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                handler.removeCallbacks(runnable);
+            }
+        }, policy, sender);
+    }
+
+    TransmitPipeline(Scheduler scheduler, FlushPolicy policy, Sender sender) {
+        mScheduler = scheduler;
+        mPolicy = policy;
+        mSender = sender;
+    }
+
+    /**
+     * Offer a new value, replacing any value that has not been sent yet.
+     */
+    public void offer(int value) {
+        mLatestValue = value;
+        mOfferedCount.incrementAndGet();
+        long now = mScheduler.uptimeMillis();
+        int pending = mPendingCount.incrementAndGet();
+        if (pending == 1) {
+            mFirstPendingTime = now;
+        }
+        long delay = mPolicy.getFlushDelay(now - mFirstPendingTime, now - mLastSendTime, pending);
+        if (pending == 1) {
+            // First value since the last send; nothing is scheduled yet
+            if (delay == 0) {
+                mFlushDue.set(true);
+            }
+            mScheduler.postDelayed(mFlush, delay);
+        } else if (delay == 0 && mFlushDue.compareAndSet(false, true)) {
+            // The policy wants the pending values out before the scheduled flush
+            mScheduler.removeCallbacks(mFlush);
+            mScheduler.postDelayed(mFlush, 0);
+        }
+    }
+
+    /**
+     * Returns the number of values offered.
+     */
+    public long getOfferedCount() {
+        return mOfferedCount.get();
+    }
+
+    /**
+     * Returns the number of values written to the network.
+     */
+    public long getSendCount() {
+        return mSendCount.get();
+    }
+
+    /**
+     * Returns how many offered values each send replaced.
+     */
+    public LatencyHistogram getCoalescedPerSend() {
+        return mCoalescedPerSend;
+    }
+
+    /**
+     * Discard any pending flush.
+     */
+    public void cancel() {
+        mScheduler.removeCallbacks(mFlush);
+        mPendingCount.set(0);
+        mFlushDue.set(false);
+    }
+
+    /**
+     * Returns the statistics as a single line of space-separated {@code key=value} pairs.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(128)
+                .append("offered=").append(getOfferedCount())
+                .append(" sent=").append(getSendCount())
+                .append(' ');
+        return mCoalescedPerSend.appendTo(builder, "coalesced_").toString();
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            mFlushDue.set(false);
+            // Take the count before the value, so the value is at least as new as the count
+            int coalesced = mPendingCount.getAndSet(0);
+            if (coalesced == 0) {
+                return;
+            }
+            int value = mLatestValue;
+            mLastSendTime = mScheduler.uptimeMillis();
+            try {
+                mSender.send(value);
+                mSendCount.incrementAndGet();
+                mCoalescedPerSend.record(coalesced);
+            } catch (IOException e) {
+                Log.e(TAG, "Exception on write ", e);
+            }
+        }
+    };
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.things.lowpan.common.DeltaCodec;
+import com.example.things.lowpan.common.FrameCodec;
+import com.example.things.lowpan.common.LatencyHistogram;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * One receiver fed by the transmitter, with its own connection, thread and
+ * outbound queue.
+ *
+ * Frames are encoded once by the caller and copied into each target's
+ * bounded pending buffer, which the target's own thread writes out in a
+ * single send. A peer that accepts data slowly only blocks its own thread;
+ * once its pending buffer is full, further frames for it are dropped and
+ * counted, while the other targets carry on.
+ *
+ * With an {@link OutboundQueue} directory, every value goes through the
+ * queue on disk, so values that can't be sent because the target is
+ * disconnected are sent in order once it reconnects, and the last batches
+ * sent before a connection failed are sent again on the next one.
+ *
+ * With a {@link DeltaCodec}, the caller's frames are not used: the target
+ * encodes the values of each send as deltas on its own stream, restarting
+ * from an absolute value whenever the connection is replaced.
+ */
+public class TransmitTarget implements Closeable {
+    private static final String TAG = TransmitTarget.class.getSimpleName();
+
+    /**
+     * Encodes a value drained from the outbound queue, on the target's thread.
+     */
+    public interface Encoder {
+        /**
+         * Write a frame carrying the value at the buffer's position.
+         *
+         * @return The number of bytes written.
+         */
+        int encode(ByteBuffer out, int value);
+    }
+
+    private final String mName;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final ConnectionManager mConnectionManager;
+    private final ConnectionManager.Callback mCallback;
+    private final Encoder mEncoder;
+    private final DeltaCodec mDeltaCodec;
+    private final File mQueueDirectory;
+    private final int mRecordsPerSegment;
+    private final int mMaxSegments;
+    private final int mDrainBatchBytes;
+    private final int mReplayBatches;
+
+    // Frames and their values waiting for the target's thread, guarded by this
+    private byte[] mPending;
+    private int[] mPendingValues;
+    private int mPendingLength;
+    private int mPendingCount;
+    private long mPendingSince;
+    // The other half of the double buffer, only touched on the target's thread
+    private byte[] mSending;
+    private int[] mSendingValues;
+    // Delta frames of the values being sent, and their sequence numbers
+    private final ByteBuffer mDeltaBuffer;
+    private int mDeltaSequence;
+
+    // Only used on the target's thread, read elsewhere for metrics
+    private volatile OutboundQueue mOutboundQueue;
+    private volatile boolean mConnected;
+
+    private volatile long mSentCount;
+    private volatile long mFailedCount;
+    private volatile long mDroppedCount;
+    private final LatencyHistogram mDeliverMicros = new LatencyHistogram();
+
+    /**
+     * @param name Name of the target for threads and logs, usually its address.
+     * @param factory Opens transports to the target.
+     * @param receiver Destination for data sent back by the target.
+     * @param callback Receiver of the target's connection state changes.
+     * @param encoder Encodes values drained from the outbound queue.
+     * @param deltaCodec Encodes this target's stream instead of the caller's
+     *         frames and the encoder, or null.
+     * @param maxPendingBytes Upper bound on the frames written in one send.
+     * @param queueDirectory Directory for the outbound queue, or null to drop
+     *         values while disconnected.
+     * @param recordsPerSegment Number of values in each outbound queue segment.
+     * @param maxSegments Maximum number of outbound queue segments.
+     * @param drainBatchBytes Upper bound on the frames of one send from the outbound queue.
+     * @param replayBatches Number of batches from the outbound queue sent again on reconnect.
+     */
+    public TransmitTarget(String name, ConnectionManager.TransportFactory factory,
+            ConnectionManager.Receiver receiver, ConnectionManager.Callback callback,
+            Encoder encoder, DeltaCodec deltaCodec, int maxPendingBytes, File queueDirectory,
+            int recordsPerSegment, int maxSegments, int drainBatchBytes, int replayBatches) {
+        mName = name;
+        mCallback = callback;
+        mEncoder = encoder;
+        mDeltaCodec = deltaCodec;
+        mDeltaBuffer = deltaCodec == null ? null : ByteBuffer.allocate(maxPendingBytes);
+        mQueueDirectory = queueDirectory;
+        mRecordsPerSegment = recordsPerSegment;
+        mMaxSegments = maxSegments;
+        mDrainBatchBytes = drainBatchBytes;
+        mReplayBatches = replayBatches;
+        mPending = new byte[maxPendingBytes];
+        mSending = new byte[maxPendingBytes];
+        // Every frame is at least the minimum frame size, which bounds the number of values
+        mPendingValues = new int[maxPendingBytes / FrameCodec.MIN_FRAME_SIZE];
+        mSendingValues = new int[maxPendingBytes / FrameCodec.MIN_FRAME_SIZE];
+        mThread = new HandlerThread("Target " + name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mConnectionManager = createConnectionManager(mHandler, factory, receiver, mStateCallback);
+        if (queueDirectory != null) {
+            // Opened ahead of the first connection, so values left by an earlier run are sent
+            mHandler.post(this::openOutboundQueue);
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns true while the target has a working connection.
+     */
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public void connect() {
+        mConnectionManager.connect();
+    }
+
+    public void disconnect() {
+        mConnectionManager.disconnect();
+    }
+
+    public void onNetworkAvailable() {
+        mConnectionManager.onNetworkAvailable();
+    }
+
+    public void onNetworkLost() {
+        mConnectionManager.onNetworkLost();
+    }
+
+    /**
+     * Queue an encoded frame for this target. Safe to call from any thread;
+     * never blocks on the network.
+     *
+     * @param value The value carried by the frame, kept in case it has to be queued on disk.
+     * @param frame Buffer holding the encoded frame, or null with a {@link DeltaCodec}.
+     * @param length Length of the frame, or 0 with a {@link DeltaCodec}.
+     * @return {@code false} if the target is too far behind and the frame was dropped.
+     */
+    public boolean offer(int value, byte[] frame, int length) {
+        boolean schedule;
+        synchronized (this) {
+            if (mPendingLength + length > mPending.length
+                    || mPendingCount == mPendingValues.length) {
+                mDroppedCount++;
+                return false;
+            }
+            schedule = mPendingCount == 0;
+            if (schedule) {
+                mPendingSince = SystemClock.elapsedRealtimeNanos();
+            }
+            if (frame != null) {
+                System.arraycopy(frame, 0, mPending, mPendingLength, length);
+                mPendingLength += length;
+            }
+            mPendingValues[mPendingCount++] = value;
+        }
+        if (schedule) {
+            mHandler.post(mFlushRunnable);
+        }
+        return true;
+    }
+
+    /**
+     * Close the connection and the outbound queue, and stop the target's thread.
+     */
+    @Override
+    public void close() {
+        mHandler.removeCallbacksAndMessages(null);
+        mConnectionManager.disconnect();
+        mHandler.post(() -> {
+            if (mOutboundQueue != null) {
+                mOutboundQueue.close();
+                mOutboundQueue = null;
+            }
+        });
+        mThread.quitSafely();
+    }
+
+    /**
+     * Returns the metrics as a single line of space-separated {@code key=value} pairs.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(256)
+                .append("target=").append(mName)
+                .append(" connected=").append(mConnected)
+                .append(" sent=").append(mSentCount)
+                .append(" failed=").append(mFailedCount)
+                .append(" dropped=").append(mDroppedCount)
+                .append(' ');
+        mDeliverMicros.appendTo(builder, "deliver_us_")
+                .append(' ').append(mConnectionManager);
+        OutboundQueue queue = mOutboundQueue;
+        if (queue != null) {
+            builder.append(' ').append(queue);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the connection manager of this target. Called from the
+     * constructor; tests override it to capture what is sent.
+     */
+    ConnectionManager createConnectionManager(Handler handler,
+            ConnectionManager.TransportFactory factory, ConnectionManager.Receiver receiver,
+            ConnectionManager.Callback callback) {
+        return new ConnectionManager(handler, factory, receiver, callback);
+    }
+
+    /**
+     * Write everything pending in one send, or queue it on disk. Runs on the target's thread.
+     */
+    void flush() {
+        int length;
+        int count;
+        long since;
+        synchronized (this) {
+            byte[] frames = mPending;
+            mPending = mSending;
+            mSending = frames;
+            int[] values = mPendingValues;
+            mPendingValues = mSendingValues;
+            mSendingValues = values;
+            length = mPendingLength;
+            count = mPendingCount;
+            since = mPendingSince;
+            mPendingLength = 0;
+            mPendingCount = 0;
+        }
+        if (count == 0) {
+            return;
+        }
+        if (mQueueDirectory != null) {
+            // Sent from the queue, so that they can be replayed after a reconnect
+            if (queueValues(mSendingValues, count)) {
+                mDeliverMicros.record((SystemClock.elapsedRealtimeNanos() - since) / 1000);
+            }
+            return;
+        }
+        int sent = 0;
+        if (mDeltaCodec != null) {
+            sent = sendDeltas(mSendingValues, count);
+        } else if (mConnectionManager.send(mSending, length)) {
+            sent = count;
+        }
+        mSentCount += sent;
+        if (sent == count) {
+            mDeliverMicros.record((SystemClock.elapsedRealtimeNanos() - since) / 1000);
+        } else {
+            mFailedCount += count - sent;
+        }
+    }
+
+    /**
+     * Task to flush on the target's thread, posted when the first frame is pending.
+     */
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Encode values as delta frames and send them, in as few sends as the
+     * pending buffer size allows.
+     *
+     * @return The number of values sent before a send failed, or all of them.
+     */
+    private int sendDeltas(int[] values, int count) {
+        int sent = 0;
+        while (sent < count) {
+            mDeltaBuffer.clear();
+            int batched = sent;
+            while (batched < count) {
+                int written = mDeltaCodec.encode(mDeltaBuffer, mDeltaSequence, values, batched,
+                        count - batched);
+                if (written == 0) {
+                    break;
+                }
+                mDeltaSequence++;
+                batched += written;
+            }
+            if (!mConnectionManager.send(mDeltaBuffer.array(), mDeltaBuffer.position())) {
+                // The receiver may not have the last value the codec refers to
+                mDeltaCodec.reset();
+                return sent;
+            }
+            sent = batched;
+        }
+        return sent;
+    }
+
+    /**
+     * Append values to the outbound queue and send whatever the connection accepts.
+     *
+     * @return {@code true} if the queue is now empty.
+     */
+    private boolean queueValues(int[] values, int count) {
+        // Reopened after an earlier failure closed it
+        if (mOutboundQueue == null && !openOutboundQueue()) {
+            mDroppedCount += count;
+            return false;
+        }
+        int queued = 0;
+        try {
+            while (queued < count && mOutboundQueue.offer(values[queued])) {
+                queued++;
+            }
+            if (queued < count) {
+                Log.w(TAG, "Outbound queue for " + mName + " is full");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to queue values for " + mName, e);
+        }
+        mDroppedCount += count - queued;
+        return drainOutboundQueue();
+    }
+
+    /**
+     * Open the outbound queue, continuing where an earlier run left it.
+     *
+     * @return {@code false} if the queue could not be opened.
+     */
+    private boolean openOutboundQueue() {
+        if (mOutboundQueue != null) {
+            return true;
+        }
+        try {
+            mOutboundQueue = new OutboundQueue(mQueueDirectory, mRecordsPerSegment,
+                    mMaxSegments, mDrainBatchBytes, mReplayBatches);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open outbound queue for " + mName, e);
+            return false;
+        }
+    }
+
+    /**
+     * Send queued values until the queue is empty or a send fails.
+     *
+     * @return {@code true} if the queue is now empty.
+     */
+    private boolean drainOutboundQueue() {
+        OutboundQueue queue = mOutboundQueue;
+        long drained = queue.getDrainedCount();
+        try {
+            return queue.drain(mSink);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to drain outbound queue for " + mName, e);
+            queue.close();
+            mOutboundQueue = null;
+            return false;
+        } finally {
+            mSentCount += queue.getDrainedCount() - drained;
+        }
+    }
+
+    /**
+     * Encodes drained values with the delta codec or the shared encoder and
+     * sends them on this target.
+     */
+    private final OutboundQueue.Sink mSink = new OutboundQueue.Sink() {
+        @Override
+        public int encode(ByteBuffer out, int[] values, int offset, int count) {
+            if (mDeltaCodec != null) {
+                int written = mDeltaCodec.encode(out, mDeltaSequence, values, offset, count);
+                if (written > 0) {
+                    mDeltaSequence++;
+                }
+                return written;
+            }
+            if (out.remaining() < FrameCodec.MAX_VALUE_FRAME_SIZE) {
+                return 0;
+            }
+            mEncoder.encode(out, values[offset]);
+            return 1;
+        }
+
+        @Override
+        public boolean send(byte[] frames, int length) {
+            if (mConnectionManager.send(frames, length)) {
+                return true;
+            }
+            if (mDeltaCodec != null) {
+                mDeltaCodec.reset();
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Track the connection state, catch up on queued values, and pass the change on.
+     */
+    private final ConnectionManager.Callback mStateCallback = new ConnectionManager.Callback() {
+        @Override
+        public void onConnecting() {
+            mConnected = false;
+            mCallback.onConnecting();
+        }
+
+        @Override
+        public void onConnected() {
+            mConnected = true;
+            if (mDeltaCodec != null) {
+                // A new connection is a new stream on the receiver
+                mDeltaCodec.reset();
+            }
+            if (mOutboundQueue != null) {
+                // The previous connection may have lost what it was last given
+                mOutboundQueue.rewind();
+                drainOutboundQueue();
+            }
+            mCallback.onConnected();
+        }
+
+        @Override
+        public void onDisconnected() {
+            mConnected = false;
+            Log.i(TAG, TransmitTarget.this.toString());
+            mCallback.onDisconnected();
+        }
+    };
+}
@@ -26,9 +26,13 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import com.example.things.lowpan.common.DeltaCodec;
+import com.example.things.lowpan.common.FrameCodec;
+import com.example.things.lowpan.common.LatencyProbe;
 import com.google.android.things.contrib.driver.button.Button;
 import com.google.android.things.contrib.driver.ht16k33.AlphanumericDisplay;
 import com.google.android.things.contrib.driver.ht16k33.Ht16k33;
@@ -37,16 +41,25 @@ import com.google.android.things.contrib.driver.rainbowhat.RainbowHat;
 import com.google.android.things.lowpan.LowpanBeaconInfo;
 import com.google.android.things.lowpan.LowpanCredential;
 import com.google.android.things.lowpan.LowpanException;
+import com.google.android.things.lowpan.LowpanIdentity;
 import com.google.android.things.lowpan.LowpanInterface;
 import com.google.android.things.lowpan.LowpanInterface.Callback;
 import com.google.android.things.lowpan.LowpanManager;
 import com.google.android.things.lowpan.LowpanProvisioningParams;
 import com.google.android.things.lowpan.LowpanScanner;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.MulticastSocket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TransmitterActivity extends Activity {
     private static final String TAG = TransmitterActivity.class.getSimpleName();
@@ -57,9 +70,54 @@ public class TransmitterActivity extends Activity {
 
     // Network info
     private static final String SERVER_ADDRESS = "<ENTER_IP_ADDRESS>";
+    // Every receiver to send values to. An IPv6 multicast group, such as "ff03::1",
+    // reaches all receivers on the mesh that joined it with a single datagram.
+    private static final String[] SERVER_ADDRESSES = { SERVER_ADDRESS };
     private static final int SERVER_PORT = 23456;
+    // How long resolved receiver addresses, and failed lookups, are reused
+    private static final long ADDRESS_TTL_MS = 5 * 60_000;
+    private static final long ADDRESS_NEGATIVE_TTL_MS = 10_000;
+    // Hop limit of multicast datagrams, enough to cross the mesh's routers
+    private static final int MULTICAST_HOPS = 8;
+    // Send each value as a UDP datagram instead of over a TCP stream
+    private static final boolean USE_DATAGRAMS = false;
+    // Send values as probes that the receiver acknowledges, to measure round-trip time
+    private static final boolean PROBE_MODE = false;
+    private static final long PROBE_REPORT_INTERVAL_MS = 10_000;
+    // Coalesce slider movements for up to 20ms, or 8 positions, into one frame
+    private static final TransmitPipeline.FlushPolicy FLUSH_POLICY =
+            TransmitPipeline.FlushPolicy.maxLatency(20, 8);
+    // Send synthetic values at this total rate per second instead of the slider's, or 0
+    private static final double LOAD_TEST_RATE = 0;
+    private static final int LOAD_TEST_CONNECTIONS = 4;
+    private static final LoadGenerator.Distribution LOAD_TEST_DISTRIBUTION =
+            LoadGenerator.Distribution.POISSON;
+    // Pack the values of each send as deltas from the previous value; ignored while probing
+    private static final boolean DELTA_FRAMES = false;
+    // Send every value, uncoalesced, through a queue on disk that keeps values while
+    // disconnected and resends the last batches of a failed connection
+    private static final boolean LOSSLESS = false;
+    private static final String OUTBOUND_QUEUE_DIRECTORY = "outbound";
+    private static final int OUTBOUND_RECORDS_PER_SEGMENT = 16 * 1024;
+    private static final int OUTBOUND_MAX_SEGMENTS = 64;
+    // Batches resent after a reconnect, in case the failed connection accepted but lost them
+    private static final int OUTBOUND_REPLAY_BATCHES = 16;
+    // Upper bound on the frames written in one send; 6LoWPAN fragments a send this
+    // size across several frames, which is fine for a few frames gathered at once
+    private static final int IPV6_MIN_MTU = 1280;
+    private static final int MAX_SEND_BYTES = IPV6_MIN_MTU - 40 - (USE_DATAGRAMS ? 8 : 32);
+    // An IEEE 802.15.4 frame holds 127 bytes, less 25 for the MAC header and FCS and
+    // up to 21 for compressed IPv6 headers; drain the queue in batches that fit in
+    // one frame, so that they are not fragmented and replay stays fine-grained
+    private static final int LINK_FRAME_PAYLOAD = 127 - 25 - 21;
+    private static final int DRAIN_BATCH_BYTES = LINK_FRAME_PAYLOAD - (USE_DATAGRAMS ? 8 : 32);
     private static final String LOWPAN_KEY = "FC4262D8F8F79502ABCD326356C610A5";
     private static final String LOWPAN_NETWORK = "lowpan_sample";
+    // Fall back to a scan if joining the remembered network hasn't attached by then
+    private static final long CACHED_JOIN_TIMEOUT_MS = 15_000;
+    private static final String PREFERENCES_NAME = "transmitter";
+    // After the first beacon of the demo network, wait this long for better ones before joining
+    private static final long BEACON_WINDOW_MS = 1_500;
 
     // Strings to display on the segment display
     private static final String DISPLAY_CONN =  "CONN";
@@ -75,15 +133,38 @@ public class TransmitterActivity extends Activity {
     private LowpanManager mLowpanManager;
     private LowpanInterface mLowpanInterface;
     private LowpanScanner mLowpanScanner;
+    private IdentityStore mIdentityStore;
+    // Network being joined and how it was found, until attached
+    private LowpanIdentity mJoiningIdentity;
+    private boolean mJoiningCached;
+    private long mJoinStartMillis;
+    // Strongest beacon of the demo network heard so far by the current scan
+    private LowpanBeaconInfo mBestBeacon;
+    private int mCandidateCount;
+    private boolean mScanDecided;
+    private long mScanStartMillis;
 
     private ConnectivityManager mConnectivityManager;
-    private Network mNetwork;
+    // Set on the main thread, read by the target threads when they connect
+    private volatile Network mNetwork;
+    // Receiver addresses resolved on mNetwork, replaced whenever the network changes
+    private volatile AddressCache mAddressCache;
+    private ScheduledExecutorService mResolverExecutor;
 
     private HandlerThread mBackgroundHandlerThread;
     private Handler mHandler;
     private Handler mUiThreadHandler;
-    private Socket mSocket;
+    private final List<TransmitTarget> mTargets = new ArrayList<>();
+    private boolean mConnectRequested;
+    private TransmitPipeline mTransmitPipeline;
     private int mSeekBarValue = 0;
+    // Reused for every outgoing frame, only touched on the background thread
+    private final ByteBuffer mFrameBuffer = ByteBuffer.allocate(FrameCodec.MAX_FRAME_SIZE);
+    // Shared by the background thread and the targets draining their queues
+    private final AtomicInteger mSequence = new AtomicInteger();
+    // Read by the target threads
+    private volatile LatencyProbe mLatencyProbe;
+    private LoadGenerator mLoadGenerator;
 
     private Button mConnectButton;
     private Button mIncrementButton;
@@ -151,6 +232,7 @@ public class TransmitterActivity extends Activity {
         }
 
         // Initialize network
+        mIdentityStore = new IdentityStore(getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE));
         resetNetwork();
         try {
             ensureLowpanInterface();
@@ -202,12 +284,20 @@ public class TransmitterActivity extends Activity {
 
         // Detach LoWPAN callbacks
         mLowpanManager.unregisterCallback(mInterfaceCallback);
+        mUiThreadHandler.removeCallbacks(mCachedJoinTimeoutRunnable);
+        mUiThreadHandler.removeCallbacks(mJoinBestBeaconRunnable);
         if (mLowpanScanner != null) {
             mLowpanScanner.stopNetScan();
             mLowpanScanner.setCallback(null);
             mLowpanScanner = null;
         }
 
+        for (TransmitTarget target : mTargets) {
+            target.close();
+        }
+        mTargets.clear();
+        mResolverExecutor.shutdownNow();
+
         if (mBackgroundHandlerThread != null) {
             mHandler.removeCallbacksAndMessages(null);
             mBackgroundHandlerThread.quitSafely();
@@ -250,6 +340,21 @@ public class TransmitterActivity extends Activity {
         mBackgroundHandlerThread = new HandlerThread(TAG);
         mBackgroundHandlerThread.start();
         mHandler = new Handler(mBackgroundHandlerThread.getLooper());
+        mResolverExecutor = Executors.newSingleThreadScheduledExecutor();
+        mTransmitPipeline = new TransmitPipeline(mHandler, FLUSH_POLICY, this::sendValue);
+        File queueRoot = new File(getFilesDir(), OUTBOUND_QUEUE_DIRECTORY);
+        for (String address : SERVER_ADDRESSES) {
+            // Acknowledgements from more than one receiver would skew the probe's loss
+            ConnectionManager.Receiver receiver = mTargets.isEmpty()
+                    ? this::onReceived
+                    : buffer -> buffer.position(buffer.limit());
+            mTargets.add(new TransmitTarget(address, () -> createTransport(address), receiver,
+                    mConnectionCallback, this::encodeFrame, createDeltaCodec(address),
+                    MAX_SEND_BYTES,
+                    LOSSLESS ? new File(queueRoot, address) : null,
+                    OUTBOUND_RECORDS_PER_SEGMENT, OUTBOUND_MAX_SEGMENTS,
+                    DRAIN_BATCH_BYTES, OUTBOUND_REPLAY_BATCHES));
+        }
         // Make sure that it is connected to a valid network
         mConnectivityManager.registerNetworkCallback(networkRequest,
                 mNetworkCallback, mUiThreadHandler);
@@ -266,7 +371,16 @@ public class TransmitterActivity extends Activity {
                     if (mNetwork == null) {
                         Log.i(TAG, "Got Network: " + network);
                         mNetwork = network;
+                        mAddressCache = new AddressCache(network::getByName, mResolverExecutor,
+                                ADDRESS_TTL_MS, ADDRESS_NEGATIVE_TTL_MS);
+                        // Resolve ahead, so the first connect doesn't wait for it
+                        for (String address : SERVER_ADDRESSES) {
+                            mAddressCache.prefetch(address);
+                        }
                         onDisconnected();
+                        for (TransmitTarget target : mTargets) {
+                            target.onNetworkAvailable();
+                        }
                     }
                 }
                 @Override
@@ -274,7 +388,12 @@ public class TransmitterActivity extends Activity {
                     if (mNetwork == network) {
                         Log.i(TAG, "Lost Network: " + network);
                         mNetwork = null;
+                        mAddressCache.invalidate();
+                        mAddressCache = null;
                         onNoNetwork();
+                        for (TransmitTarget target : mTargets) {
+                            target.onNetworkLost();
+                        }
                     }
                 }
             };
@@ -317,7 +436,7 @@ public class TransmitterActivity extends Activity {
     }
 
     /**
-     * Begin a scan for LoWPAN networks nearby
+     * Join the remembered network directly, or begin a scan for LoWPAN networks nearby
      */
     private void performNetworkScan() throws LowpanException {
         if (mLowpanInterface == null) return;
@@ -329,8 +448,38 @@ public class TransmitterActivity extends Activity {
             return;
         }
 
+        mJoinStartMillis = SystemClock.elapsedRealtime();
+        LowpanIdentity cached = mIdentityStore.load();
+        if (cached != null && LOWPAN_NETWORK.equals(cached.getName())) {
+            Log.d(TAG, "Joining remembered network on channel " + cached.getChannel());
+            onNewValue(DISPLAY_WAIT);
+            mJoiningCached = true;
+            mUiThreadHandler.postDelayed(mCachedJoinTimeoutRunnable, CACHED_JOIN_TIMEOUT_MS);
+            if (joinNetwork(cached)) {
+                return;
+            }
+            mJoiningCached = false;
+            mUiThreadHandler.removeCallbacks(mCachedJoinTimeoutRunnable);
+            mIdentityStore.clear();
+        }
+        startNetworkScan();
+    }
+
+    /**
+     * Begin a scan for LoWPAN networks nearby
+     */
+    private void startNetworkScan() throws LowpanException {
         Log.d(TAG, "Scanning for nearby networks");
         onNewValue(DISPLAY_WAIT);
+        if (mLowpanScanner != null) {
+            mLowpanScanner.stopNetScan();
+            mLowpanScanner.setCallback(null);
+        }
+        mUiThreadHandler.removeCallbacks(mJoinBestBeaconRunnable);
+        mBestBeacon = null;
+        mCandidateCount = 0;
+        mScanDecided = false;
+        mScanStartMillis = SystemClock.elapsedRealtime();
         mLowpanScanner = mLowpanInterface.createScanner();
         mLowpanScanner.setCallback(mLowpanScannerCallback);
         mLowpanScanner.startNetScan();
@@ -342,36 +491,103 @@ public class TransmitterActivity extends Activity {
     private LowpanScanner.Callback mLowpanScannerCallback = new LowpanScanner.Callback() {
         @Override
         public void onNetScanBeacon(LowpanBeaconInfo beacon) {
-            if (beacon.getLowpanIdentity().getName().equals(LOWPAN_NETWORK)) {
-                joinNetwork(beacon);
-            } else {
+            if (mScanDecided) {
+                return;
+            }
+            if (!beacon.getLowpanIdentity().getName().equals(LOWPAN_NETWORK)) {
                 Log.i(TAG, "Found network " + beacon.getLowpanIdentity().getName());
+                return;
+            }
+            // Every router of the mesh beacons; collect them briefly and join the best
+            mCandidateCount++;
+            if (mBestBeacon == null) {
+                mUiThreadHandler.postDelayed(mJoinBestBeaconRunnable, BEACON_WINDOW_MS);
+            }
+            if (mBestBeacon == null || BeaconRanking.isBetter(beacon.getLqi(), beacon.getRssi(),
+                    mBestBeacon.getLqi(), mBestBeacon.getRssi())) {
+                mBestBeacon = beacon;
             }
         }
 
         @Override
         public void onScanFinished() {
             Log.i(TAG, "LoWPAN scan complete");
+            if (!mScanDecided && mBestBeacon != null) {
+                mUiThreadHandler.removeCallbacks(mJoinBestBeaconRunnable);
+                mJoinBestBeaconRunnable.run();
+            }
+        }
+    };
+
+    /**
+     * Task to end the scan and join the best beacon collected.
+     */
+    private final Runnable mJoinBestBeaconRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mScanDecided || mBestBeacon == null) {
+                return;
+            }
+            mScanDecided = true;
+            if (mLowpanScanner != null) {
+                mLowpanScanner.stopNetScan();
+            }
+            Log.i(TAG, "Picked beacon with LQI " + mBestBeacon.getLqi() + " and RSSI "
+                    + mBestBeacon.getRssi() + " of " + mCandidateCount + " in "
+                    + (SystemClock.elapsedRealtime() - mScanStartMillis) + "ms");
+            joinNetwork(mBestBeacon.getLowpanIdentity());
         }
     };
 
     /**
      * Attempt to join the LoWPAN network
+     *
+     * @return {@code false} if the join could not be started.
      */
-    private void joinNetwork(LowpanBeaconInfo beacon) {
+    private boolean joinNetwork(LowpanIdentity identity) {
         Log.i(TAG, "Joining demo network");
         LowpanProvisioningParams params = new LowpanProvisioningParams.Builder()
-                .setLowpanIdentity(beacon.getLowpanIdentity())
+                .setLowpanIdentity(identity)
                 .setLowpanCredential(LowpanCredential.createMasterKey(LOWPAN_KEY))
                 .build();
 
         try {
             mLowpanInterface.join(params);
+            mJoiningIdentity = identity;
+            return true;
         } catch (LowpanException e) {
             Log.e(TAG, "Unable to join LoWPAN network", e);
+            return false;
         }
     }
 
+    /**
+     * Forget the remembered network after it failed to attach, and scan instead.
+     */
+    private void fallBackToScan(String reason) {
+        if (!mJoiningCached) {
+            return;
+        }
+        Log.w(TAG, "Remembered network failed (" + reason + "), scanning");
+        mJoiningCached = false;
+        mJoiningIdentity = null;
+        mUiThreadHandler.removeCallbacks(mCachedJoinTimeoutRunnable);
+        mIdentityStore.clear();
+        try {
+            startNetworkScan();
+        } catch (LowpanException e) {
+            Log.e(TAG, "Unable to scan for LoWPAN networks", e);
+            onNewValue(DISPLAY_ERROR);
+            onStatusChanged(e.getMessage());
+        }
+    }
+
+    /**
+     * Task to stop waiting for the remembered network to attach.
+     */
+    private final Runnable mCachedJoinTimeoutRunnable =
+            () -> fallBackToScan("not attached after " + CACHED_JOIN_TIMEOUT_MS + "ms");
+
     /**
      * Callback to react to state changes in the LoWPAN interface
      */
@@ -380,6 +596,14 @@ public class TransmitterActivity extends Activity {
         public void onStateChanged(int state) {
             if (state == LowpanInterface.STATE_ATTACHED) {
                 Log.d(TAG, "Provisioned on a LoWPAN network");
+                if (mJoiningIdentity != null) {
+                    Log.i(TAG, "Attached " + (mJoiningCached ? "to remembered network" : "after scan")
+                            + " in " + (SystemClock.elapsedRealtime() - mJoinStartMillis) + "ms");
+                    mUiThreadHandler.removeCallbacks(mCachedJoinTimeoutRunnable);
+                    mIdentityStore.save(mJoiningIdentity);
+                    mJoiningIdentity = null;
+                    mJoiningCached = false;
+                }
                 onNewValue(DISPLAY_READY);
                 onStatusChanged(getString(R.string.ready));
             }
@@ -387,6 +611,10 @@ public class TransmitterActivity extends Activity {
 
         @Override
         public void onProvisionException(Exception e) {
+            if (mJoiningCached) {
+                fallBackToScan(e.toString());
+                return;
+            }
             Log.e(TAG, "Could not provision network", e);
             onNewValue(DISPLAY_ERROR);
             onStatusChanged(e.getMessage());
@@ -420,9 +648,20 @@ public class TransmitterActivity extends Activity {
      * Connect to other devices on the network.
      */
     private void connect() {
-        if (mSocket == null) {
+        if (!mConnectRequested) {
             Log.i(TAG, "connect requested");
-            mHandler.post(mConnectRunnable);
+            mConnectRequested = true;
+            if (LOAD_TEST_RATE > 0) {
+                startLoadTest();
+                return;
+            }
+            if (PROBE_MODE) {
+                mLatencyProbe = new LatencyProbe();
+                mHandler.postDelayed(mProbeReportRunnable, PROBE_REPORT_INTERVAL_MS);
+            }
+            for (TransmitTarget target : mTargets) {
+                target.connect();
+            }
         }
     }
 
@@ -430,19 +669,80 @@ public class TransmitterActivity extends Activity {
      * Disconnect from other devices on the network.
      */
     private void disconnect() {
-        if (mSocket != null) {
+        if (mConnectRequested) {
             Log.i(TAG, "disconnect requested");
-            mHandler.post(mDisconnectRunnable);
+            mConnectRequested = false;
+            if (mLoadGenerator != null) {
+                stopLoadTest();
+                return;
+            }
+            for (TransmitTarget target : mTargets) {
+                target.disconnect();
+            }
+            if (mLatencyProbe != null) {
+                mHandler.removeCallbacks(mProbeReportRunnable);
+                Log.i(TAG, "probe " + mLatencyProbe);
+                mLatencyProbe = null;
+            }
+            Log.i(TAG, "transmit " + mTransmitPipeline);
+            if (mAddressCache != null) {
+                Log.i(TAG, "address cache " + mAddressCache);
+            }
         }
     }
 
+    /**
+     * Start sending synthetic values to the first receiver, reporting every few seconds.
+     */
+    private void startLoadTest() {
+        String address = SERVER_ADDRESSES[0];
+        mLoadGenerator = new LoadGenerator(() -> createTransport(address),
+                LOAD_TEST_CONNECTIONS, LOAD_TEST_RATE, LOAD_TEST_DISTRIBUTION);
+        mLoadGenerator.start();
+        mHandler.postDelayed(mLoadReportRunnable, PROBE_REPORT_INTERVAL_MS);
+        onConnected();
+    }
+
+    private void stopLoadTest() {
+        LoadGenerator generator = mLoadGenerator;
+        mLoadGenerator = null;
+        mHandler.removeCallbacks(mLoadReportRunnable);
+        // Joining the sender threads may block on the network
+        mHandler.post(() -> {
+            try {
+                if (!generator.stop()) {
+                    Log.w(TAG, "Load generator threads did not stop in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Log.i(TAG, "load " + generator);
+        });
+        onDisconnected();
+    }
+
+    /**
+     * Task to periodically log the load generator's rate, errors and latency.
+     */
+    private Runnable mLoadReportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            LoadGenerator generator = mLoadGenerator;
+            if (generator != null) {
+                Log.i(TAG, "load " + generator);
+                mHandler.postDelayed(this, PROBE_REPORT_INTERVAL_MS);
+            }
+        }
+    };
+
     /**
      * Updates the UI when this device is in the process of connecting to the network.
      */
     private void onConnecting() {
         Log.i(TAG, "onConnecting");
         mConnectUiButton.setEnabled(false);
-        mDisconnectUiButton.setEnabled(false);
+        // Allow giving up while reconnecting
+        mDisconnectUiButton.setEnabled(true);
 
         onStatusChanged(getString(R.string.connecting));
     }
@@ -480,7 +780,16 @@ public class TransmitterActivity extends Activity {
         mSeekBarValue = newValue;
         seekBar.setProgress(mSeekBarValue);
         // Send a new value to connected devices
-        mHandler.post(mUpdateSeekbarRunnable);
+        if (LOSSLESS) {
+            // Every position is kept, so none may be coalesced away. The targets
+            // take them without blocking and queue them on disk from their own
+            // threads, with one flush task per batch rather than per value.
+            for (TransmitTarget target : mTargets) {
+                target.offer(newValue, null, 0);
+            }
+        } else {
+            mTransmitPipeline.offer(newValue);
+        }
     }
 
     /**
@@ -495,77 +804,164 @@ public class TransmitterActivity extends Activity {
     }
 
     /**
-     * Task to connect to a receiver device on the LoWPAN network
+     * Open a connection to a receiver device on the LoWPAN network,
+     * invoked on the target's thread by its {@link ConnectionManager}.
      */
-    private Runnable mConnectRunnable = new Runnable() {
-        @Override
-        public void run() {
-            runOnUiThread(() -> onConnecting());
-            Log.i(TAG, "doInBackground: Connecting...");
+    private ValueTransport createTransport(String address) throws IOException {
+        // Both may be replaced on the main thread while this runs
+        Network network = mNetwork;
+        AddressCache addressCache = mAddressCache;
+        if (network == null || addressCache == null) {
+            throw new IOException("No LoWPAN network");
+        }
+        // Open a connection to the receiving device
+        InetAddress serverAddr = addressCache.resolve(address);
+        // Creating network socket with the receiving device
+        Log.i(TAG, "Create socket to " + serverAddr.toString() + " port " + SERVER_PORT);
+        if (serverAddr.isMulticastAddress()) {
+            return createDatagramTransport(network, serverAddr, true);
+        }
+        return USE_DATAGRAMS
+                ? createDatagramTransport(network, serverAddr, false)
+                : new TcpTransport(
+                        network.getSocketFactory().createSocket(serverAddr, SERVER_PORT));
+    }
 
-            try {
-                // Open a connection to the receiving device
-                InetAddress serverAddr = mNetwork.getByName(SERVER_ADDRESS);
-                // Creating network socket with the receiving device
-                Log.i(TAG, "doInBackground: Create socket to " + serverAddr.toString()
-                        + " port " + SERVER_PORT);
-                mSocket = mNetwork.getSocketFactory().createSocket(serverAddr, SERVER_PORT);
-            } catch (UnknownHostException e) {
-                // Unable to find the receiving device
-                Log.e(TAG, "doInBackground: Host lookup failed.", e);
-                e.printStackTrace();
-                mSocket = null;
-            } catch (IOException e) {
-                Log.e(TAG, "Connection attempt failed", e);
-                e.printStackTrace();
-                mSocket = null;
+    /**
+     * Open a UDP socket bound to the LoWPAN network and aimed at a receiver
+     * or a multicast group.
+     */
+    private ValueTransport createDatagramTransport(Network network, InetAddress serverAddr,
+            boolean multicast) throws IOException {
+        DatagramSocket socket = multicast ? new MulticastSocket() : new DatagramSocket();
+        try {
+            if (multicast) {
+                ((MulticastSocket) socket).setTimeToLive(MULTICAST_HOPS);
             }
+            network.bindSocket(socket);
+            socket.connect(serverAddr, SERVER_PORT);
+            return new DatagramTransport(socket);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
 
-            if (mSocket == null) {
-                // Socket creation failed
-                runOnUiThread(() -> onDisconnected());
-            } else {
-                // Socket creation succeeded
-                runOnUiThread(() -> onConnected());
-            }
+    /**
+     * Handle data sent back by the receiver, on the transport reader thread.
+     */
+    private void onReceived(ByteBuffer buffer) throws IOException {
+        LatencyProbe probe = mLatencyProbe;
+        if (probe != null) {
+            probe.onReceived(buffer);
         }
-    };
+    }
 
     /**
-     * Task to disconnect from a receiver device on the LoWPAN network
+     * Update the UI as targets connect and disconnect, invoked on the target threads.
      */
-    private Runnable mDisconnectRunnable = new Runnable() {
+    private ConnectionManager.Callback mConnectionCallback = new ConnectionManager.Callback() {
         @Override
-        public void run() {
-            // Closing socket
-            Log.i(TAG, "doInBackground: Disconnecting...");
-            try {
-                mSocket.close();
-            } catch (IOException x) {
-                Log.e(TAG, "Close failed: " + x);
-            }
-            mSocket = null;
-            runOnUiThread(() -> onDisconnected());
+        public void onConnecting() {
+            runOnUiThread(() -> updateConnectionState());
+        }
+
+        @Override
+        public void onConnected() {
+            runOnUiThread(() -> updateConnectionState());
+        }
+
+        @Override
+        public void onDisconnected() {
+            runOnUiThread(() -> updateConnectionState());
         }
     };
 
     /**
-     * Task to send the current value over the LoWPAN network connection
+     * Show the transmitter as connected while any target is connected.
+     */
+    private void updateConnectionState() {
+        for (TransmitTarget target : mTargets) {
+            if (target.isConnected()) {
+                onConnected();
+                return;
+            }
+        }
+        if (mConnectRequested) {
+            onConnecting();
+        } else {
+            onDisconnected();
+        }
+    }
+
+    /**
+     * Task to periodically log round-trip statistics while probing.
      */
-    private Runnable mUpdateSeekbarRunnable = new Runnable() {
+    private Runnable mProbeReportRunnable = new Runnable() {
         @Override
         public void run() {
-            // Retrieve mSeekBarValue as parameter.
-            int valueToWrite = mSeekBarValue;
-            if (mSocket != null) {
-                try {
-                    // Send value to the socket
-                    mSocket.getOutputStream().write(valueToWrite);
-                    Log.i(TAG, "Wrote out value " + valueToWrite);
-                } catch (IOException e) {
-                    Log.e(TAG, "Exception on write ", e);
-                }
+            if (mLatencyProbe != null) {
+                Log.i(TAG, "probe " + mLatencyProbe);
+                mHandler.postDelayed(this, PROBE_REPORT_INTERVAL_MS);
             }
         }
     };
+
+    /**
+     * Send the newest value to every target, invoked on the background
+     * thread by {@link #mTransmitPipeline}.
+     */
+    private void sendValue(int valueToWrite) {
+        if (DELTA_FRAMES && !PROBE_MODE) {
+            // Each target encodes the value against its own stream
+            for (TransmitTarget target : mTargets) {
+                target.offer(valueToWrite, null, 0);
+            }
+        } else {
+            // Encode once; every target gets a copy of the same frame
+            mFrameBuffer.clear();
+            int length = encodeFrame(mFrameBuffer, valueToWrite);
+            for (TransmitTarget target : mTargets) {
+                target.offer(valueToWrite, mFrameBuffer.array(), length);
+            }
+        }
+        Log.i(TAG, "Offered value " + valueToWrite);
+    }
+
+    /**
+     * Returns the delta codec for a target's stream, or null to send one frame per value.
+     */
+    private static DeltaCodec createDeltaCodec(String address) {
+        if (!DELTA_FRAMES || PROBE_MODE) {
+            return null;
+        }
+        // Datagrams may be lost, so each one has to start from an absolute value
+        return new DeltaCodec(USE_DATAGRAMS || isMulticastLiteral(address));
+    }
+
+    /**
+     * Returns true if the address is a multicast address literal. Host names
+     * are never looked up here, and are sent to over TCP or unicast UDP.
+     */
+    private static boolean isMulticastLiteral(String address) {
+        // Only IPv6 literals contain a colon, and an IPv4 literal only digits and dots
+        if (address.indexOf(':') < 0 && !address.matches("[0-9.]+")) {
+            return false;
+        }
+        try {
+            return InetAddress.getByName(address).isMulticastAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write a value frame, or a probe frame while probing, at the buffer's position.
+     */
+    private int encodeFrame(ByteBuffer out, int value) {
+        LatencyProbe probe = mLatencyProbe;
+        return probe != null
+                ? probe.encodeProbe(out, mSequence.getAndIncrement(), value)
+                : FrameCodec.encodeValue(out, mSequence.getAndIncrement(), value);
+    }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.things.lowpan.transmitter;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Connection to a receiver that carries encoded frames.
+ */
+public interface ValueTransport extends Closeable {
+    /**
+     * Send one or more complete frames to the receiver.
+     *
+     * @param frames Buffer holding the encoded frames.
+     * @param length Number of bytes to send from the start of {@code frames}.
+     */
+    void send(byte[] frames, int length) throws IOException;
+
+    /**
+     * Block until data sent back by the receiver arrives.
+     *
+     * @param buffer Destination for the received bytes.
+     * @param offset Position in {@code buffer} to write to.
+     * @param length Maximum number of bytes to receive.
+     * @return The number of bytes received, or -1 if the receiver closed the connection.
+     */
+    int receive(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Returns true if opening the transport takes a handshake with the
+     * receiver, which a spare opened ahead of time saves.
+     */
+    default boolean isConnectionOriented() {
+        return true;
+    }
+}
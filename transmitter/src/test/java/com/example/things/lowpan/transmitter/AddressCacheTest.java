@@ -0,0 +1,312 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class AddressCacheTest {
+    private static final String HOST = "receiver.lowpan";
+    private static final long TTL_MS = 60_000;
+    private static final long NEGATIVE_TTL_MS = 50;
+    // Slow enough to stand out from a loopback connect
+    private static final long RESOLVE_DELAY_MS = 200;
+
+    private final FakeResolver mResolver = new FakeResolver();
+    private final ManualScheduler mScheduler = new ManualScheduler();
+    private final AddressCache mCache =
+            new AddressCache(mResolver, mScheduler, TTL_MS, NEGATIVE_TTL_MS);
+
+    @Test
+    public void secondLookupIsAHit() throws IOException {
+        InetAddress first = mCache.resolve(HOST);
+        assertSame(first, mCache.resolve(HOST));
+        assertEquals(1, mResolver.mCalls);
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(1, mCache.getMissCount());
+    }
+
+    @Test
+    public void failureIsRememberedForTheNegativeTtl() throws Exception {
+        mResolver.mFail = true;
+        assertUnknown();
+        assertUnknown();
+        assertEquals(1, mResolver.mCalls);
+
+        Thread.sleep(NEGATIVE_TTL_MS + 10);
+        mResolver.mFail = false;
+        mCache.resolve(HOST);
+        assertEquals(2, mResolver.mCalls);
+    }
+
+    @Test
+    public void refreshReplacesTheAddressBeforeItExpires() throws IOException {
+        InetAddress first = mCache.resolve(HOST);
+        assertEquals(1, mScheduler.mTasks.size());
+        assertEquals(TTL_MS - TTL_MS / 4, mScheduler.mTasks.get(0).mDelayMillis);
+
+        mResolver.mNext = 2;
+        mScheduler.runAll();
+        InetAddress refreshed = mCache.resolve(HOST);
+        assertFalse(first.equals(refreshed));
+        assertEquals(1, mCache.getMissCount());
+        // The refresh scheduled the next one
+        assertEquals(1, mScheduler.mTasks.size());
+    }
+
+    @Test
+    public void entryNotUsedSinceItsRefreshIsDropped() throws IOException {
+        mCache.resolve(HOST);
+        mScheduler.runAll();
+        assertEquals(1, mScheduler.mTasks.size());
+
+        // No lookup during the refreshed entry's time to live
+        mScheduler.runAll();
+        assertEquals(0, mScheduler.mTasks.size());
+        assertEquals(2, mResolver.mCalls);
+        assertTrue(mCache.toString(), mCache.toString().endsWith(" idle_drops=1"));
+        mCache.resolve(HOST);
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    @Test
+    public void unusedPrefetchIsNotRefreshed() throws IOException {
+        mCache.prefetch(HOST);
+        mScheduler.runAll();
+        assertEquals(0, mScheduler.mTasks.size());
+        assertEquals(1, mResolver.mCalls);
+    }
+
+    @Test
+    public void failedRefreshKeepsTheCurrentAddress() throws IOException {
+        InetAddress first = mCache.resolve(HOST);
+        mResolver.mFail = true;
+        mScheduler.runAll();
+        assertSame(first, mCache.resolve(HOST));
+        assertEquals(1, mCache.getMissCount());
+    }
+
+    @Test
+    public void invalidateCancelsRefreshAndForgetsEntries() throws IOException {
+        mCache.resolve(HOST);
+        ManualScheduler.Task refresh = mScheduler.mTasks.get(0);
+        mCache.invalidate();
+        assertTrue(refresh.isCancelled());
+        mCache.resolve(HOST);
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    @Test
+    public void connectAfterPrefetchDoesNotWaitForResolution() throws IOException {
+        mResolver.mDelayMillis = RESOLVE_DELAY_MS;
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            long cold = timeConnect(mCache, server.getLocalPort());
+            assertTrue("first connect should include resolution: " + cold + "ms",
+                    cold >= RESOLVE_DELAY_MS);
+
+            // A new cache, as after a network change, warmed before the connect
+            AddressCache cache = new AddressCache(mResolver, mScheduler, TTL_MS, NEGATIVE_TTL_MS);
+            cache.prefetch(HOST);
+            long warm = timeConnect(cache, server.getLocalPort());
+            assertTrue("connect after prefetch took " + warm + "ms", warm < RESOLVE_DELAY_MS);
+            assertEquals(1, cache.getHitCount());
+        }
+    }
+
+    /**
+     * Returns how long resolving the host and connecting took, as createTransport does.
+     */
+    private static long timeConnect(AddressCache cache, int port) throws IOException {
+        long start = System.nanoTime();
+        Socket socket = new Socket(cache.resolve(HOST), port);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        socket.close();
+        return millis;
+    }
+
+    private void assertUnknown() {
+        try {
+            mCache.resolve(HOST);
+            fail("expected UnknownHostException");
+        } catch (UnknownHostException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Resolver that maps every host to a loopback address numbered by {@code mNext}.
+     */
+    private static class FakeResolver implements AddressCache.Resolver {
+        int mCalls;
+        int mNext = 1;
+        boolean mFail;
+        long mDelayMillis;
+
+        @Override
+        public InetAddress resolve(String host) throws UnknownHostException {
+            mCalls++;
+            if (mDelayMillis > 0) {
+                try {
+                    Thread.sleep(mDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (mFail) {
+                throw new UnknownHostException(host);
+            }
+            return InetAddress.getByAddress(host, new byte[] { 127, 0, 0, (byte) mNext });
+        }
+    }
+
+    /**
+     * Runs {@code execute} inline and holds scheduled tasks until {@link #runAll()}.
+     */
+    private static class ManualScheduler extends AbstractExecutorService
+            implements ScheduledExecutorService {
+        final List<Task> mTasks = new ArrayList<>();
+
+        void runAll() {
+            List<Task> due = new ArrayList<>(mTasks);
+            mTasks.clear();
+            for (Task task : due) {
+                if (!task.isCancelled()) {
+                    task.mRunnable.run();
+                }
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            Task task = new Task(command, unit.toMillis(delay));
+            mTasks.add(task);
+            return task;
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay,
+                long period, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay,
+                long delay, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void shutdown() {}
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+
+        static class Task implements ScheduledFuture<Object> {
+            final Runnable mRunnable;
+            final long mDelayMillis;
+            private boolean mCancelled;
+
+            Task(Runnable runnable, long delayMillis) {
+                mRunnable = runnable;
+                mDelayMillis = delayMillis;
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(mDelayMillis, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                return Long.compare(mDelayMillis, other.getDelay(TimeUnit.MILLISECONDS));
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                mCancelled = true;
+                return true;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return mCancelled;
+            }
+
+            @Override
+            public boolean isDone() {
+                return mCancelled;
+            }
+
+            @Override
+            public Object get() {
+                return null;
+            }
+
+            @Override
+            public Object get(long timeout, TimeUnit unit) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BeaconRankingTest {
+
+    @Test
+    public void linkQualityOutranksSignalStrength() {
+        assertTrue(BeaconRanking.isBetter(200, -90, 150, -40));
+        assertFalse(BeaconRanking.isBetter(150, -40, 200, -90));
+    }
+
+    @Test
+    public void strongerSignalBreaksALinkQualityTie() {
+        assertTrue(BeaconRanking.isBetter(200, -45, 200, -70));
+        assertFalse(BeaconRanking.isBetter(200, -70, 200, -45));
+    }
+
+    @Test
+    public void tieKeepsTheFirstBeacon() {
+        assertFalse(BeaconRanking.isBetter(200, -60, 200, -60));
+    }
+
+    @Test
+    public void picksTheBestOfAScan() {
+        // LQI and RSSI of each beacon, in the order they are heard
+        int[][] beacons = { { 120, -50 }, { 255, -80 }, { 255, -62 }, { 90, -30 }, { 255, -62 } };
+        int best = 0;
+        for (int i = 1; i < beacons.length; i++) {
+            if (BeaconRanking.isBetter(beacons[i][0], beacons[i][1],
+                    beacons[best][0], beacons[best][1])) {
+                best = i;
+            }
+        }
+        assertEquals(2, best);
+    }
+}
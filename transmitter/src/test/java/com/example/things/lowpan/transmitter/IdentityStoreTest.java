@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class IdentityStoreTest {
+
+    @Test
+    public void formatsFieldsWithHexPanidAndXpanid() {
+        IdentityStore.Entry entry = new IdentityStore.Entry("lowpan_sample", 11, 0xabcd,
+                new byte[] { 0x01, (byte) 0xfe });
+        assertEquals("lowpan_sample:11:abcd:01fe", entry.format());
+    }
+
+    @Test
+    public void roundTripsEveryByteValue() {
+        byte[] xpanid = new byte[256];
+        for (int i = 0; i < xpanid.length; i++) {
+            xpanid[i] = (byte) i;
+        }
+        IdentityStore.Entry entry = roundTrip(new IdentityStore.Entry("net", 26, 0xffff, xpanid));
+        assertEquals("net", entry.mName);
+        assertEquals(26, entry.mChannel);
+        assertEquals(0xffff, entry.mPanid);
+        assertArrayEquals(xpanid, entry.mXpanid);
+    }
+
+    @Test
+    public void nameMayContainTheSeparator() {
+        IdentityStore.Entry entry =
+                roundTrip(new IdentityStore.Entry("a:b::c", 15, 0x1234, new byte[8]));
+        assertEquals("a:b::c", entry.mName);
+        assertEquals(15, entry.mChannel);
+        assertEquals(0x1234, entry.mPanid);
+    }
+
+    @Test
+    public void emptyNameAndXpanidRoundTrip() {
+        IdentityStore.Entry entry = roundTrip(new IdentityStore.Entry("", 11, 0, new byte[0]));
+        assertEquals("", entry.mName);
+        assertEquals(0, entry.mXpanid.length);
+    }
+
+    @Test
+    public void malformedEntriesAreIgnored() {
+        assertNull(IdentityStore.Entry.parse(null));
+        assertNull(IdentityStore.Entry.parse(""));
+        assertNull(IdentityStore.Entry.parse("net"));
+        assertNull(IdentityStore.Entry.parse("12:ab:00"));
+        assertNull(IdentityStore.Entry.parse("net:x:1234:00"));
+        assertNull(IdentityStore.Entry.parse("net:11:zz:00"));
+        assertNull(IdentityStore.Entry.parse("net:11:1234:0"));
+        assertNull(IdentityStore.Entry.parse("net:11:1234:0g"));
+    }
+
+    private static IdentityStore.Entry roundTrip(IdentityStore.Entry entry) {
+        return IdentityStore.Entry.parse(entry.format());
+    }
+}
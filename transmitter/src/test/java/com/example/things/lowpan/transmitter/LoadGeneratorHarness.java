@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import com.example.things.lowpan.common.Frame;
+import com.example.things.lowpan.common.FrameCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the {@link LoadGenerator} on a regular JVM against a receiver, or
+ * against a counting sink on the loopback interface. It lives with the tests
+ * so it stays out of the APK; run it with the {@code runBenchmark} task.
+ * Arguments, all optional:
+ *
+ * <pre>
+ * LoadGeneratorHarness [host|loopback] [port] [connections] [valuesPerSecond]
+ *                      [constant|poisson|bursty] [seconds] [tcp|udp]
+ * </pre>
+ */
+public class LoadGeneratorHarness {
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "loopback";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 10_000;
+        LoadGenerator.Distribution distribution = args.length > 4
+                ? LoadGenerator.Distribution.valueOf(args[4].toUpperCase(Locale.US))
+                : LoadGenerator.Distribution.CONSTANT;
+        long seconds = args.length > 5 ? Long.parseLong(args[5]) : 10;
+        boolean datagrams = args.length > 6 && "udp".equals(args[6]);
+
+        LoopbackSink sink = null;
+        InetAddress address;
+        if ("loopback".equals(host)) {
+            sink = new LoopbackSink(port);
+            address = InetAddress.getLoopbackAddress();
+            port = sink.getPort();
+        } else {
+            address = InetAddress.getByName(host);
+        }
+        int serverPort = port;
+        LoadGenerator generator = new LoadGenerator(() -> {
+            if (datagrams) {
+                DatagramSocket socket = new DatagramSocket();
+                socket.connect(address, serverPort);
+                return new DatagramTransport(socket);
+            }
+            return new TcpTransport(new Socket(address, serverPort));
+        }, connections, rate, distribution);
+
+        generator.start();
+        for (long i = 0; i < seconds; i++) {
+            Thread.sleep(1000);
+            System.out.println(generator);
+        }
+        if (!generator.stop()) {
+            System.out.println("load generator threads did not stop in time");
+        }
+        System.out.println((datagrams ? "udp " : "tcp ") + generator);
+        if (sink != null) {
+            // Give the sink a moment to read what is still in flight
+            Thread.sleep(200);
+            System.out.println("sink received=" + sink.getReceivedCount());
+            sink.close();
+        }
+    }
+
+
+    /**
+     * Receiver stand-in that accepts connections and datagrams on the
+     * loopback interface and counts the values it decodes.
+     */
+    private static class LoopbackSink implements Closeable {
+        private final ServerSocket mServerSocket;
+        private final DatagramSocket mDatagramSocket;
+        private final AtomicLong mReceivedCount = new AtomicLong();
+
+        LoopbackSink(int port) throws IOException {
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            mServerSocket = new ServerSocket(port, 50, loopback);
+            mDatagramSocket = new DatagramSocket(mServerSocket.getLocalPort(), loopback);
+            startThread(this::acceptLoop, "SinkAccept");
+            startThread(this::datagramLoop, "SinkDatagrams");
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        long getReceivedCount() {
+            return mReceivedCount.get();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+            mDatagramSocket.close();
+        }
+
+        private void acceptLoop() throws IOException {
+            while (true) {
+                Socket socket = mServerSocket.accept();
+                startThread(() -> {
+                    try (InputStream in = socket.getInputStream()) {
+                        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                        Frame frame = new Frame();
+                        int count;
+                        while ((count = in.read(buffer.array(), buffer.position(),
+                                buffer.remaining())) >= 0) {
+                            buffer.position(buffer.position() + count);
+                            buffer.flip();
+                            decode(buffer, frame);
+                            buffer.compact();
+                        }
+                    }
+                }, "SinkConnection");
+            }
+        }
+
+        private void datagramLoop() throws IOException {
+            DatagramPacket packet = new DatagramPacket(new byte[1280], 1280);
+            ByteBuffer buffer = ByteBuffer.wrap(packet.getData());
+            Frame frame = new Frame();
+            while (true) {
+                mDatagramSocket.receive(packet);
+                buffer.clear().limit(packet.getLength());
+                decode(buffer, frame);
+            }
+        }
+
+        private void decode(ByteBuffer buffer, Frame frame) throws IOException {
+            long values = 0;
+            while (FrameCodec.decode(buffer, frame)) {
+                if (FrameCodec.isValue(frame)) {
+                    values++;
+                }
+            }
+            mReceivedCount.addAndGet(values);
+        }
+
+        private interface Loop {
+            void run() throws IOException;
+        }
+
+        private static void startThread(Loop loop, String name) {
+            Thread thread = new Thread(() -> {
+                try {
+                    loop.run();
+                } catch (IOException e) {
+                    // Socket closed when the run ends
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
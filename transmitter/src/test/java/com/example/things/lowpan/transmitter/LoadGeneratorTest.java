@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class LoadGeneratorTest {
+
+    @Test
+    public void stopClosesATransportBlockedInAWrite() throws Exception {
+        StalledTransport transport = new StalledTransport();
+        LoadGenerator generator = new LoadGenerator(() -> transport, 1, 1000,
+                LoadGenerator.Distribution.CONSTANT);
+        generator.start();
+        assertTrue(transport.mSending.await(1, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        assertTrue(generator.stop());
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("stop took " + millis + "ms", millis < 500);
+        // A write failed by stop() is not a connection error
+        assertEquals(0, generator.getErrorCount());
+    }
+
+    /**
+     * Transport whose writes block, as on a full socket, until it is closed.
+     */
+    private static class StalledTransport implements ValueTransport {
+        final CountDownLatch mSending = new CountDownLatch(1);
+        private final CountDownLatch mClosed = new CountDownLatch(1);
+
+        @Override
+        public void send(byte[] frames, int length) throws IOException {
+            mSending.countDown();
+            // Ignores interrupts, like a blocking socket write
+            while (true) {
+                try {
+                    mClosed.await();
+                    throw new IOException("Socket closed");
+                } catch (InterruptedException ignored) {
+                    // Keep blocking
+                }
+            }
+        }
+
+        @Override
+        public int receive(byte[] buffer, int offset, int length) {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            mClosed.countDown();
+        }
+    }
+}
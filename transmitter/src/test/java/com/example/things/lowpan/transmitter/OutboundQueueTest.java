@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class OutboundQueueTest {
+    // Room for six four-byte values per batch
+    private static final int BATCH_BYTES = 24;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final RecordingSink mSink = new RecordingSink();
+
+    @Test
+    public void drainsInOrderWithBatchesEndingAtSegments() throws IOException {
+        try (OutboundQueue queue = open(4, 0)) {
+            offer(queue, 1, 10);
+            assertTrue(queue.drain(mSink));
+            assertEquals(range(1, 10), mSink.mValues);
+            assertEquals(Arrays.asList(4, 4, 2), mSink.mBatchSizes);
+            assertEquals(0, queue.size());
+        }
+        assertEquals(1, segmentCount());
+    }
+
+    @Test
+    public void failedSendKeepsTheBatch() throws IOException {
+        try (OutboundQueue queue = open(64, 0)) {
+            offer(queue, 1, 10);
+            mSink.mFailAfter = 1;
+            assertFalse(queue.drain(mSink));
+            assertEquals(4, queue.size());
+
+            mSink.mFailAfter = Integer.MAX_VALUE;
+            assertTrue(queue.drain(mSink));
+            assertEquals(range(1, 10), mSink.mValues);
+        }
+    }
+
+    @Test
+    public void rewindResendsTheReplayWindow() throws IOException {
+        try (OutboundQueue queue = open(64, 2)) {
+            offer(queue, 1, 20);
+            assertTrue(queue.drain(mSink));
+            // Batches 13..18 and 19..20 are still in the window
+            queue.rewind();
+            assertEquals(8, queue.size());
+            assertEquals(8, queue.getReplayedCount());
+
+            mSink.mValues.clear();
+            assertTrue(queue.drain(mSink));
+            assertEquals(range(13, 20), mSink.mValues);
+        }
+    }
+
+    @Test
+    public void reopenAfterCrashResendsTheReplayWindow() throws IOException {
+        OutboundQueue crashed = open(64, 2);
+        offer(crashed, 1, 20);
+        assertTrue(crashed.drain(mSink));
+        // Never closed, as if the process died here
+
+        mSink.mValues.clear();
+        try (OutboundQueue queue = open(64, 2)) {
+            assertEquals(8, queue.size());
+            assertTrue(queue.drain(mSink));
+            assertEquals(range(13, 20), mSink.mValues);
+        }
+    }
+
+    @Test
+    public void segmentsAreDeletedOnceOutOfTheReplayWindow() throws IOException {
+        try (OutboundQueue queue = open(4, 2)) {
+            offer(queue, 1, 12);
+            assertTrue(queue.drain(mSink));
+        }
+        // 1..4 left the window; 5..8 and 9..12 are kept for replay
+        assertEquals(2, segmentCount());
+
+        mSink.mValues.clear();
+        try (OutboundQueue queue = open(4, 2)) {
+            assertEquals(8, queue.size());
+            offer(queue, 13, 16);
+            assertTrue(queue.drain(mSink));
+            assertEquals(range(5, 16), mSink.mValues);
+        }
+        // Only 9..12 and 13..16 are still in the window
+        assertEquals(2, segmentCount());
+    }
+
+    @Test
+    public void tornRecordIsDroppedOnReopen() throws IOException {
+        try (OutboundQueue queue = open(16, 0)) {
+            offer(queue, 1, 5);
+        }
+        // A crash between the fifth value and its check word
+        try (RandomAccessFile file = new RandomAccessFile(segments()[0], "rw")) {
+            file.seek(4 * OutboundQueue.RECORD_SIZE + 4);
+            file.writeInt(0x12345679);
+        }
+
+        try (OutboundQueue queue = open(16, 0)) {
+            assertEquals(4, queue.size());
+            // The torn slot is reused by the next value
+            offer(queue, 6, 6);
+            assertTrue(queue.drain(mSink));
+        }
+        List<Integer> expected = range(1, 4);
+        expected.add(6);
+        assertEquals(expected, mSink.mValues);
+    }
+
+    @Test
+    public void rejectsValuesWhenEverySegmentIsFull() throws IOException {
+        try (OutboundQueue queue = new OutboundQueue(mFolder.getRoot(), 2, 2, BATCH_BYTES, 0)) {
+            offer(queue, 1, 4);
+            assertFalse(queue.offer(5));
+            assertEquals(1, queue.getRejectedCount());
+        }
+    }
+
+    private OutboundQueue open(int recordsPerSegment, int replayBatches) throws IOException {
+        return new OutboundQueue(mFolder.getRoot(), recordsPerSegment, 16, BATCH_BYTES,
+                replayBatches);
+    }
+
+    private File[] segments() {
+        return mFolder.getRoot().listFiles((dir, name) -> name.endsWith(".seg"));
+    }
+
+    private int segmentCount() {
+        return segments().length;
+    }
+
+    private static void offer(OutboundQueue queue, int first, int last) throws IOException {
+        for (int i = first; i <= last; i++) {
+            assertTrue(queue.offer(i));
+        }
+    }
+
+    private static List<Integer> range(int first, int last) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            values.add(i);
+        }
+        return values;
+    }
+
+    /**
+     * Sink that writes each value as a four-byte frame and records what it sends.
+     */
+    private static class RecordingSink implements OutboundQueue.Sink {
+        final List<Integer> mValues = new ArrayList<>();
+        final List<Integer> mBatchSizes = new ArrayList<>();
+        // Number of sends that succeed before every send fails
+        int mFailAfter = Integer.MAX_VALUE;
+
+        @Override
+        public int encode(ByteBuffer out, int[] values, int offset, int count) {
+            if (out.remaining() < 4) {
+                return 0;
+            }
+            out.putInt(values[offset]);
+            return 1;
+        }
+
+        @Override
+        public boolean send(byte[] frames, int length) {
+            if (mBatchSizes.size() >= mFailAfter) {
+                return false;
+            }
+            ByteBuffer in = ByteBuffer.wrap(frames, 0, length);
+            while (in.hasRemaining()) {
+                mValues.add(in.getInt());
+            }
+            mBatchSizes.add(length / 4);
+            return true;
+        }
+    }
+}
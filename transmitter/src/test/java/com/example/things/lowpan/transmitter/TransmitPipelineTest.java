@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class TransmitPipelineTest {
+    private final ManualScheduler mScheduler = new ManualScheduler();
+    private final List<Integer> mSent = new ArrayList<>();
+
+    @Test
+    public void immediateFlushSendsOnlyTheNewestValue() {
+        TransmitPipeline pipeline = newPipeline(TransmitPipeline.FlushPolicy.immediate());
+        pipeline.offer(1);
+        pipeline.offer(2);
+        pipeline.offer(3);
+        mScheduler.advance(0);
+        assertEquals(Collections.singletonList(3), mSent);
+        assertEquals(3, pipeline.getOfferedCount());
+        assertEquals(1, pipeline.getSendCount());
+        assertEquals(3, pipeline.getCoalescedPerSend().getMax());
+    }
+
+    @Test
+    public void fixedIntervalWaitsForTheRestOfTheInterval() {
+        TransmitPipeline pipeline = newPipeline(TransmitPipeline.FlushPolicy.fixedInterval(10));
+        pipeline.offer(1);
+        mScheduler.advance(0);
+        assertEquals(Collections.singletonList(1), mSent);
+
+        mScheduler.advance(3);
+        pipeline.offer(2);
+        mScheduler.advance(6);
+        assertEquals(1, mSent.size());
+        mScheduler.advance(1);
+        assertEquals(2, mSent.get(1).intValue());
+    }
+
+    @Test
+    public void fullBatchPullsTheFlushForward() {
+        TransmitPipeline pipeline = newPipeline(TransmitPipeline.FlushPolicy.maxLatency(20, 3));
+        pipeline.offer(1);
+        pipeline.offer(2);
+        mScheduler.advance(0);
+        assertTrue(mSent.isEmpty());
+        pipeline.offer(3);
+        mScheduler.advance(0);
+        assertEquals(Collections.singletonList(3), mSent);
+        // The delayed flush was replaced, not left to send again
+        assertEquals(0, mScheduler.mTasks.size());
+    }
+
+    @Test
+    public void maxLatencyBoundsHowLongAValueWaits() {
+        TransmitPipeline pipeline = newPipeline(TransmitPipeline.FlushPolicy.maxLatency(20, 8));
+        pipeline.offer(1);
+        mScheduler.advance(15);
+        pipeline.offer(2);
+        mScheduler.advance(4);
+        assertTrue(mSent.isEmpty());
+        mScheduler.advance(1);
+        assertEquals(Collections.singletonList(2), mSent);
+    }
+
+    @Test
+    public void cancelDiscardsPendingValues() {
+        TransmitPipeline pipeline = newPipeline(TransmitPipeline.FlushPolicy.fixedInterval(10));
+        pipeline.offer(1);
+        pipeline.cancel();
+        mScheduler.advance(100);
+        assertTrue(mSent.isEmpty());
+
+        pipeline.offer(2);
+        mScheduler.advance(0);
+        assertEquals(Collections.singletonList(2), mSent);
+    }
+
+    @Test
+    public void failedSendIsNotCounted() {
+        TransmitPipeline pipeline = new TransmitPipeline(mScheduler,
+                TransmitPipeline.FlushPolicy.immediate(), value -> {
+                    throw new IOException("unreachable");
+                });
+        pipeline.offer(1);
+        mScheduler.advance(0);
+        assertEquals(0, pipeline.getSendCount());
+    }
+
+    @Test
+    public void concurrentFlushesNeverGoBackwardsAndSendTheLastValue() throws Exception {
+        int count = 200_000;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        List<Future<?>> futures = Collections.synchronizedList(new ArrayList<>());
+        TransmitPipeline.Scheduler scheduler = new TransmitPipeline.Scheduler() {
+            @Override
+            public long uptimeMillis() {
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+            }
+
+            @Override
+            public void postDelayed(Runnable runnable, long delayMillis) {
+                futures.add(executor.schedule(runnable, delayMillis, TimeUnit.MILLISECONDS));
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                synchronized (futures) {
+                    for (Future<?> future : futures) {
+                        future.cancel(false);
+                    }
+                    futures.clear();
+                }
+            }
+        };
+        // Only touched on the executor thread, read after it terminated
+        int[] last = { -1 };
+        boolean[] backwards = { false };
+        TransmitPipeline pipeline = new TransmitPipeline(scheduler,
+                TransmitPipeline.FlushPolicy.maxLatency(1, 8), value -> {
+                    backwards[0] |= value < last[0];
+                    last[0] = value;
+                });
+        for (int i = 0; i < count; i++) {
+            pipeline.offer(i);
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertFalse("a flush sent an older value", backwards[0]);
+        assertEquals(count - 1, last[0]);
+        assertEquals(pipeline.getSendCount(), pipeline.getCoalescedPerSend().getCount());
+    }
+
+    private TransmitPipeline newPipeline(TransmitPipeline.FlushPolicy policy) {
+        return new TransmitPipeline(mScheduler, policy, mSent::add);
+    }
+
+    /**
+     * Scheduler whose clock only moves when the test advances it.
+     */
+    private static class ManualScheduler implements TransmitPipeline.Scheduler {
+        final List<Task> mTasks = new ArrayList<>();
+        // Away from zero, like a device that has been up for a while
+        long mNow = 1_000_000;
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            mTasks.add(new Task(runnable, mNow + delayMillis));
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            mTasks.removeIf(task -> task.mRunnable == runnable);
+        }
+
+        /**
+         * Move the clock forward and run every task that became due, in order.
+         */
+        void advance(long millis) {
+            mNow += millis;
+            while (true) {
+                Task next = null;
+                for (Task task : mTasks) {
+                    if (task.mDueAt <= mNow && (next == null || task.mDueAt < next.mDueAt)) {
+                        next = task;
+                    }
+                }
+                if (next == null) {
+                    return;
+                }
+                mTasks.remove(next);
+                next.mRunnable.run();
+            }
+        }
+    }
+
+    private static class Task {
+        final Runnable mRunnable;
+        final long mDueAt;
+
+        Task(Runnable runnable, long dueAt) {
+            mRunnable = runnable;
+            mDueAt = dueAt;
+        }
+    }
+}
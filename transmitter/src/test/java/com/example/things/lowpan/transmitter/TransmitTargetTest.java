@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.things.lowpan.transmitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+
+import com.example.things.lowpan.common.DeltaCodec;
+import com.example.things.lowpan.common.Frame;
+import com.example.things.lowpan.common.FrameCodec;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TransmitTargetTest {
+    private static final int MAX_PENDING_BYTES = 1232;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream mSent = new ByteArrayOutputStream();
+    private TransmitTarget mTarget;
+
+    @After
+    public void tearDown() {
+        mTarget.close();
+    }
+
+    @Test
+    public void deltaPathEncodesOnTheTargetWithoutCallerFrames() throws IOException {
+        mTarget = newTarget(new DeltaCodec(false));
+        int[] values = { 1000, 1003, 998, 998, -20 };
+        for (int value : values) {
+            assertTrue(mTarget.offer(value, null, 0));
+        }
+        mTarget.flush();
+
+        List<Frame> frames = decodeFrames();
+        // Everything pending went out as one delta frame
+        assertEquals(1, frames.size());
+        assertEquals(FrameCodec.TYPE_VALUES, frames.get(0).getType());
+        assertEquals(Arrays.asList(1000, 1003, 998, 998, -20), resolve(frames));
+    }
+
+    @Test
+    public void deltaFramesContinueAcrossFlushes() throws IOException {
+        mTarget = newTarget(new DeltaCodec(false));
+        mTarget.offer(5, null, 0);
+        mTarget.flush();
+        mTarget.offer(7, null, 0);
+        mTarget.offer(6, null, 0);
+        mTarget.flush();
+
+        List<Frame> frames = decodeFrames();
+        assertEquals(FrameCodec.TYPE_DELTAS, frames.get(1).getType());
+        assertEquals(Arrays.asList(5, 7, 6), resolve(frames));
+    }
+
+    @Test
+    public void callerFramesAreSentAsGiven() throws IOException {
+        mTarget = newTarget(null);
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_VALUE_FRAME_SIZE);
+        for (int i = 0; i < 3; i++) {
+            frame.clear();
+            int length = FrameCodec.encodeValue(frame, i, i * 10);
+            assertTrue(mTarget.offer(i * 10, frame.array(), length));
+        }
+        mTarget.flush();
+
+        List<Frame> frames = decodeFrames();
+        assertEquals(3, frames.size());
+        assertEquals(20, frames.get(2).getValue());
+    }
+
+    @Test
+    public void valuesThatCannotBeQueuedAreCountedAsDropped() throws IOException {
+        // A file where the queue's directory should be
+        File notADirectory = mFolder.newFile();
+        mTarget = newTarget(null, notADirectory);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mTarget.offer(i, null, 0));
+        }
+        mTarget.flush();
+
+        assertEquals(0, mSent.size());
+        assertTrue(mTarget.toString(), mTarget.toString().contains(" dropped=3 "));
+    }
+
+    private TransmitTarget newTarget(DeltaCodec deltaCodec) {
+        return newTarget(deltaCodec, null);
+    }
+
+    private TransmitTarget newTarget(DeltaCodec deltaCodec, File queueDirectory) {
+        return new TransmitTarget("test", () -> {
+            throw new IOException("not used");
+        }, buffer -> {}, null, (out, value) -> FrameCodec.encodeValue(out, 0, value), deltaCodec,
+                MAX_PENDING_BYTES, queueDirectory, 16, 4, MAX_PENDING_BYTES, 4) {
+            @Override
+            ConnectionManager createConnectionManager(Handler handler,
+                    ConnectionManager.TransportFactory factory,
+                    ConnectionManager.Receiver receiver, ConnectionManager.Callback callback) {
+                return new ConnectionManager(handler, factory, receiver, callback) {
+                    @Override
+                    public boolean send(byte[] frames, int length) {
+                        mSent.write(frames, 0, length);
+                        return true;
+                    }
+                };
+            }
+        };
+    }
+
+    private List<Frame> decodeFrames() throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(mSent.toByteArray());
+        List<Frame> frames = new ArrayList<>();
+        Frame frame = new Frame();
+        while (FrameCodec.decode(in, frame)) {
+            frames.add(frame);
+            frame = new Frame();
+        }
+        assertEquals(0, in.remaining());
+        return frames;
+    }
+
+    private static List<Integer> resolve(List<Frame> frames) throws IOException {
+        DeltaCodec decoder = new DeltaCodec(false);
+        int[] values = new int[FrameCodec.MAX_BATCH_VALUES];
+        List<Integer> resolved = new ArrayList<>();
+        for (Frame frame : frames) {
+            int count = decoder.decode(frame, values, 0);
+            for (int i = 0; i < count; i++) {
+                resolved.add(values[i]);
+            }
+        }
+        return resolved;
+    }
+}